@@ -35,4 +35,25 @@ abstract class FaceMatcher {
         }
         return highestScore
     }
+
+    /**
+     * Get highest comparison score against all probes for each of the candidates in the batch
+     *
+     * Default implementation compares every pair of templates, matchers should override it
+     * when probe templates can be prepared once and reused for the whole batch.
+     *
+     * @param probes
+     * @param candidates
+     * @return the highest comparison scores, in the same order as the candidates
+     */
+    open suspend fun matchBatch(
+        probes: List<FaceSample>,
+        candidates: List<FaceIdentity>,
+    ): FloatArray {
+        val scores = FloatArray(candidates.size)
+        candidates.forEachIndexed { index, candidate ->
+            scores[index] = getHighestComparisonScoreForCandidate(probes, candidate)
+        }
+        return scores
+    }
 }
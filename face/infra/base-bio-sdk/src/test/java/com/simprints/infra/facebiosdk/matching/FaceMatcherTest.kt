@@ -30,6 +30,25 @@ class FaceMatcherTest {
         assertThat(score).isEqualTo(0.4f)
     }
 
+    @Test
+    fun `Batch matching returns highest score for each candidate in order`() = runTest {
+        val candidate2 = getFaceIdentity(1)
+        coEvery { faceMatcher.getComparisonScore(any(), any()) } returnsMany listOf(
+            // candidate 1: 2 probes x 2 faces
+            0.1f,
+            0.4f,
+            0.3f,
+            0.2f,
+            // candidate 2: 2 probes x 1 face
+            0.5f,
+            0.6f,
+        )
+
+        val scores = faceMatcher.matchBatch(probes, listOf(candidate1, candidate2))
+
+        assertThat(scores.toList()).containsExactly(0.4f, 0.6f).inOrder()
+    }
+
     private fun getFaceIdentity(numFaces: Int): FaceIdentity = FaceIdentity(
         UUID.randomUUID().toString(),
         generateSequenceN(numFaces) { getFaceSample() }.toList(),
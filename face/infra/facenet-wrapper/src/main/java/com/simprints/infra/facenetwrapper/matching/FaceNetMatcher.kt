@@ -1,9 +1,13 @@
 package com.simprints.infra.facenetwrapper.matching
 
 import com.simprints.core.ExcludedFromGeneratedTestCoverageReports
+import com.simprints.face.infra.basebiosdk.matching.FaceIdentity
 import com.simprints.face.infra.basebiosdk.matching.FaceMatcher
+import com.simprints.face.infra.basebiosdk.matching.FaceSample
 import com.simprints.infra.facenetwrapper.detection.FaceNetDetector.Companion.FACE_NET_TEMPLATE_FORMAT
 import com.simprints.infra.mlkitwrapper.tools.cosineSimilarity
+import com.simprints.infra.mlkitwrapper.tools.dot
+import com.simprints.infra.mlkitwrapper.tools.norm
 import com.simprints.infra.mlkitwrapper.tools.toFloats
 import javax.inject.Inject
 
@@ -29,4 +33,42 @@ class FaceNetMatcher @Inject constructor() : FaceMatcher() {
         if (probeFloats.size != matchAgainstFloats.size) return 0f
         return (cosineSimilarity(probeFloats, matchAgainstFloats)) * 100f
     }
+
+    /**
+     * Probes are decoded and normalised once for the whole batch, and every candidate template is decoded
+     * into a single reusable array with its norm calculated once for all probes.
+     */
+    override suspend fun matchBatch(
+        probes: List<FaceSample>,
+        candidates: List<FaceIdentity>,
+    ): FloatArray {
+        val normalisedProbes = probes.map { probe ->
+            val floats = probe.template.toFloats()
+            val probeNorm = norm(floats)
+            for (i in floats.indices) floats[i] /= probeNorm
+            floats
+        }
+        var candidateFloats = FloatArray(normalisedProbes.firstOrNull()?.size ?: 0)
+        val scores = FloatArray(candidates.size)
+
+        candidates.forEachIndexed { index, candidate ->
+            var highestScore = 0f
+            candidate.faces.forEach { face ->
+                val candidateSize = face.template.size / Float.SIZE_BYTES
+                if (candidateFloats.size < candidateSize) candidateFloats = FloatArray(candidateSize)
+                face.template.toFloats(candidateFloats)
+                val candidateNorm = norm(candidateFloats, candidateSize)
+
+                normalisedProbes.forEach { probe ->
+                    // Template sizes do not match and from different providers score 0
+                    if (probe.size == candidateSize) {
+                        val score = dot(probe, candidateFloats, candidateSize) / candidateNorm * 100f
+                        if (score > highestScore) highestScore = score
+                    }
+                }
+            }
+            scores[index] = highestScore
+        }
+        return scores
+    }
 }
@@ -4,13 +4,24 @@ import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import kotlin.math.sqrt
 
-fun cosineSimilarity(x1: FloatArray, x2: FloatArray): Float {
-    val mag1 = sqrt(x1.map { it * it }.sum())
-    val mag2 = sqrt(x2.map { it * it }.sum())
-    val dot = x1.mapIndexed { i, xi -> xi * x2[i] }.sum()
-    return dot / (mag1 * mag2)
+fun cosineSimilarity(x1: FloatArray, x2: FloatArray): Float = dot(x1, x2) / (norm(x1) * norm(x2))
+
+/**
+ * Dot product of the first [size] elements of both arrays.
+ */
+fun dot(x1: FloatArray, x2: FloatArray, size: Int = x1.size): Float {
+    var sum = 0f
+    for (i in 0 until size) {
+        sum += x1[i] * x2[i]
+    }
+    return sum
 }
 
+/**
+ * Euclidean norm of the first [size] elements of the array.
+ */
+fun norm(x: FloatArray, size: Int = x.size): Float = sqrt(dot(x, x, size))
+
 fun FloatArray.toBytes(): ByteArray {
     val bytes = ByteArray(size * Float.SIZE_BYTES)
     val buffer = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN)
@@ -18,10 +29,21 @@ fun FloatArray.toBytes(): ByteArray {
     return bytes
 }
 
-fun ByteArray.toFloats(): FloatArray {
-    val floats = FloatArray(size / Float.SIZE_BYTES)
-    val buffer = ByteBuffer.wrap(this).order(ByteOrder.BIG_ENDIAN)
-    buffer.asFloatBuffer().get(floats)
-    return floats
-}
+fun ByteArray.toFloats(): FloatArray = toFloats(FloatArray(size / Float.SIZE_BYTES))
 
+/**
+ * Decodes the big endian floats of the array into [destination] without any intermediate allocation,
+ * so the same destination can be reused to decode many templates. Returns the [destination].
+ */
+fun ByteArray.toFloats(destination: FloatArray): FloatArray {
+    for (i in 0 until size / Float.SIZE_BYTES) {
+        val offset = i * Float.SIZE_BYTES
+        destination[i] = Float.fromBits(
+            (this[offset].toInt() and 0xFF shl 24) or
+                (this[offset + 1].toInt() and 0xFF shl 16) or
+                (this[offset + 2].toInt() and 0xFF shl 8) or
+                (this[offset + 3].toInt() and 0xFF),
+        )
+    }
+    return destination
+}
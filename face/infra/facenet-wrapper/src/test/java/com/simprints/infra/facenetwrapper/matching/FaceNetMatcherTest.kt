@@ -1,7 +1,12 @@
 package com.simprints.infra.facenetwrapper.matching
 
 import com.google.common.truth.Truth
+import com.simprints.face.infra.basebiosdk.matching.FaceIdentity
+import com.simprints.face.infra.basebiosdk.matching.FaceSample
+import com.simprints.infra.mlkitwrapper.tools.toBytes
+import kotlinx.coroutines.test.runTest
 import org.junit.Test
+import kotlin.random.Random
 
 class FaceNetMatcherTest {
 
@@ -11,4 +16,31 @@ class FaceNetMatcherTest {
         FaceNetMatcher().matcherName
         Truth.assertThat(FaceNetMatcher().matcherName).isEqualTo("RANK_ONE")
     }
+
+    @Test
+    fun `batch matching scores the same as pairwise matching`() = runTest {
+        val matcher = FaceNetMatcher()
+        val probes = List(2) { FaceSample("probe$it", randomTemplate()) }
+        val candidates = List(3) { FaceIdentity("subject$it", List(2) { index -> FaceSample("face$index", randomTemplate()) }) }
+
+        val batchScores = matcher.matchBatch(probes, candidates)
+
+        candidates.forEachIndexed { index, candidate ->
+            Truth
+                .assertThat(batchScores[index])
+                .isWithin(0.001f)
+                .of(matcher.getHighestComparisonScoreForCandidate(probes, candidate))
+        }
+    }
+
+    @Test
+    fun `batch matching scores zero for templates of different size`() = runTest {
+        val matcher = FaceNetMatcher()
+        val probes = listOf(FaceSample("probe", randomTemplate(size = 128)))
+        val candidates = listOf(FaceIdentity("subject", listOf(FaceSample("face", randomTemplate(size = 512)))))
+
+        Truth.assertThat(matcher.matchBatch(probes, candidates).toList()).containsExactly(0f)
+    }
+
+    private fun randomTemplate(size: Int = 512) = FloatArray(size) { Random.nextFloat() - 0.5f }.toBytes()
 }
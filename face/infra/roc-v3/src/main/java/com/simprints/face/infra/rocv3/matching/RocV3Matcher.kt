@@ -1,9 +1,12 @@
 package com.simprints.face.infra.rocv3.matching
 
+import ai.roc.rocsdk.embedded.SWIGTYPE_p_unsigned_char
 import ai.roc.rocsdk.embedded.roc
 import ai.roc.rocsdk.embedded.rocConstants.ROC_FACE_FAST_FV_SIZE
 import com.simprints.core.ExcludedFromGeneratedTestCoverageReports
+import com.simprints.face.infra.basebiosdk.matching.FaceIdentity
 import com.simprints.face.infra.basebiosdk.matching.FaceMatcher
+import com.simprints.face.infra.basebiosdk.matching.FaceSample
 import com.simprints.face.infra.rocv3.detection.RocV3Detector.Companion.RANK_ONE_TEMPLATE_FORMAT_3_1
 import javax.inject.Inject
 import javax.inject.Singleton
@@ -43,4 +46,50 @@ class RocV3Matcher @Inject constructor() : FaceMatcher() {
 
         return (similarity * 100)
     }
+
+    /**
+     * Probe templates are copied to native memory once for the whole batch and a single native
+     * array is reused for all candidate templates.
+     */
+    @ExcludedFromGeneratedTestCoverageReports(
+        reason = "This function uses roc class that has native functions and can't be mocked",
+    )
+    override suspend fun matchBatch(
+        probes: List<FaceSample>,
+        candidates: List<FaceIdentity>,
+    ): FloatArray {
+        // Native arrays are tracked as they are allocated, so that a failure part way only frees the existing ones
+        val probeTemplates = ArrayList<SWIGTYPE_p_unsigned_char>(probes.size)
+        var matchTemplate: SWIGTYPE_p_unsigned_char? = null
+        try {
+            probes.forEach { probe ->
+                val probeTemplate = roc.new_uint8_t_array(ROC_FACE_FAST_FV_SIZE.toInt())
+                probeTemplates.add(probeTemplate)
+                roc.memmove(roc.roc_cast(probeTemplate), probe.template)
+            }
+            val candidateTemplate = roc.new_uint8_t_array(ROC_FACE_FAST_FV_SIZE.toInt())
+            matchTemplate = candidateTemplate
+            val scores = FloatArray(candidates.size)
+            candidates.forEachIndexed { index, candidate ->
+                var highestScore = 0f
+                candidate.faces.forEach { face ->
+                    roc.memmove(roc.roc_cast(candidateTemplate), face.template)
+                    probeTemplates.forEach { probeTemplate ->
+                        val score = roc.roc_embedded_compare_templates(
+                            probeTemplate,
+                            ROC_FACE_FAST_FV_SIZE,
+                            candidateTemplate,
+                            ROC_FACE_FAST_FV_SIZE,
+                        ) * 100
+                        if (score > highestScore) highestScore = score
+                    }
+                }
+                scores[index] = highestScore
+            }
+            return scores
+        } finally {
+            probeTemplates.forEach { roc.delete_uint8_t_array(it) }
+            matchTemplate?.let { roc.delete_uint8_t_array(it) }
+        }
+    }
 }
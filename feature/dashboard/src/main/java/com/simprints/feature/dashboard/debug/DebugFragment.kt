@@ -16,13 +16,13 @@ import com.simprints.feature.dashboard.databinding.FragmentDebugBinding
 import com.simprints.infra.authstore.AuthStore
 import com.simprints.infra.enrolment.records.repository.local.EnrolmentRecordLocalDataSource
 import com.simprints.infra.events.EventRepository
+import com.simprints.infra.events.event.domain.models.EventType
 import com.simprints.infra.eventsync.EventSyncManager
 import com.simprints.infra.eventsync.status.models.EventSyncWorkerState
 import com.simprints.infra.sync.SyncOrchestrator
 import com.simprints.infra.uibase.viewbinding.viewBinding
 import dagger.hilt.android.AndroidEntryPoint
 import kotlinx.coroutines.CoroutineDispatcher
-import kotlinx.coroutines.flow.toList
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import javax.inject.Inject
@@ -99,9 +99,11 @@ internal class DebugFragment : Fragment(R.layout.fragment_debug) {
                 val logStringBuilder = StringBuilder()
                 logStringBuilder.append("\nSubjects ${enrolmentRecordRepository.count()}")
 
-                val events = eventRepository.getAllEvents().toList().groupBy { it.type }
-                events.forEach {
-                    logStringBuilder.append("\n${it.key} ${it.value.size}")
+                // Events are only counted so that they are not all kept in memory
+                val eventCounts = mutableMapOf<EventType, Int>()
+                eventRepository.getAllEvents().collect { eventCounts[it.type] = (eventCounts[it.type] ?: 0) + 1 }
+                eventCounts.forEach {
+                    logStringBuilder.append("\n${it.key} ${it.value}")
                 }
 
                 binding.logs.text = logStringBuilder.toString()
@@ -0,0 +1,117 @@
+package com.simprints.matcher.usecases
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Ranges for batch processing whose sizes are decided one at a time, when the candidate loader asks for the next one.
+ *
+ * Until the first batch is matched, batch sizes ramp up from [minBatchSize] to speed up initial reads. Afterwards every
+ * batch is sized so that a single worker needs about [targetBatchNanos] to match it, based on the matching throughput
+ * measured so far. Batches never exceed a fair share of the remaining candidates per worker, so that all the workers
+ * are kept busy until the end.
+ */
+internal class AdaptiveRanges(
+    private val totalCount: Int,
+    private val workersCount: Int,
+    private val minBatchSize: Int = MIN_BATCH_SIZE,
+    private val maxBatchSize: Int = MAX_BATCH_SIZE,
+    private val targetBatchNanos: Long = TARGET_BATCH_NANOS,
+    private val clock: () -> Long = System::nanoTime,
+) : Iterable<IntRange> {
+    private val matchedCandidates = AtomicLong()
+    private val matchingNanos = AtomicLong()
+    private var loadingNanos = 0L
+    private var batchRequestedNanos: Long? = null
+    private var lastCandidateLoadedNanos: Long? = null
+
+    private val _batchSizes = mutableListOf<Int>()
+
+    /**
+     * Sizes of the batches created so far, in order.
+     */
+    val batchSizes: List<Int>
+        get() = _batchSizes
+
+    /**
+     * Records that a candidate of the current batch has been loaded. Loading time of a batch runs from its request
+     * to its last loaded candidate, so the time the loader spends waiting for the workers is not counted.
+     */
+    fun onCandidateLoaded() {
+        lastCandidateLoadedNanos = clock()
+    }
+
+    /**
+     * Records the time taken by a worker to match a batch of [size] candidates.
+     */
+    fun onBatchMatched(
+        size: Int,
+        durationNanos: Long,
+    ) {
+        matchedCandidates.addAndGet(size.toLong())
+        matchingNanos.addAndGet(durationNanos)
+    }
+
+    /**
+     * Summary of the chosen schedule and measured throughput, to be reported once all the batches have been matched.
+     */
+    fun describe(): String {
+        recordBatchLoading()
+        return "Batches: $_batchSizes, " +
+            "loaded ${perSecond(_batchSizes.sum().toLong(), loadingNanos)}/s, " +
+            "matched ${perSecond(matchedCandidates.get(), matchingNanos.get())}/s per worker with $workersCount workers"
+    }
+
+    override fun iterator(): Iterator<IntRange> = object : Iterator<IntRange> {
+        private var start = 0
+
+        override fun hasNext(): Boolean = start < totalCount
+
+        override fun next(): IntRange {
+            if (!hasNext()) throw NoSuchElementException()
+            recordBatchLoading()
+            batchRequestedNanos = clock()
+
+            val size = nextBatchSize(totalCount - start)
+            _batchSizes.add(size)
+            return (start..start + size).also { start += size }
+        }
+    }
+
+    private fun recordBatchLoading() {
+        val requested = batchRequestedNanos
+        val loaded = lastCandidateLoadedNanos
+        if (requested != null && loaded != null && loaded > requested) {
+            loadingNanos += loaded - requested
+        }
+        batchRequestedNanos = null
+        lastCandidateLoadedNanos = null
+    }
+
+    private fun nextBatchSize(remaining: Int): Int {
+        val matched = matchedCandidates.get()
+        val nanos = matchingNanos.get()
+        val size = if (matched == 0L || nanos == 0L) {
+            minBatchSize.toLong() * (_batchSizes.size + 1)
+        } else {
+            matched * targetBatchNanos / nanos
+        }
+        val fairShare = ((remaining + workersCount - 1) / workersCount).coerceAtLeast(minBatchSize)
+        return size
+            .coerceIn(minBatchSize.toLong(), maxBatchSize.toLong())
+            .toInt()
+            .coerceAtMost(fairShare)
+            .coerceAtMost(remaining)
+    }
+
+    private fun perSecond(
+        count: Long,
+        nanos: Long,
+    ) = if (nanos == 0L) 0 else count * NANOS_IN_SECOND / nanos
+
+    companion object {
+        private const val MIN_BATCH_SIZE = 200
+        private const val MAX_BATCH_SIZE = 5000
+        private const val TARGET_BATCH_NANOS = 250_000_000L
+        private const val NANOS_IN_SECOND = 1_000_000_000L
+    }
+}
@@ -7,9 +7,8 @@ import com.simprints.face.infra.basebiosdk.matching.FaceSample
 
 import com.simprints.face.infra.biosdkresolver.ResolveFaceBioSdkUseCase
 import com.simprints.infra.config.store.models.Project
+import com.simprints.infra.config.sync.ConfigManager
 import com.simprints.infra.enrolment.records.repository.EnrolmentRecordRepository
-import com.simprints.infra.enrolment.records.repository.domain.models.BiometricDataSource
-import com.simprints.infra.enrolment.records.repository.domain.models.SubjectQuery
 import com.simprints.infra.logging.LoggingConstants
 import com.simprints.infra.logging.Simber
 import com.simprints.matcher.FaceMatchResult
@@ -22,16 +21,21 @@ import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.channelFlow
 import javax.inject.Inject
+import kotlin.system.measureNanoTime
+import com.simprints.infra.enrolment.records.repository.domain.models.FaceIdentity as EnrolmentFaceIdentity
 
 internal class FaceMatcherUseCase @Inject constructor(
     private val enrolmentRecordRepository: EnrolmentRecordRepository,
     private val resolveFaceBioSdk: ResolveFaceBioSdkUseCase,
+    private val configManager: ConfigManager,
     private val createRanges: CreateRangesUseCase,
     @DispatcherBG private val dispatcher: CoroutineDispatcher,
 ) : MatcherUseCase {
     private lateinit var faceMatcher: FaceMatcher
     override val crashReportTag = LoggingConstants.CrashReportTag.FACE_MATCHING
 
+    private val workersCount = Runtime.getRuntime().availableProcessors().coerceAtLeast(1)
+
     override suspend operator fun invoke(
         matchParams: MatchParams,
         project: Project,
@@ -57,62 +61,65 @@ internal class FaceMatcherUseCase @Inject constructor(
 
         Simber.i("Matching candidates", tag = crashReportTag)
         send(MatcherState.LoadingStarted(expectedCandidates))
-        // When using local DB loadedCandidates = expectedCandidates
-        // However, when using CommCare as data source, loadedCandidates < expectedCandidates
-        // as it's count function does not take into account filtering criteria
+        // Candidates are counted and loaded with the same query by both data sources,
+        // so loadedCandidates only differs from expectedCandidates if records change in between
         var loadedCandidates = 0
+        val maxResults = configManager.getProjectConfiguration().matchResultsMaxSize()
+        val ranges = createRanges.adaptive(expectedCandidates, workersCount)
         val resultItems = coroutineScope {
-            createRanges(expectedCandidates)
-                .map { range ->
-                    async(dispatcher) {
-                        val batchCandidates = getCandidates(
-                            queryWithSupportedFormat,
-                            range,
-                            project = project,
-                            dataSource = matchParams.biometricDataSource,
-                        ) {
-                            // When a candidate is loaded
-                            loadedCandidates++
-                            trySend(MatcherState.CandidateLoaded)
+            // Candidates are loaded batch by batch while already loaded batches are matched by the workers
+            val candidateBatches = enrolmentRecordRepository.loadFaceIdentities(
+                query = queryWithSupportedFormat,
+                ranges = ranges,
+                dataSource = matchParams.biometricDataSource,
+                project = project,
+                scope = this,
+            ) {
+                // When a candidate is loaded
+                loadedCandidates++
+                ranges.onCandidateLoaded()
+                trySend(MatcherState.CandidateLoaded)
+            }
+            List(workersCount) {
+                async(dispatcher) {
+                    val workerResults = MatchResultSet<FaceMatchResult.Item>(maxResults)
+                    for (batch in candidateBatches) {
+                        val duration = measureNanoTime {
+                            workerResults.addAll(match(batch.mapToMatcherDomain(), samples, maxResults))
                         }
-                        match(batchCandidates, samples)
+                        ranges.onBatchMatched(batch.size, duration)
                     }
-                }.awaitAll()
+                    workerResults
+                }
+            }.awaitAll()
                 .reduce { acc, subSet -> acc.addAll(subSet) }
                 .toList()
         }
 
         Simber.i("Matched $loadedCandidates candidates", tag = crashReportTag)
+        Simber.i(ranges.describe(), tag = crashReportTag)
 
         send(MatcherState.Success(resultItems, loadedCandidates, faceMatcher.matcherName))
     }
 
     private fun mapSamples(probes: List<MatchParams.FaceSample>) = probes.map { FaceSample (it.faceId, it.template) }
 
-    private suspend fun getCandidates(
-        query: SubjectQuery,
-        range: IntRange,
-        dataSource: BiometricDataSource = BiometricDataSource.Simprints,
-        project: Project,
-        onCandidateLoaded: () -> Unit,
-    ) = enrolmentRecordRepository
-        .loadFaceIdentities(query, range, dataSource, project, onCandidateLoaded)
-        .map {
-            FaceIdentity(
-                it.subjectId,
-                it.faces.map { face -> FaceSample(face.id, face.template) },
-            )
-        }
+    private fun List<EnrolmentFaceIdentity>.mapToMatcherDomain() = map {
+        FaceIdentity(
+            it.subjectId,
+            it.faces.map { face -> FaceSample(face.id, face.template) },
+        )
+    }
 
     private suspend fun match(
         batchCandidates: List<FaceIdentity>,
         samples: List<FaceSample>,
-    ) = batchCandidates.fold(MatchResultSet<FaceMatchResult.Item>()) { acc, item ->
-        acc.add(
-            FaceMatchResult.Item(
-                item.subjectId,
-                faceMatcher.getHighestComparisonScoreForCandidate(samples, item),
-            ),
-        )
+        maxResults: Int,
+    ): MatchResultSet<FaceMatchResult.Item> {
+        // Whole batch is handed to the SDK so that probe preparation is done once per batch
+        val scores = faceMatcher.matchBatch(samples, batchCandidates)
+        return batchCandidates.foldIndexed(MatchResultSet<FaceMatchResult.Item>(maxResults)) { index, acc, item ->
+            acc.add(FaceMatchResult.Item(item.subjectId, scores[index]))
+        }
     }
 }
@@ -13,8 +13,6 @@ import com.simprints.infra.config.store.models.FingerprintConfiguration.FingerCo
 import com.simprints.infra.config.store.models.Project
 import com.simprints.infra.config.sync.ConfigManager
 import com.simprints.infra.enrolment.records.repository.EnrolmentRecordRepository
-import com.simprints.infra.enrolment.records.repository.domain.models.BiometricDataSource
-import com.simprints.infra.enrolment.records.repository.domain.models.SubjectQuery
 import com.simprints.infra.logging.LoggingConstants
 import com.simprints.infra.logging.Simber
 import com.simprints.matcher.FingerprintMatchResult
@@ -23,9 +21,12 @@ import com.simprints.matcher.usecases.MatcherUseCase.MatcherState
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.async
 import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.channelFlow
 import javax.inject.Inject
+import kotlin.system.measureNanoTime
+import com.simprints.infra.enrolment.records.repository.domain.models.FingerprintIdentity as EnrolmentFingerprintIdentity
 
 internal class FingerprintMatcherUseCase @Inject constructor(
     private val enrolmentRecordRepository: EnrolmentRecordRepository,
@@ -36,6 +37,8 @@ internal class FingerprintMatcherUseCase @Inject constructor(
 ) : MatcherUseCase {
     override val crashReportTag = LoggingConstants.CrashReportTag.FINGER_MATCHING
 
+    private val workersCount = Runtime.getRuntime().availableProcessors().coerceAtLeast(1)
+
     override suspend operator fun invoke(
         matchParams: MatchParams,
         project: Project,
@@ -61,65 +64,73 @@ internal class FingerprintMatcherUseCase @Inject constructor(
 
         Simber.i("Matching candidates", tag = crashReportTag)
         send(MatcherState.LoadingStarted(expectedCandidates))
-        // When using local DB loadedCandidates = expectedCandidates
-        // However, when using CommCare as data source, loadedCandidates < expectedCandidates
-        // as it's count function does not take into account filtering criteria
+        // Candidates are counted and loaded with the same query by both data sources,
+        // so loadedCandidates only differs from expectedCandidates if records change in between
         var loadedCandidates = 0
-        val resultItems = createRanges(expectedCandidates)
-            .map { range ->
+        val isCrossFingerMatchingEnabled = isCrossFingerMatchingEnabled(matchParams.flowType, matchParams.fingerprintSDK)
+        val maxResults = configManager.getProjectConfiguration().matchResultsMaxSize()
+        val ranges = createRanges.adaptive(expectedCandidates, workersCount)
+        val resultItems = coroutineScope {
+            // Candidates are loaded batch by batch while already loaded batches are matched by the workers
+            val candidateBatches = enrolmentRecordRepository.loadFingerprintIdentities(
+                query = queryWithSupportedFormat,
+                ranges = ranges,
+                dataSource = matchParams.biometricDataSource,
+                project = project,
+                scope = this,
+            ) {
+                // When a candidate is loaded
+                loadedCandidates++
+                ranges.onCandidateLoaded()
+                trySend(MatcherState.CandidateLoaded)
+            }
+            List(workersCount) {
                 async(dispatcher) {
-                    val batchCandidates = getCandidates(queryWithSupportedFormat, range, matchParams.biometricDataSource, project) {
-                        // When a candidate is loaded
-                        loadedCandidates++
-                        trySend(MatcherState.CandidateLoaded)
-                    }
-                    match(samples, batchCandidates, matchParams.flowType, bioSdkWrapper, bioSdk = matchParams.fingerprintSDK)
-                        .fold(MatchResultSet<FingerprintMatchResult.Item>()) { acc, item ->
-                            acc.add(FingerprintMatchResult.Item(item.id, item.score))
+                    val workerResults = MatchResultSet<FingerprintMatchResult.Item>(maxResults)
+                    for (batch in candidateBatches) {
+                        val duration = measureNanoTime {
+                            match(samples, batch.mapToMatcherDomain(), bioSdkWrapper, isCrossFingerMatchingEnabled)
+                                .forEach { workerResults.add(FingerprintMatchResult.Item(it.id, it.score)) }
                         }
+                        ranges.onBatchMatched(batch.size, duration)
+                    }
+                    workerResults
                 }
             }.awaitAll()
-            .reduce { acc, subSet -> acc.addAll(subSet) }
-            .toList()
+                .reduce { acc, subSet -> acc.addAll(subSet) }
+                .toList()
+        }
 
         Simber.i("Matched $loadedCandidates candidates", tag = crashReportTag)
+        Simber.i(ranges.describe(), tag = crashReportTag)
         send(MatcherState.Success(resultItems, loadedCandidates, bioSdkWrapper.matcherName))
     }
 
     private fun mapSamples(probes: List<MatchParams.FingerprintSample>) = probes
         .map { Fingerprint(it.fingerId.toMatcherDomain(), it.template, it.format) }
 
-    private suspend fun getCandidates(
-        query: SubjectQuery,
-        range: IntRange,
-        dataSource: BiometricDataSource = BiometricDataSource.Simprints,
-        project: Project,
-        onCandidateLoaded: () -> Unit,
-    ) = enrolmentRecordRepository
-        .loadFingerprintIdentities(query, range, dataSource, project, onCandidateLoaded)
-        .map {
-            FingerprintIdentity(
-                it.subjectId,
-                it.fingerprints.map { finger ->
-                    Fingerprint(
-                        finger.fingerIdentifier.toMatcherDomain(),
-                        finger.template,
-                        finger.format,
-                    )
-                },
-            )
-        }
+    private fun List<EnrolmentFingerprintIdentity>.mapToMatcherDomain() = map {
+        FingerprintIdentity(
+            it.subjectId,
+            it.fingerprints.map { finger ->
+                Fingerprint(
+                    finger.fingerIdentifier.toMatcherDomain(),
+                    finger.template,
+                    finger.format,
+                )
+            },
+        )
+    }
 
     private suspend fun match(
         probes: List<Fingerprint>,
         candidates: List<FingerprintIdentity>,
-        flowType: FlowType,
         bioSdkWrapper: BioSdkWrapper,
-        bioSdk: FingerprintConfiguration.BioSdk,
+        isCrossFingerMatchingEnabled: Boolean,
     ) = bioSdkWrapper.match(
         FingerprintIdentity("", probes),
         candidates,
-        isCrossFingerMatchingEnabled(flowType, bioSdk),
+        isCrossFingerMatchingEnabled,
     )
 
     private suspend fun isCrossFingerMatchingEnabled(
@@ -1,46 +1,151 @@
 package com.simprints.matcher.usecases
 
+import com.simprints.infra.config.store.models.ProjectConfiguration
 import com.simprints.matcher.MatchResultItem
-import java.util.TreeSet
 
+/**
+ * Keeps the [maxSize] results with the highest confidence.
+ *
+ * Results are stored in a bounded min-heap backed by parallel arrays, so the lowest kept confidence
+ * is always at the root and adding a result costs at most one sift without any node allocation.
+ * Results with the same confidence are all kept, ties are ranked by insertion order.
+ */
 internal class MatchResultSet<T : MatchResultItem>(
     private val maxSize: Int = MAX_RESULTS,
 ) {
-    private var lowestConfidence: Float = 0f
+    private var size = 0
+    private var nextOrder = 0L
 
-    private val treeSet = TreeSet { o1: T, o2: T ->
-        // Reverse order for descending sort
-        -1 * o1.confidence.compareTo(o2.confidence)
-    }
+    private val confidences = FloatArray(maxSize)
+    private val orders = LongArray(maxSize)
+    private val items = arrayOfNulls<Any>(maxSize)
 
     fun add(element: T): MatchResultSet<T> {
-        if (lowestConfidence > element.confidence) {
-            // skip adding if the last element is greater than the current element
-            return this
+        insert(element, element.confidence, nextOrder++)
+        return this
+    }
+
+    fun addAll(elements: MatchResultSet<T>): MatchResultSet<T> {
+        // Merged results rank after the ones already here, ties keep the insertion order of the merged set
+        val orderOffset = nextOrder
+        for (index in 0 until elements.size) {
+            insert(elements.items[index], elements.confidences[index], orderOffset + elements.orders[index])
         }
+        nextOrder += elements.nextOrder
+        return this
+    }
 
-        treeSet.add(element)
-        if (treeSet.size > maxSize) {
-            treeSet.pollLast()
+    fun toList(): List<T> {
+        // Results are popped from a copy of the heap, lowest first, and placed from the end of the list
+        val heap = MatchResultSet<T>(size)
+        heap.addAll(this)
+        val ranked = arrayOfNulls<Any>(size)
+        for (index in ranked.indices.reversed()) {
+            ranked[index] = heap.items[0]
+            heap.removeLowest()
+        }
+        @Suppress("UNCHECKED_CAST")
+        return ranked.asList() as List<T>
+    }
 
-            // Not that the set is full, we can skip adding elements
-            // with confidence lower than the current lowest
-            lowestConfidence = treeSet.last().confidence
+    private fun insert(
+        element: Any?,
+        confidence: Float,
+        order: Long,
+    ) {
+        if (size < maxSize) {
+            set(size, confidence, order, element)
+            siftUp(size++)
+        } else if (maxSize > 0 && ranksAboveLowest(confidence, order)) {
+            // Set is full, the lowest result is replaced only by a higher ranked one
+            set(0, confidence, order, element)
+            siftDown(0)
         }
-        return this
     }
 
-    fun addAll(elements: MatchResultSet<T>): MatchResultSet<T> {
-        elements.treeSet.forEach { add(it) }
-        return this
+    private fun ranksAboveLowest(
+        confidence: Float,
+        order: Long,
+    ): Boolean {
+        val byConfidence = confidence.compareTo(confidences[0])
+        return if (byConfidence != 0) byConfidence > 0 else order < orders[0]
+    }
+
+    private fun removeLowest() {
+        size--
+        set(0, confidences[size], orders[size], items[size])
+        items[size] = null
+        siftDown(0)
     }
 
-    fun toList(): List<T> = treeSet.toList()
+    private fun siftUp(index: Int) {
+        var child = index
+        while (child > 0) {
+            val parent = (child - 1) / 2
+            if (compare(child, parent) >= 0) return
+            swap(child, parent)
+            child = parent
+        }
+    }
+
+    private fun siftDown(index: Int) {
+        var parent = index
+        while (true) {
+            val left = 2 * parent + 1
+            if (left >= size) return
+            val right = left + 1
+            val lowest = if (right < size && compare(right, left) < 0) right else left
+            if (compare(lowest, parent) >= 0) return
+            swap(parent, lowest)
+            parent = lowest
+        }
+    }
+
+    /**
+     * Negative when the result at [i] ranks lower than the one at [j]: it has a lower confidence,
+     * or the same confidence but was added later.
+     */
+    private fun compare(
+        i: Int,
+        j: Int,
+    ): Int {
+        val byConfidence = confidences[i].compareTo(confidences[j])
+        return if (byConfidence != 0) byConfidence else orders[j].compareTo(orders[i])
+    }
+
+    private fun set(
+        index: Int,
+        confidence: Float,
+        order: Long,
+        element: Any?,
+    ) {
+        confidences[index] = confidence
+        orders[index] = order
+        items[index] = element
+    }
+
+    private fun swap(
+        i: Int,
+        j: Int,
+    ) {
+        val confidence = confidences[i]
+        val order = orders[i]
+        val element = items[i]
+        set(i, confidences[j], orders[j], items[j])
+        set(j, confidence, order, element)
+    }
 
     companion object {
         /**
          * Default max size of the result set.
          */
-        private const val MAX_RESULTS = 10
+        const val MAX_RESULTS = 10
     }
 }
+
+/**
+ * Max size of the result sets of the project, projects returning more candidates than the default keep all of them.
+ */
+internal fun ProjectConfiguration.matchResultsMaxSize() = identification
+    .maxNbOfReturnedCandidates
+    .coerceAtLeast(MatchResultSet.MAX_RESULTS)
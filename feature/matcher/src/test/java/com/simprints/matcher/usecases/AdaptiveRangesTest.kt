@@ -0,0 +1,72 @@
+package com.simprints.matcher.usecases
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+
+class AdaptiveRangesTest {
+    @Test
+    fun `Returns no ranges if no total`() {
+        assertThat(AdaptiveRanges(0, 1).toList()).isEmpty()
+    }
+
+    @Test
+    fun `Ramps up batch sizes until a batch is matched`() {
+        val ranges = AdaptiveRanges(100, 1, minBatchSize = 10, maxBatchSize = 50)
+
+        assertThat(ranges.toList()).isEqualTo(listOf(0..10, 10..30, 30..60, 60..100))
+        assertThat(ranges.batchSizes).isEqualTo(listOf(10, 20, 30, 40))
+    }
+
+    @Test
+    fun `Sizes batches based on the measured matching throughput`() {
+        val ranges = AdaptiveRanges(1000, 1, minBatchSize = 10, maxBatchSize = 500, targetBatchNanos = 100)
+        val iterator = ranges.iterator()
+
+        assertThat(iterator.next()).isEqualTo(0..10)
+        // 10 candidates matched in 5 nanos, so 200 candidates take the target duration
+        ranges.onBatchMatched(10, 5)
+
+        assertThat(iterator.next()).isEqualTo(10..210)
+    }
+
+    @Test
+    fun `Limits batch sizes to the configured bounds`() {
+        val ranges = AdaptiveRanges(10000, 1, minBatchSize = 10, maxBatchSize = 100, targetBatchNanos = 100)
+        val iterator = ranges.iterator()
+        iterator.next()
+
+        ranges.onBatchMatched(10, 1)
+        assertThat(iterator.next()).isEqualTo(10..110)
+
+        ranges.onBatchMatched(10, 1_000_000)
+        assertThat(iterator.next()).isEqualTo(110..120)
+    }
+
+    @Test
+    fun `Splits remaining candidates between workers`() {
+        val ranges = AdaptiveRanges(100, 4, minBatchSize = 10, maxBatchSize = 100, targetBatchNanos = 100)
+        val iterator = ranges.iterator()
+        iterator.next()
+        ranges.onBatchMatched(10, 1)
+
+        // 90 remaining candidates are shared by 4 workers
+        assertThat(iterator.next()).isEqualTo(10..33)
+    }
+
+    @Test
+    fun `Describes the chosen schedule`() {
+        var now = 0L
+        val ranges = AdaptiveRanges(30, 1, minBatchSize = 10, maxBatchSize = 10) { now }
+        ranges.forEach {
+            // Each batch takes a second to load, then the loader waits a second for the workers
+            now += 1_000_000_000
+            ranges.onCandidateLoaded()
+            now += 1_000_000_000
+            ranges.onBatchMatched(10, 500_000_000)
+        }
+
+        assertThat(ranges.describe()).isEqualTo(
+            "Batches: [10, 10, 10], loaded 10/s, matched 20/s per worker with 1 workers",
+        )
+    }
+}
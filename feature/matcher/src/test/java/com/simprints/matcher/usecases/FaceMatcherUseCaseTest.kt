@@ -7,6 +7,7 @@ import com.simprints.core.domain.face.FaceSample
 import com.simprints.face.infra.basebiosdk.matching.FaceMatcher
 import com.simprints.face.infra.biosdkresolver.ResolveFaceBioSdkUseCase
 import com.simprints.infra.config.store.models.Project
+import com.simprints.infra.config.sync.ConfigManager
 import com.simprints.infra.enrolment.records.repository.EnrolmentRecordRepository
 import com.simprints.infra.enrolment.records.repository.domain.models.BiometricDataSource
 import com.simprints.infra.enrolment.records.repository.domain.models.FaceIdentity
@@ -17,7 +18,9 @@ import com.simprints.testtools.common.coroutines.TestCoroutineRule
 import io.mockk.MockKAnnotations
 import io.mockk.coEvery
 import io.mockk.coVerify
+import io.mockk.every
 import io.mockk.impl.annotations.MockK
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.flow.toList
 import kotlinx.coroutines.test.runTest
 import org.junit.Before
@@ -40,6 +43,9 @@ internal class FaceMatcherUseCaseTest {
     @MockK
     lateinit var faceMatcher: FaceMatcher
 
+    @MockK
+    lateinit var configManager: ConfigManager
+
     @MockK
     lateinit var project: Project
 
@@ -54,6 +60,7 @@ internal class FaceMatcherUseCaseTest {
         useCase = FaceMatcherUseCase(
             enrolmentRecordRepository,
             resolveFaceBioSdk,
+            configManager,
             createRangesUseCase,
             testCoroutineRule.testCoroutineDispatcher,
         )
@@ -61,7 +68,7 @@ internal class FaceMatcherUseCaseTest {
 
     @Test
     fun `Skips matching if there are no probes`() = runTest {
-        coEvery { faceMatcher.getHighestComparisonScoreForCandidate(any(), any()) } returns 1f
+        coEvery { faceMatcher.matchBatch(any(), any()) } returns floatArrayOf(1f)
 
         val results = useCase
             .invoke(
@@ -74,7 +81,7 @@ internal class FaceMatcherUseCaseTest {
                 project,
             ).toList()
 
-        coVerify(exactly = 0) { faceMatcher.getHighestComparisonScoreForCandidate(any(), any()) }
+        coVerify(exactly = 0) { faceMatcher.matchBatch(any(), any()) }
 
         assertThat(results).containsExactly(
             MatcherUseCase.MatcherState.Success(
@@ -103,7 +110,7 @@ internal class FaceMatcherUseCaseTest {
                 project,
             ).toList()
 
-        coVerify(exactly = 0) { faceMatcher.getHighestComparisonScoreForCandidate(any(), any()) }
+        coVerify(exactly = 0) { faceMatcher.matchBatch(any(), any()) }
 
         assertThat(results).containsExactly(
             MatcherUseCase.MatcherState.Success(
@@ -124,16 +131,19 @@ internal class FaceMatcherUseCaseTest {
             ),
         )
         coEvery { enrolmentRecordRepository.count(any(), any()) } returns 1
-        coEvery { createRangesUseCase(any()) } returns listOf(0..99)
-        coEvery { enrolmentRecordRepository.loadFaceIdentities(any(), any(), any(), any(), any()) } coAnswers {
-            // Call the onCandidateLoaded callback (5th parameter)
-            val onCandidateLoaded = arg<() -> Unit>(4)
+        every { createRangesUseCase.adaptive(any(), any()) } returns AdaptiveRanges(100, 1)
+        every { enrolmentRecordRepository.loadFaceIdentities(any(), any<Iterable<IntRange>>(), any(), any(), any(), any()) } answers {
+            // Call the onCandidateLoaded callback (6th parameter)
+            val onCandidateLoaded = arg<() -> Unit>(5)
             onCandidateLoaded()
 
-            // Return the face identities
-            faceIdentities
+            // Return the face identities as a single batch
+            Channel<List<FaceIdentity>>(Channel.UNLIMITED).apply {
+                trySend(faceIdentities)
+                close()
+            }
         }
-        coEvery { faceMatcher.getHighestComparisonScoreForCandidate(any(), any()) } returns 42f
+        coEvery { faceMatcher.matchBatch(any(), any()) } returns floatArrayOf(42f)
 
         val results = useCase
             .invoke(
@@ -149,7 +159,7 @@ internal class FaceMatcherUseCaseTest {
                 project,
             ).toList()
 
-        coVerify { faceMatcher.getHighestComparisonScoreForCandidate(any(), any()) }
+        coVerify { faceMatcher.matchBatch(any(), any()) }
 
         assertThat(results).containsExactly(
             MatcherUseCase.MatcherState.LoadingStarted(totalCandidates),
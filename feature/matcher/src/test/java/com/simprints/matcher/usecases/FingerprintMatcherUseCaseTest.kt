@@ -19,7 +19,9 @@ import com.simprints.testtools.common.coroutines.TestCoroutineRule
 import io.mockk.MockKAnnotations
 import io.mockk.coEvery
 import io.mockk.coVerify
+import io.mockk.every
 import io.mockk.impl.annotations.MockK
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.flow.toList
 import kotlinx.coroutines.test.runTest
 import org.junit.Before
@@ -133,32 +135,38 @@ internal class FingerprintMatcherUseCaseTest {
     @Test
     fun `Correctly calls SDK matcher`() = runTest {
         coEvery { enrolmentRecordRepository.count(any(), any()) } returns 100
-        coEvery { createRangesUseCase(any()) } returns listOf(0..99)
-        coEvery {
+        every { createRangesUseCase.adaptive(any(), any()) } returns AdaptiveRanges(100, 1)
+        every {
             enrolmentRecordRepository.loadFingerprintIdentities(
                 any(),
-                any(),
+                any<Iterable<IntRange>>(),
                 any(),
                 project,
-                onCandidateLoaded
+                any(),
+                any(),
             )
-        } returns listOf(
-            FingerprintIdentity(
-                "personId",
+        } returns Channel<List<FingerprintIdentity>>(Channel.UNLIMITED).apply {
+            trySend(
                 listOf(
-                    fingerprintSample(IFingerIdentifier.RIGHT_5TH_FINGER),
-                    fingerprintSample(IFingerIdentifier.RIGHT_4TH_FINGER),
-                    fingerprintSample(IFingerIdentifier.RIGHT_3RD_FINGER),
-                    fingerprintSample(IFingerIdentifier.RIGHT_INDEX_FINGER),
-                    fingerprintSample(IFingerIdentifier.RIGHT_THUMB),
-                    fingerprintSample(IFingerIdentifier.LEFT_THUMB),
-                    fingerprintSample(IFingerIdentifier.LEFT_INDEX_FINGER),
-                    fingerprintSample(IFingerIdentifier.LEFT_3RD_FINGER),
-                    fingerprintSample(IFingerIdentifier.LEFT_4TH_FINGER),
-                    fingerprintSample(IFingerIdentifier.LEFT_5TH_FINGER),
+                    FingerprintIdentity(
+                        "personId",
+                        listOf(
+                            fingerprintSample(IFingerIdentifier.RIGHT_5TH_FINGER),
+                            fingerprintSample(IFingerIdentifier.RIGHT_4TH_FINGER),
+                            fingerprintSample(IFingerIdentifier.RIGHT_3RD_FINGER),
+                            fingerprintSample(IFingerIdentifier.RIGHT_INDEX_FINGER),
+                            fingerprintSample(IFingerIdentifier.RIGHT_THUMB),
+                            fingerprintSample(IFingerIdentifier.LEFT_THUMB),
+                            fingerprintSample(IFingerIdentifier.LEFT_INDEX_FINGER),
+                            fingerprintSample(IFingerIdentifier.LEFT_3RD_FINGER),
+                            fingerprintSample(IFingerIdentifier.LEFT_4TH_FINGER),
+                            fingerprintSample(IFingerIdentifier.LEFT_5TH_FINGER),
+                        ),
+                    ),
                 ),
-            ),
-        )
+            )
+            close()
+        }
         coEvery { bioSdkWrapper.match(any(), any(), any()) } returns listOf()
 
         useCase.invoke(
@@ -46,4 +46,79 @@ class MatchResultSetTest {
             ),
         )
     }
+
+    @Test
+    fun `Keeps results with the same confidence`() {
+        val set = MatchResultSet<FingerprintMatchResult.Item>(3)
+
+        set.add(FingerprintMatchResult.Item("1", 0.5f))
+        set.add(FingerprintMatchResult.Item("2", 0.5f))
+        set.add(FingerprintMatchResult.Item("3", 0.5f))
+        set.add(FingerprintMatchResult.Item("4", 0.5f))
+
+        assertThat(set.toList()).isEqualTo(
+            listOf(
+                FingerprintMatchResult.Item("1", 0.5f),
+                FingerprintMatchResult.Item("2", 0.5f),
+                FingerprintMatchResult.Item("3", 0.5f),
+            ),
+        )
+    }
+
+    @Test
+    fun `Keeps highest results of unordered inserts`() {
+        val set = MatchResultSet<FingerprintMatchResult.Item>(10)
+        val confidences = (0 until 1000).map { (it * 7919 % 1000) / 10f }
+
+        confidences.forEach { set.add(FingerprintMatchResult.Item(it.toString(), it)) }
+
+        assertThat(set.toList().map { it.confidence })
+            .isEqualTo(confidences.sortedDescending().take(10))
+    }
+
+    @Test
+    fun `Merges sets keeping results with the same confidence`() {
+        val setOne = MatchResultSet<FingerprintMatchResult.Item>(2)
+        setOne.add(FingerprintMatchResult.Item("1", 0.3f))
+        setOne.add(FingerprintMatchResult.Item("2", 0.3f))
+
+        val setTwo = MatchResultSet<FingerprintMatchResult.Item>(2)
+        setTwo.add(FingerprintMatchResult.Item("3", 0.3f))
+        setTwo.add(FingerprintMatchResult.Item("4", 0.1f))
+
+        val set = MatchResultSet<FingerprintMatchResult.Item>(4)
+        set.addAll(setOne)
+        set.addAll(setTwo)
+
+        assertThat(set.toList()).isEqualTo(
+            listOf(
+                FingerprintMatchResult.Item("1", 0.3f),
+                FingerprintMatchResult.Item("2", 0.3f),
+                FingerprintMatchResult.Item("3", 0.3f),
+                FingerprintMatchResult.Item("4", 0.1f),
+            ),
+        )
+    }
+
+    @Test
+    fun `Merges a larger set keeping the highest results in insertion order`() {
+        val other = MatchResultSet<FingerprintMatchResult.Item>(4)
+        other.add(FingerprintMatchResult.Item("1", 0.2f))
+        other.add(FingerprintMatchResult.Item("2", 0.5f))
+        other.add(FingerprintMatchResult.Item("3", 0.5f))
+        other.add(FingerprintMatchResult.Item("4", 0.5f))
+
+        val set = MatchResultSet<FingerprintMatchResult.Item>(3)
+        set.add(FingerprintMatchResult.Item("0", 0.5f))
+        set.addAll(other)
+        set.add(FingerprintMatchResult.Item("5", 0.5f))
+
+        assertThat(set.toList()).isEqualTo(
+            listOf(
+                FingerprintMatchResult.Item("0", 0.5f),
+                FingerprintMatchResult.Item("2", 0.5f),
+                FingerprintMatchResult.Item("3", 0.5f),
+            ),
+        )
+    }
 }
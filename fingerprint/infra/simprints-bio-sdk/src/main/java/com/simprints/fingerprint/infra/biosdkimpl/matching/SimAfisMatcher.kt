@@ -1,5 +1,6 @@
 package com.simprints.fingerprint.infra.biosdkimpl.matching
 
+import com.simprints.core.DispatcherBG
 import com.simprints.core.ExcludedFromGeneratedTestCoverageReports
 import com.simprints.fingerprint.infra.basebiosdk.matching.domain.FingerIdentifier
 import com.simprints.fingerprint.infra.basebiosdk.matching.domain.FingerIdentifier.LEFT_3RD_FINGER
@@ -19,6 +20,10 @@ import com.simprints.fingerprint.infra.simafiswrapper.JNILibAfisInterface
 import com.simprints.fingerprint.infra.simafiswrapper.models.SimAfisFingerIdentifier
 import com.simprints.fingerprint.infra.simafiswrapper.models.SimAfisFingerprint
 import com.simprints.fingerprint.infra.simafiswrapper.models.SimAfisPerson
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
 import java.nio.ByteBuffer
 import javax.inject.Inject
 
@@ -33,8 +38,9 @@ import javax.inject.Inject
  */
 internal class SimAfisMatcher @Inject constructor(
     private val jniLibAfis: JNILibAfisInterface,
+    @DispatcherBG private val dispatcher: CoroutineDispatcher,
 ) {
-    fun match(
+    suspend fun match(
         probe: FingerprintIdentity,
         candidates: List<FingerprintIdentity>,
         crossFingerComparison: Boolean,
@@ -88,37 +94,58 @@ internal class SimAfisMatcher @Inject constructor(
         LEFT_5TH_FINGER -> SimAfisFingerIdentifier.LEFT_5TH_FINGER
     }
 
-    private fun crossFingerMatch(
+    /**
+     * Candidates are split in several chunks per core so that idle workers can pick up the remaining
+     * chunks while others are still busy. Results are returned in the same order as the candidates.
+     */
+    private suspend fun crossFingerMatch(
         probe: FingerprintIdentity,
         candidates: List<FingerprintIdentity>,
-    ) = candidates.map { crossFingerMatching(probe, it, jniLibAfis) }
+    ): List<MatchResult> = coroutineScope {
+        // Probe buffers are prepared once and shared by all candidates
+        val probeTemplates = probe.fingerprintsTemplates
+        val chunksCount = jniLibAfis.getNbCores().coerceAtLeast(1) * CHUNKS_PER_CORE
+        val chunkSize = ((candidates.size + chunksCount - 1) / chunksCount).coerceAtLeast(1)
+
+        candidates
+            .chunked(chunkSize)
+            .map { chunk ->
+                async(dispatcher) {
+                    // The buffer only lives as long as the chunk, so it is released once matching is done
+                    val candidateTemplates = CandidateTemplateBuffer()
+                    chunk.map { crossFingerMatching(probeTemplates, it, candidateTemplates) }
+                }
+            }.awaitAll()
+            .flatten()
+    }
 
     /**
      * This method gets the matching score by:
      * - Getting the maximum matching score for each probe finger template with all candidate finger templates
      * - The overall score is the average of the individual finger match scores
-     * @param probe
+     * @param probeTemplates
      * @param candidate
+     * @param candidateTemplates reusable buffer for candidate templates
      * @return MatchResult
      */
     private fun crossFingerMatching(
-        probe: FingerprintIdentity,
+        probeTemplates: List<ByteBuffer>,
         candidate: FingerprintIdentity,
-        jniLibAfis: JNILibAfisInterface,
+        candidateTemplates: CandidateTemplateBuffer,
     ): MatchResult {
         // Number of fingers used in matching
-        val fingers = probe.fingerprintsTemplates.size
-        // Sum of maximum matching score for each finger
-        val total = probe.fingerprintsTemplates
-            .sumOf { probeTemplate ->
-                candidate.fingerprintsTemplates
-                    .maxOf { candidateTemplate ->
-                        jniLibAfis.verify(
-                            probeTemplate,
-                            candidateTemplate,
-                        )
-                    }.toDouble()
+        val fingers = probeTemplates.size
+        // Maximum matching score for each finger, each candidate template is copied to a buffer only once
+        val maxScores = FloatArray(fingers)
+        candidate.fingerprints.forEach { fingerprint ->
+            val candidateTemplate = candidateTemplates.wrap(fingerprint.template)
+            probeTemplates.forEachIndexed { index, probeTemplate ->
+                val score = jniLibAfis.verify(probeTemplate, candidateTemplate)
+                if (score > maxScores[index]) maxScores[index] = score
             }
+        }
+        // Sum of maximum matching score for each finger
+        val total = maxScores.sumOf { it.toDouble() }
         // Matching score  = total/number of fingers
         return MatchResult(candidate.subjectId, getOverallScore(total, fingers))
     }
@@ -132,8 +159,32 @@ internal class SimAfisMatcher @Inject constructor(
         (total / fingers).toFloat()
     }
 
+    /**
+     * Reusable direct buffer for the candidate templates of a chunk. ISO templates vary in length, so a single
+     * buffer grows to the largest template seen and its limit is set to the size of the current template.
+     * The native matcher reads the template length from the ISO record header.
+     */
+    private class CandidateTemplateBuffer {
+        private var buffer = ByteBuffer.allocateDirect(INITIAL_TEMPLATE_BUFFER_SIZE)
+
+        fun wrap(template: ByteArray): ByteBuffer {
+            if (template.size > buffer.capacity()) {
+                buffer = ByteBuffer.allocateDirect(template.size)
+            }
+            buffer.clear()
+            buffer.put(template)
+            buffer.limit(template.size)
+            return buffer
+        }
+    }
+
     companion object {
         const val SIMAFIS_MATCHER_SUPPORTED_TEMPLATE_FORMAT = "ISO_19794_2"
+
+        private const val CHUNKS_PER_CORE = 4
+
+        // Large enough for most ISO templates, so that buffers rarely need to grow
+        private const val INITIAL_TEMPLATE_BUFFER_SIZE = 1024
     }
 }
 
@@ -8,9 +8,9 @@ import com.simprints.fingerprint.infra.simafiswrapper.JNILibAfisInterface
 import io.mockk.MockKAnnotations
 import io.mockk.every
 import io.mockk.impl.annotations.MockK
-import io.mockk.mockk
-import io.mockk.mockkStatic
 import io.mockk.verify
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.test.UnconfinedTestDispatcher
 import kotlinx.coroutines.test.runTest
 import org.junit.Before
 import org.junit.Test
@@ -26,7 +26,7 @@ class SimAfisMatcherTest {
     fun setUp() {
         MockKAnnotations.init(this)
         every { jniLibAfis.getNbCores() } returns 1
-        simAfisMatcher = SimAfisMatcher(jniLibAfis)
+        simAfisMatcher = SimAfisMatcher(jniLibAfis, UnconfinedTestDispatcher())
     }
 
     @Test
@@ -70,28 +70,16 @@ class SimAfisMatcherTest {
 
     @Test
     fun `test cross finger match`() = runTest {
-        mockkStatic("com.simprints.fingerprint.infra.biosdkimpl.matching.SimAfisMatcherKt")
-        val template1 = mockk<ByteBuffer>()
-        val template2 = mockk<ByteBuffer>()
-        val template3 = mockk<ByteBuffer>()
-
-        val probe = mockk<FingerprintIdentity> {
-            every { templateFormatNotSupportedBySimAfisMatcher() } returns false
-            every { fingerprintsTemplates } returns listOf(template1, template2)
-        }
-        val candidate1 = mockk<FingerprintIdentity> {
-            every { subjectId } returns "candidate1"
-            every { templateFormatNotSupportedBySimAfisMatcher() } returns false
-            every { fingerprintsTemplates } returns listOf(template2, template1)
-        }
-        val candidate2 = mockk<FingerprintIdentity> {
-            every { subjectId } returns "candidate2"
-            every { templateFormatNotSupportedBySimAfisMatcher() } returns false
-            every { fingerprintsTemplates } returns listOf(template3, template1)
-        }
+        val template1 = IsoFingerprintTemplateGenerator.generate(1)
+        val template2 = IsoFingerprintTemplateGenerator.generate(1)
+        val template3 = IsoFingerprintTemplateGenerator.generate(1)
+
+        val probe = fingerprintIdentity("probe", template1, template2)
+        val candidate1 = fingerprintIdentity("candidate1", template2, template1)
+        val candidate2 = fingerprintIdentity("candidate2", template3, template1)
 
         every { jniLibAfis.verify(any(), any()) } answers {
-            if (firstArg<ByteBuffer>() === secondArg<ByteBuffer>()) 1F else 0F
+            if (firstArg<ByteBuffer>().contentEquals(secondArg())) 1F else 0F
         }
         // When
         val matchingResult = simAfisMatcher.match(
@@ -99,16 +87,56 @@ class SimAfisMatcherTest {
             listOf(candidate1, candidate2),
             true,
         )
-        val maxScore = matchingResult.maxOf { it.score }
-        val minScore = matchingResult.minOf { it.score }
         // Then
         verify(exactly = 8) { jniLibAfis.verify(any(), any()) }
-        assertThat(maxScore).isEqualTo(1)
-        assertThat(minScore).isEqualTo(0.5f)
+        assertThat(matchingResult.first { it.id == "candidate1" }.score).isEqualTo(1)
+        assertThat(matchingResult.first { it.id == "candidate2" }.score).isEqualTo(0.5f)
+    }
+
+    @Test
+    fun `test cross finger match with candidate templates of different sizes`() = runTest {
+        val template1 = IsoFingerprintTemplateGenerator.generate(1)
+        val template2 = IsoFingerprintTemplateGenerator.generate(3)
+
+        val probe = fingerprintIdentity("probe", template1, template2)
+        val candidate1 = fingerprintIdentity("candidate1", template2, template1)
+        val candidate2 = fingerprintIdentity("candidate2", template1, template1)
+
+        every { jniLibAfis.verify(any(), any()) } answers {
+            if (firstArg<ByteBuffer>().contentEquals(secondArg())) 1F else 0F
+        }
+        // When
+        val matchingResult = simAfisMatcher.match(
+            probe,
+            listOf(candidate1, candidate2),
+            true,
+        )
+        // Then
+        assertThat(matchingResult.map { it.score }).containsExactly(1f, 0.5f).inOrder()
+    }
+
+    @Test
+    fun `test parallel cross finger match returns same results as serial match`() = runTest {
+        val templates = List(4) { IsoFingerprintTemplateGenerator.generate(1) }
+        val probe = fingerprintIdentity("probe", templates[0], templates[1])
+        val candidates = List(100) { index ->
+            fingerprintIdentity("candidate$index", templates[index % 4], templates[(index / 4) % 4])
+        }
+        every { jniLibAfis.verify(any(), any()) } answers {
+            if (firstArg<ByteBuffer>().contentEquals(secondArg())) 1F else 0F
+        }
+        val serialResult = simAfisMatcher.match(probe, candidates, true)
+
+        every { jniLibAfis.getNbCores() } returns 4
+        val parallelResult = SimAfisMatcher(jniLibAfis, Dispatchers.Default).match(probe, candidates, true)
+
+        assertThat(parallelResult.map { it.id to it.score })
+            .containsExactlyElementsIn(serialResult.map { it.id to it.score })
+            .inOrder()
     }
 
     @Test
-    fun `test crossFingerMatching zero fingers success`() {
+    fun `test crossFingerMatching zero fingers success`() = runTest {
         // Given
         every { jniLibAfis.verify(any(), any()) } returns 1F
         val probe = FingerprintIdentity("probe", listOf())
@@ -134,6 +162,17 @@ class SimAfisMatcherTest {
         assertThat(result[0].score).isEqualTo(0)
     }
 
+    private fun fingerprintIdentity(
+        subjectId: String,
+        vararg templates: ByteArray,
+    ) = FingerprintIdentity(
+        subjectId,
+        templates.map { Fingerprint(FingerIdentifier.LEFT_THUMB, it, SIMAFIS_MATCHER_SUPPORTED_TEMPLATE_FORMAT) },
+    )
+
+    // Compares the whole content of the buffers regardless of their positions
+    private fun ByteBuffer.contentEquals(other: ByteBuffer) = duplicate().rewind() == other.duplicate().rewind()
+
     companion object {
         const val SIMAFIS_MATCHER_SUPPORTED_TEMPLATE_FORMAT = "ISO_19794_2"
     }
@@ -22,8 +22,11 @@ import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.FlowCollector
 import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.map
+import java.util.concurrent.atomic.AtomicLong
 import javax.inject.Inject
+import javax.inject.Singleton
 
+@Singleton
 internal class ConfigRepositoryImpl @Inject constructor(
     private val localDataSource: ConfigLocalDataSource,
     private val tokenizationProcessor: TokenizationProcessor,
@@ -34,6 +37,28 @@ internal class ConfigRepositoryImpl @Inject constructor(
         const val PRIVACY_NOTICE_FILE = "privacy_notice"
     }
 
+    /**
+     * Last tokenized configuration, reused as long as neither the stored configuration
+     * nor the project tokenization keys have changed.
+     */
+    @Volatile
+    private var tokenizedConfiguration: TokenizedConfigurationSnapshot? = null
+
+    private val tokenizedConfigurationHits = AtomicLong()
+    private val tokenizedConfigurationMisses = AtomicLong()
+
+    /**
+     * Number of times the tokenized configuration was served from memory.
+     */
+    val tokenizedConfigurationHitCount: Long
+        get() = tokenizedConfigurationHits.get()
+
+    /**
+     * Number of times the configuration had to be tokenized again.
+     */
+    val tokenizedConfigurationMissCount: Long
+        get() = tokenizedConfigurationMisses.get()
+
     override suspend fun getProject(): Project = localDataSource.getProject()
 
     override suspend fun refreshProject(projectId: String): ProjectWithConfig =
@@ -59,6 +84,7 @@ internal class ConfigRepositoryImpl @Inject constructor(
         localDataSource.updateDeviceConfiguration(update)
 
     override suspend fun clearData() {
+        tokenizedConfiguration = null
         localDataSource.clearProject()
         localDataSource.clearProjectConfiguration()
         localDataSource.clearDeviceConfiguration()
@@ -80,23 +106,39 @@ internal class ConfigRepositoryImpl @Inject constructor(
     private suspend fun tokenizeModules(config: ProjectConfiguration): ProjectConfiguration {
         // No need to handle NoSuchElementException, the configuration might get fetched while there is no project
         val project = runCatching { getProject() }.getOrNull() ?: return config
-        return config.copy(
+
+        val snapshot = tokenizedConfiguration
+        if (snapshot != null && snapshot.config == config && snapshot.tokenizationKeys == project.tokenizationKeys) {
+            tokenizedConfigurationHits.incrementAndGet()
+            return snapshot.tokenizedConfig
+        }
+        tokenizedConfigurationMisses.incrementAndGet()
+
+        val moduleOptions = config.synchronization.down.moduleOptions
+        val tokenizedModules = tokenizationProcessor
+            .encryptAll(
+                decrypted = moduleOptions.filterIsInstance<TokenizableString.Raw>(),
+                tokenKeyType = TokenKeyType.ModuleId,
+                project = project,
+            ).iterator()
+        val tokenizedConfig = config.copy(
             synchronization = config.synchronization.copy(
                 down = config.synchronization.down.copy(
-                    moduleOptions = config.synchronization.down.moduleOptions.map { moduleId ->
+                    moduleOptions = moduleOptions.map { moduleId ->
                         when (moduleId) {
-                            is TokenizableString.Raw -> tokenizationProcessor.encrypt(
-                                decrypted = moduleId,
-                                tokenKeyType = TokenKeyType.ModuleId,
-                                project = project,
-                            )
-
+                            is TokenizableString.Raw -> tokenizedModules.next()
                             is TokenizableString.Tokenized -> moduleId
                         }
                     },
                 ),
             ),
         )
+        tokenizedConfiguration = TokenizedConfigurationSnapshot(
+            config = config,
+            tokenizationKeys = project.tokenizationKeys,
+            tokenizedConfig = tokenizedConfig,
+        )
+        return tokenizedConfig
     }
 
     private suspend fun downloadPrivacyNotice(
@@ -119,3 +161,9 @@ internal class ConfigRepositoryImpl @Inject constructor(
         }
     }
 }
+
+private class TokenizedConfigurationSnapshot(
+    val config: ProjectConfiguration,
+    val tokenizationKeys: Map<TokenKeyType, String>,
+    val tokenizedConfig: ProjectConfiguration,
+)
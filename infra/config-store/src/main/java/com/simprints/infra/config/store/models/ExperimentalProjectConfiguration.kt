@@ -33,14 +33,26 @@ data class ExperimentalProjectConfiguration(
             ?.coerceIn(FACE_AUTO_CAPTURE_IMAGING_DURATION_MILLIS_MIN, FACE_AUTO_CAPTURE_IMAGING_DURATION_MILLIS_MAX)
             ?: FACE_AUTO_CAPTURE_IMAGING_DURATION_MILLIS_DEFAULT
 
+    val downSyncMaxConcurrentStreams: Int
+        get() = customConfig
+            ?.get(DOWN_SYNC_MAX_CONCURRENT_STREAMS)
+            ?.let { it as? Int }
+            ?.coerceIn(DOWN_SYNC_MAX_CONCURRENT_STREAMS_MIN, DOWN_SYNC_MAX_CONCURRENT_STREAMS_MAX)
+            ?: DOWN_SYNC_MAX_CONCURRENT_STREAMS_DEFAULT
+
     companion object {
         internal const val ENABLE_ID_POOL_VALIDATION = "validateIdentificationPool"
         internal const val SINGLE_GOOD_QUALITY_FALLBACK_REQUIRED = "singleQualityFallbackRequired"
         internal const val FACE_AUTO_CAPTURE_ENABLED = "faceAutoCaptureEnabled"
         internal const val FACE_AUTO_CAPTURE_IMAGING_DURATION_MILLIS = "faceAutoCaptureImagingDurationMillis"
+        internal const val DOWN_SYNC_MAX_CONCURRENT_STREAMS = "downSyncMaxConcurrentStreams"
 
         const val FACE_AUTO_CAPTURE_IMAGING_DURATION_MILLIS_MIN = 1L
         const val FACE_AUTO_CAPTURE_IMAGING_DURATION_MILLIS_DEFAULT = 3_000L
         const val FACE_AUTO_CAPTURE_IMAGING_DURATION_MILLIS_MAX = 60_000L
+
+        const val DOWN_SYNC_MAX_CONCURRENT_STREAMS_MIN = 1
+        const val DOWN_SYNC_MAX_CONCURRENT_STREAMS_DEFAULT = 4
+        const val DOWN_SYNC_MAX_CONCURRENT_STREAMS_MAX = 8
     }
 }
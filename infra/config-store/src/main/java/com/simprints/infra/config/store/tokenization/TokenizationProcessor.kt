@@ -62,4 +62,47 @@ class TokenizationProcessor @Inject constructor(
             encrypted
         }
     }
+
+    /**
+     * Encrypts all the [decrypted] values with the same keyset, see [encrypt].
+     * If the batch fails, values are encrypted one by one so that a single failure does not affect the others.
+     *
+     * @return encryption results in the same order as the [decrypted] values
+     */
+    fun encryptAll(
+        decrypted: List<TokenizableString.Raw>,
+        tokenKeyType: TokenKeyType,
+        project: Project,
+    ): List<TokenizableString> {
+        val moduleKeyset = project.tokenizationKeys[tokenKeyType] ?: return decrypted
+        return try {
+            stringTokenizer
+                .encryptAll(decrypted.map { it.value }, moduleKeyset)
+                .map { it.asTokenizableEncrypted() }
+        } catch (e: Exception) {
+            decrypted.map { encrypt(it, tokenKeyType, project) }
+        }
+    }
+
+    /**
+     * Decrypts all the [encrypted] values with the same keyset, see [decrypt].
+     * If the batch fails, values are decrypted one by one so that a single failure does not affect the others.
+     *
+     * @return decryption results in the same order as the [encrypted] values
+     */
+    fun decryptAll(
+        encrypted: List<TokenizableString.Tokenized>,
+        tokenKeyType: TokenKeyType,
+        project: Project,
+        logError: Boolean = true,
+    ): List<TokenizableString> {
+        val moduleKeyset = project.tokenizationKeys[tokenKeyType] ?: return encrypted
+        return try {
+            stringTokenizer
+                .decryptAll(encrypted.map { it.value }, moduleKeyset)
+                .map { it.asTokenizableRaw() }
+        } catch (e: Exception) {
+            encrypted.map { decrypt(it, tokenKeyType, project, logError) }
+        }
+    }
 }
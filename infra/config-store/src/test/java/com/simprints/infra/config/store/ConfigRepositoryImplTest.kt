@@ -1,6 +1,9 @@
 package com.simprints.infra.config.store
 
 import com.google.common.truth.Truth.assertThat
+import com.simprints.core.domain.tokenization.TokenizableString
+import com.simprints.core.domain.tokenization.asTokenizableEncrypted
+import com.simprints.core.domain.tokenization.asTokenizableRaw
 import com.simprints.infra.config.store.ConfigRepositoryImpl.Companion.PRIVACY_NOTICE_FILE
 import com.simprints.infra.config.store.local.ConfigLocalDataSource
 import com.simprints.infra.config.store.models.DeviceConfiguration
@@ -9,8 +12,10 @@ import com.simprints.infra.config.store.models.PrivacyNoticeResult.FailedBecause
 import com.simprints.infra.config.store.models.PrivacyNoticeResult.InProgress
 import com.simprints.infra.config.store.models.PrivacyNoticeResult.Succeed
 import com.simprints.infra.config.store.models.Project
+import com.simprints.infra.config.store.models.ProjectConfiguration
 import com.simprints.infra.config.store.models.ProjectState
 import com.simprints.infra.config.store.models.ProjectWithConfig
+import com.simprints.infra.config.store.models.TokenKeyType
 import com.simprints.infra.config.store.remote.ConfigRemoteDataSource
 import com.simprints.infra.config.store.testtools.deviceConfiguration
 import com.simprints.infra.config.store.testtools.deviceState
@@ -260,4 +265,62 @@ class ConfigRepositoryImplTest {
         assertThat(result).isEqualTo(config)
         coVerify { localDataSource.getProjectConfiguration() }
     }
+
+    @Test
+    fun `should reuse the tokenized project config while config and tokenization keys are unchanged`() = runTest {
+        val config = projectConfiguration.withModules("module1".asTokenizableRaw())
+        coEvery { localDataSource.getProjectConfiguration() } returns config
+        coEvery { localDataSource.getProject() } returns project
+        every { tokenizationProcessor.encryptAll(any(), any(), any()) } returns listOf("token1".asTokenizableEncrypted())
+
+        val first = configServiceImpl.getProjectConfiguration()
+        val second = configServiceImpl.getProjectConfiguration()
+
+        assertThat(second).isSameInstanceAs(first)
+        assertThat(second.synchronization.down.moduleOptions).containsExactly("token1".asTokenizableEncrypted())
+        verify(exactly = 1) { tokenizationProcessor.encryptAll(any(), any(), any()) }
+        assertThat(configServiceImpl.tokenizedConfigurationHitCount).isEqualTo(1)
+        assertThat(configServiceImpl.tokenizedConfigurationMissCount).isEqualTo(1)
+    }
+
+    @Test
+    fun `should tokenize the project config again when tokenization keys change`() = runTest {
+        coEvery { localDataSource.getProjectConfiguration() } returns projectConfiguration.withModules("module1".asTokenizableRaw())
+        coEvery { localDataSource.getProject() } returnsMany listOf(
+            project,
+            project.copy(tokenizationKeys = mapOf(TokenKeyType.ModuleId to "other keyset")),
+        )
+
+        every { tokenizationProcessor.encryptAll(any(), any(), any()) } answers { firstArg() }
+
+        configServiceImpl.getProjectConfiguration()
+        configServiceImpl.getProjectConfiguration()
+
+        verify(exactly = 2) { tokenizationProcessor.encryptAll(any(), any(), any()) }
+        assertThat(configServiceImpl.tokenizedConfigurationHitCount).isEqualTo(0)
+        assertThat(configServiceImpl.tokenizedConfigurationMissCount).isEqualTo(2)
+    }
+
+    @Test
+    fun `should tokenize the project config again when the stored config changes`() = runTest {
+        coEvery { localDataSource.getProject() } returns project
+        coEvery { localDataSource.getProjectConfiguration() } returnsMany listOf(
+            projectConfiguration.withModules("module1".asTokenizableRaw()),
+            projectConfiguration.withModules("module2".asTokenizableRaw()),
+        )
+
+        every { tokenizationProcessor.encryptAll(any(), any(), any()) } answers { firstArg() }
+
+        configServiceImpl.getProjectConfiguration()
+        configServiceImpl.getProjectConfiguration()
+
+        verify(exactly = 2) { tokenizationProcessor.encryptAll(any(), any(), any()) }
+        assertThat(configServiceImpl.tokenizedConfigurationMissCount).isEqualTo(2)
+    }
+
+    private fun ProjectConfiguration.withModules(vararg modules: TokenizableString) = copy(
+        synchronization = synchronization.copy(
+            down = synchronization.down.copy(moduleOptions = modules.toList()),
+        ),
+    )
 }
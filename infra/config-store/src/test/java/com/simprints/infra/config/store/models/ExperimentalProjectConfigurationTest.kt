@@ -1,6 +1,10 @@
 package com.simprints.infra.config.store.models
 
 import com.google.common.truth.Truth.assertThat
+import com.simprints.infra.config.store.models.ExperimentalProjectConfiguration.Companion.DOWN_SYNC_MAX_CONCURRENT_STREAMS
+import com.simprints.infra.config.store.models.ExperimentalProjectConfiguration.Companion.DOWN_SYNC_MAX_CONCURRENT_STREAMS_DEFAULT
+import com.simprints.infra.config.store.models.ExperimentalProjectConfiguration.Companion.DOWN_SYNC_MAX_CONCURRENT_STREAMS_MAX
+import com.simprints.infra.config.store.models.ExperimentalProjectConfiguration.Companion.DOWN_SYNC_MAX_CONCURRENT_STREAMS_MIN
 import com.simprints.infra.config.store.models.ExperimentalProjectConfiguration.Companion.ENABLE_ID_POOL_VALIDATION
 import com.simprints.infra.config.store.models.ExperimentalProjectConfiguration.Companion.SINGLE_GOOD_QUALITY_FALLBACK_REQUIRED
 import com.simprints.infra.config.store.models.ExperimentalProjectConfiguration.Companion.FACE_AUTO_CAPTURE_ENABLED
@@ -76,4 +80,22 @@ internal class ExperimentalProjectConfigurationTest {
             assertThat(ExperimentalProjectConfiguration(config).faceAutoCaptureImagingDurationMillis).isEqualTo(result)
         }
     }
+
+    @Test
+    fun `check down-sync max concurrent streams correctly`() {
+        mapOf<Map<String, Any>, Int>(
+            // Value not present
+            emptyMap<String, Any>() to DOWN_SYNC_MAX_CONCURRENT_STREAMS_DEFAULT,
+            // Value not int
+            mapOf(DOWN_SYNC_MAX_CONCURRENT_STREAMS to true) to DOWN_SYNC_MAX_CONCURRENT_STREAMS_DEFAULT,
+            // Value present and lesser than min
+            mapOf(DOWN_SYNC_MAX_CONCURRENT_STREAMS to 0) to DOWN_SYNC_MAX_CONCURRENT_STREAMS_MIN,
+            // Value present and greater than max
+            mapOf(DOWN_SYNC_MAX_CONCURRENT_STREAMS to 100) to DOWN_SYNC_MAX_CONCURRENT_STREAMS_MAX,
+            // Value present and within the range
+            mapOf(DOWN_SYNC_MAX_CONCURRENT_STREAMS to 2) to 2,
+        ).forEach { (config, result) ->
+            assertThat(ExperimentalProjectConfiguration(config).downSyncMaxConcurrentStreams).isEqualTo(result)
+        }
+    }
 }
@@ -92,4 +92,64 @@ class TokenizationProcessorTest {
         )
         assertThat(result).isEqualTo(encrypted)
     }
+
+    @Test
+    fun `when tokenization key is presented, should encrypt all values`() {
+        every { stringTokenizer.encryptAll(listOf(raw, raw), keySet) } returns listOf(encrypted, encrypted)
+        val result = manager.encryptAll(
+            decrypted = listOf(raw.asTokenizableRaw(), raw.asTokenizableRaw()),
+            tokenKeyType = tokenKeyType,
+            project = project,
+        )
+        assertThat(result).containsExactly(encrypted.asTokenizableEncrypted(), encrypted.asTokenizableEncrypted())
+    }
+
+    @Test
+    fun `when tokenization key is not presented, should not encrypt any value`() {
+        every { project.tokenizationKeys } returns emptyMap()
+        val decrypted = listOf(raw.asTokenizableRaw())
+        val result = manager.encryptAll(
+            decrypted = decrypted,
+            tokenKeyType = tokenKeyType,
+            project = project,
+        )
+        assertThat(result).isEqualTo(decrypted)
+    }
+
+    @Test
+    fun `when batch encryption throws exception, should encrypt values one by one`() {
+        val other = "other"
+        every { stringTokenizer.encryptAll(any(), any()) } throws Exception()
+        every { stringTokenizer.encrypt(other, keySet) } throws Exception()
+        val result = manager.encryptAll(
+            decrypted = listOf(raw.asTokenizableRaw(), other.asTokenizableRaw()),
+            tokenKeyType = tokenKeyType,
+            project = project,
+        )
+        assertThat(result).containsExactly(encrypted.asTokenizableEncrypted(), other.asTokenizableRaw()).inOrder()
+    }
+
+    @Test
+    fun `when tokenization key is presented, should decrypt all values`() {
+        every { stringTokenizer.decryptAll(listOf(encrypted), keySet) } returns listOf(raw)
+        val result = manager.decryptAll(
+            encrypted = listOf(encrypted.asTokenizableEncrypted()),
+            tokenKeyType = tokenKeyType,
+            project = project,
+        )
+        assertThat(result).containsExactly(raw.asTokenizableRaw())
+    }
+
+    @Test
+    fun `when batch decryption throws exception, should decrypt values one by one`() {
+        val other = "other"
+        every { stringTokenizer.decryptAll(any(), any()) } throws Exception()
+        every { stringTokenizer.decrypt(other, keySet) } throws Exception()
+        val result = manager.decryptAll(
+            encrypted = listOf(encrypted.asTokenizableEncrypted(), other.asTokenizableEncrypted()),
+            tokenKeyType = tokenKeyType,
+            project = project,
+        )
+        assertThat(result).containsExactly(raw.asTokenizableRaw(), other.asTokenizableEncrypted()).inOrder()
+    }
 }
@@ -9,6 +9,15 @@ import javax.inject.Inject
 class StringTokenizer @Inject constructor(
     private val encodingUtils: EncodingUtils,
 ) {
+    /**
+     * Primitives built from the most recently used keysets. Entries are keyed by the keyset itself,
+     * so when the project tokenization keys change the new keysets get their own primitives
+     * and the old ones are evicted once the cache is full.
+     */
+    private val primitives = object : LinkedHashMap<String, DeterministicAead>(MAX_CACHED_KEYSETS, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, DeterministicAead>?) = size > MAX_CACHED_KEYSETS
+    }
+
     init {
         DeterministicAeadConfig.register()
     }
@@ -16,18 +25,45 @@ class StringTokenizer @Inject constructor(
     fun encrypt(
         value: String,
         keysetJson: String,
-    ): String = buildDeaed(keysetJson)
-        .encryptDeterministically(value.toByteArray(), null)
-        .run(encodingUtils::byteArrayToBase64)
+    ): String = getDeaed(keysetJson).encrypt(value)
 
     fun decrypt(
         value: String,
         keysetJson: String,
-    ): String = buildDeaed(keysetJson)
-        .decryptDeterministically(encodingUtils.base64ToBytes(value), null)
+    ): String = getDeaed(keysetJson).decrypt(value)
+
+    /**
+     * Encrypts all the [values] with the same keyset, preserving their order.
+     */
+    fun encryptAll(
+        values: List<String>,
+        keysetJson: String,
+    ): List<String> = getDeaed(keysetJson).let { deaed -> values.map { deaed.encrypt(it) } }
+
+    /**
+     * Decrypts all the [values] with the same keyset, preserving their order.
+     */
+    fun decryptAll(
+        values: List<String>,
+        keysetJson: String,
+    ): List<String> = getDeaed(keysetJson).let { deaed -> values.map { deaed.decrypt(it) } }
+
+    private fun DeterministicAead.encrypt(value: String) = encryptDeterministically(value.toByteArray(), null)
+        .run(encodingUtils::byteArrayToBase64)
+
+    private fun DeterministicAead.decrypt(value: String) = decryptDeterministically(encodingUtils.base64ToBytes(value), null)
         .run(::String)
 
+    private fun getDeaed(keysetJson: String): DeterministicAead = synchronized(primitives) {
+        primitives.getOrPut(keysetJson) { buildDeaed(keysetJson) }
+    }
+
     private fun buildDeaed(keysetJson: String) = CleartextKeysetHandle
         .read(JsonKeysetReader.withString(keysetJson))
         .getPrimitive(DeterministicAead::class.java)
+
+    companion object {
+        // Enough for the keysets of all the token key types of a couple of projects
+        private const val MAX_CACHED_KEYSETS = 8
+    }
 }
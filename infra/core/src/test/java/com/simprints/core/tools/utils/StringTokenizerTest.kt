@@ -37,6 +37,24 @@ class StringTokenizerTest {
         assertThat(encrypt(value, BFSID_KEYSET_JSON)).isEqualTo(expectedEncrypted)
     }
 
+    @Test
+    fun `batch encryption produces the same values as single encryption`() = with(stringTokenizer) {
+        val values = listOf("module 1", "module 2", "module 1")
+        val encrypted = encryptAll(values, KEYSET_JSON)
+
+        assertThat(encrypted).isEqualTo(values.map { encrypt(it, KEYSET_JSON) })
+        assertThat(decryptAll(encrypted, KEYSET_JSON)).isEqualTo(values)
+    }
+
+    @Test
+    fun `values are encrypted with the keyset they are provided with`() = with(stringTokenizer) {
+        val value = "module 1"
+        val encrypted = encrypt(value, KEYSET_JSON)
+
+        assertThat(encrypt(value, OTHER_KEYSET_JSON)).isNotEqualTo(encrypted)
+        assertThat(encrypt(value, KEYSET_JSON)).isEqualTo(encrypted)
+    }
+
     companion object {
         private val KEYSET_JSON =
             """
@@ -74,5 +92,23 @@ class StringTokenizerTest {
                ]
             }
             """.trimIndent()
+        private val OTHER_KEYSET_JSON =
+            """
+            {
+               "primaryKeyId":1519390254,
+               "key":[
+                  {
+                     "keyData":{
+                        "typeUrl":"type.googleapis.com/google.crypto.tink.AesSivKey",
+                        "value":"EkDpHVpM3s5qOyfY2/6cWsyuD6CEZ1OxZW7V7CAcTyrjd5SlBuiQpvb0ELvyKoa2pp/Xm6Xq3dwKmLf25V7sCgfP",
+                        "keyMaterialType":"SYMMETRIC"
+                     },
+                     "status":"ENABLED",
+                     "keyId":1519390254,
+                     "outputPrefixType":"TINK"
+                  }
+               ]
+            }
+            """.trimIndent()
     }
 }
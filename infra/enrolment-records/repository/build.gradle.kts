@@ -12,8 +12,10 @@ dependencies {
     implementation(project(":infra:auth-store"))
     implementation(project(":infra:enrolment-records:realm-store"))
     implementation(project(":infra:events"))
+    implementation(project(":infra:security"))
 
     implementation(libs.libsimprints)
     implementation(libs.retrofit.core)
     implementation(libs.jackson.core)
+    implementation(libs.androidX.security)
 }
@@ -7,6 +7,8 @@ import com.simprints.infra.enrolment.records.repository.domain.models.FaceIdenti
 import com.simprints.infra.enrolment.records.repository.domain.models.FingerprintIdentity
 import com.simprints.infra.enrolment.records.repository.domain.models.SubjectQuery
 import com.simprints.infra.enrolment.records.repository.local.EnrolmentRecordLocalDataSource
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.ReceiveChannel
 
 @ExcludedFromGeneratedTestCoverageReports("This is an interface with no logic")
 interface EnrolmentRecordRepository : EnrolmentRecordLocalDataSource {
@@ -34,4 +36,31 @@ interface EnrolmentRecordRepository : EnrolmentRecordLocalDataSource {
         project: Project,
         onCandidateLoaded: () -> Unit,
     ): List<FaceIdentity>
+
+    /**
+     * Loads the candidates batch by batch (one batch per range) into a bounded channel within the provided scope.
+     * Loading is suspended while the channel is full, so consumers can start matching the first batches
+     * while the following ones are still being read and only a few batches are kept in memory at any time.
+     * Ranges are iterated lazily, right before loading each batch, so their sizes can be adjusted while matching.
+     */
+    fun loadFingerprintIdentities(
+        query: SubjectQuery,
+        ranges: Iterable<IntRange>,
+        dataSource: BiometricDataSource,
+        project: Project,
+        scope: CoroutineScope,
+        onCandidateLoaded: () -> Unit,
+    ): ReceiveChannel<List<FingerprintIdentity>>
+
+    /**
+     * Same as the fingerprint counterpart, but for face candidates.
+     */
+    fun loadFaceIdentities(
+        query: SubjectQuery,
+        ranges: Iterable<IntRange>,
+        dataSource: BiometricDataSource,
+        project: Project,
+        scope: CoroutineScope,
+        onCandidateLoaded: () -> Unit,
+    ): ReceiveChannel<List<FaceIdentity>>
 }
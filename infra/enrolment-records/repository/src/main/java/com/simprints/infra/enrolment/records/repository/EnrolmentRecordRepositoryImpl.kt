@@ -2,21 +2,22 @@ package com.simprints.infra.enrolment.records.repository
 
 import android.content.Context
 import com.simprints.core.DispatcherIO
-import com.simprints.core.domain.tokenization.TokenizableString
 import com.simprints.infra.config.store.models.Project
-import com.simprints.infra.config.store.models.TokenKeyType
-import com.simprints.infra.config.store.tokenization.TokenizationProcessor
 import com.simprints.infra.enrolment.records.realm.store.exceptions.RealmUninitialisedException
+import com.simprints.infra.enrolment.records.repository.commcare.CommCareIdentityIndex
 import com.simprints.infra.enrolment.records.repository.domain.models.BiometricDataSource
 import com.simprints.infra.enrolment.records.repository.domain.models.FaceIdentity
 import com.simprints.infra.enrolment.records.repository.domain.models.FingerprintIdentity
-import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAction
 import com.simprints.infra.enrolment.records.repository.domain.models.SubjectQuery
 import com.simprints.infra.enrolment.records.repository.local.EnrolmentRecordLocalDataSource
 import com.simprints.infra.enrolment.records.repository.remote.EnrolmentRecordRemoteDataSource
 import com.simprints.infra.logging.Simber
 import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.ProducerScope
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.channels.produce
 import kotlinx.coroutines.withContext
 import javax.inject.Inject
 
@@ -25,9 +26,10 @@ internal class EnrolmentRecordRepositoryImpl(
     private val remoteDataSource: EnrolmentRecordRemoteDataSource,
     private val localDataSource: EnrolmentRecordLocalDataSource,
     private val commCareDataSource: IdentityDataSource,
-    private val tokenizationProcessor: TokenizationProcessor,
+    private val commCareIdentityIndex: CommCareIdentityIndex,
     private val dispatcher: CoroutineDispatcher,
     private val batchSize: Int,
+    private val tokenizationBatchSize: Int,
 ) : EnrolmentRecordRepository,
     EnrolmentRecordLocalDataSource by localDataSource {
     @Inject
@@ -36,67 +38,97 @@ internal class EnrolmentRecordRepositoryImpl(
         remoteDataSource: EnrolmentRecordRemoteDataSource,
         localDataSource: EnrolmentRecordLocalDataSource,
         @CommCareDataSource commCareDataSource: IdentityDataSource,
-        tokenizationProcessor: TokenizationProcessor,
+        commCareIdentityIndex: CommCareIdentityIndex,
         @DispatcherIO dispatcher: CoroutineDispatcher,
     ) : this(
         context = context,
         remoteDataSource = remoteDataSource,
         localDataSource = localDataSource,
         commCareDataSource = commCareDataSource,
-        tokenizationProcessor = tokenizationProcessor,
+        commCareIdentityIndex = commCareIdentityIndex,
         dispatcher = dispatcher,
         batchSize = BATCH_SIZE,
+        tokenizationBatchSize = TOKENIZATION_BATCH_SIZE,
     )
 
     private val prefs = context.getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE)
+    private val tokenizationPrefs = context.getSharedPreferences(TOKENIZATION_PREF_FILE_NAME, Context.MODE_PRIVATE)
 
     companion object {
         private const val BATCH_SIZE = 80
         private const val PREF_FILE_NAME = "UPLOAD_ENROLMENT_RECORDS_PROGRESS"
         private const val PROGRESS_KEY = "PROGRESS"
+        private const val TOKENIZATION_BATCH_SIZE = 500
+        private const val TOKENIZATION_PREF_FILE_NAME = "TOKENIZE_ENROLMENT_RECORDS_PROGRESS"
+        private const val TOKENIZATION_WATERMARK_KEY = "TOKENIZED_WITH"
+        private const val TOKENIZATION_PROGRESS_KEY = "PROGRESS"
+        private const val TOKENIZATION_PROGRESS_WATERMARK_KEY = "PROGRESS_TOKENIZED_WITH"
+
+        /**
+         * Number of loaded candidate batches that can wait for a consumer before loading is suspended.
+         */
+        private const val CANDIDATE_BATCHES_CAPACITY = 2
     }
 
+    /**
+     * Records are read from the local DB page by page, the next page being read while the current one is uploaded.
+     * Progress is saved after each uploaded page, so a failed upload resumes right after the last uploaded record.
+     */
     override suspend fun uploadRecords(subjectIds: List<String>) = withContext(dispatcher) {
-        val lastUploadedRecord = prefs.getString(PROGRESS_KEY, null)
-        var query = SubjectQuery(sort = true, afterSubjectId = lastUploadedRecord)
-        if (subjectIds.isNotEmpty()) {
-            query = SubjectQuery(
-                subjectIds = subjectIds,
-                sort = true,
-                afterSubjectId = lastUploadedRecord,
-            )
-        }
-        localDataSource
-            .load(query)
-            .chunked(batchSize)
-            .forEach { subjects ->
-                remoteDataSource.uploadRecords(subjects)
-                prefs.edit().putString(PROGRESS_KEY, subjects.last().subjectId).apply()
+        val query = SubjectQuery(subjectIds = subjectIds.ifEmpty { null })
+        val pages = produce {
+            var lastSubjectId = prefs.getString(PROGRESS_KEY, null)
+            while (true) {
+                val subjects = localDataSource.loadPage(query, lastSubjectId, batchSize)
+                if (subjects.isEmpty()) break
+                send(subjects)
+                lastSubjectId = subjects.last().subjectId
             }
+        }
+        for (subjects in pages) {
+            remoteDataSource.uploadRecords(subjects)
+            prefs.edit().putString(PROGRESS_KEY, subjects.last().subjectId).apply()
+        }
         prefs.edit().remove(PROGRESS_KEY).apply()
     }
 
+    /**
+     * Tokenizes the ids of the existing records in small chunks, saving the progress after each chunk so that
+     * an interrupted run resumes where it stopped. Once all the records are processed, the tokenization keys
+     * are saved as a watermark. Records can still be left untokenized after that, e.g. when their encryption
+     * failed, so subsequent calls with the same keys are only skipped if no untokenized record is found.
+     */
     override suspend fun tokenizeExistingRecords(project: Project) {
         try {
-            val query = SubjectQuery(projectId = project.id, hasUntokenizedFields = true)
-            val tokenizedSubjectsCreateAction =
-                localDataSource
-                    .load(query)
-                    .mapNotNull { subject ->
-                        if (subject.projectId != project.id) return@mapNotNull null
-                        val moduleId = tokenizeIfNecessary(
-                            value = subject.moduleId,
-                            tokenKeyType = TokenKeyType.ModuleId,
-                            project = project,
-                        )
-                        val attendantId = tokenizeIfNecessary(
-                            value = subject.attendantId,
-                            tokenKeyType = TokenKeyType.AttendantId,
-                            project = project,
-                        )
-                        return@mapNotNull subject.copy(moduleId = moduleId, attendantId = attendantId)
-                    }.map(SubjectAction::Creation)
-            localDataSource.performActions(tokenizedSubjectsCreateAction, project)
+            // Without keys there is nothing to tokenize, and ids of key types the project lacks stay untokenized
+            val keyTypes = project.tokenizedIdKeyTypes()
+            if (keyTypes.isEmpty()) return
+
+            val watermark = project.tokenizationKeysDigest()
+            if (tokenizationPrefs.getString(TOKENIZATION_WATERMARK_KEY, null) == watermark &&
+                localDataSource.count(SubjectQuery(projectId = project.id, untokenizedKeyTypes = keyTypes)) == 0
+            ) {
+                return
+            }
+
+            // Progress is only valid for the keys it was saved with
+            var lastSubjectId = tokenizationPrefs
+                .getString(TOKENIZATION_PROGRESS_KEY, null)
+                ?.takeIf { tokenizationPrefs.getString(TOKENIZATION_PROGRESS_WATERMARK_KEY, null) == watermark }
+            while (true) {
+                lastSubjectId = localDataSource.tokenizeIdsPage(project, lastSubjectId, tokenizationBatchSize) ?: break
+                tokenizationPrefs
+                    .edit()
+                    .putString(TOKENIZATION_PROGRESS_KEY, lastSubjectId)
+                    .putString(TOKENIZATION_PROGRESS_WATERMARK_KEY, watermark)
+                    .apply()
+            }
+            tokenizationPrefs
+                .edit()
+                .remove(TOKENIZATION_PROGRESS_KEY)
+                .remove(TOKENIZATION_PROGRESS_WATERMARK_KEY)
+                .putString(TOKENIZATION_WATERMARK_KEY, watermark)
+                .apply()
         } catch (e: Exception) {
             when (e) {
                 is RealmUninitialisedException -> Unit // AuthStore hasn't yet saved the project, no need to do anything
@@ -105,17 +137,10 @@ internal class EnrolmentRecordRepositoryImpl(
         }
     }
 
-    private fun tokenizeIfNecessary(
-        value: TokenizableString,
-        tokenKeyType: TokenKeyType,
-        project: Project,
-    ) = when (value) {
-        is TokenizableString.Tokenized -> value
-        is TokenizableString.Raw -> tokenizationProcessor.encrypt(
-            decrypted = value,
-            tokenKeyType = tokenKeyType,
-            project = project,
-        )
+    override suspend fun deleteAll() {
+        localDataSource.deleteAll()
+        // Cached CommCare records must not outlive the local ones
+        withContext(dispatcher) { commCareIdentityIndex.invalidateAll() }
     }
 
     override suspend fun count(
@@ -141,6 +166,60 @@ internal class EnrolmentRecordRepositoryImpl(
     ): List<FaceIdentity> = fromIdentityDataSource(dataSource)
         .loadFaceIdentities(query, range, dataSource, project, onCandidateLoaded)
 
+    override fun loadFingerprintIdentities(
+        query: SubjectQuery,
+        ranges: Iterable<IntRange>,
+        dataSource: BiometricDataSource,
+        project: Project,
+        scope: CoroutineScope,
+        onCandidateLoaded: () -> Unit,
+    ): ReceiveChannel<List<FingerprintIdentity>> = scope.produce(dispatcher, capacity = CANDIDATE_BATCHES_CAPACITY) {
+        when (dataSource) {
+            // Local records are paged by subject id, ranges are only used to size the pages
+            is BiometricDataSource.Simprints -> loadPages(ranges, FingerprintIdentity::subjectId) { afterSubjectId, pageSize ->
+                localDataSource.loadFingerprintIdentityPage(query, afterSubjectId, pageSize, onCandidateLoaded)
+            }
+
+            is BiometricDataSource.CommCare -> ranges.forEach { range ->
+                send(commCareDataSource.loadFingerprintIdentities(query, range, dataSource, project, onCandidateLoaded))
+            }
+        }
+    }
+
+    override fun loadFaceIdentities(
+        query: SubjectQuery,
+        ranges: Iterable<IntRange>,
+        dataSource: BiometricDataSource,
+        project: Project,
+        scope: CoroutineScope,
+        onCandidateLoaded: () -> Unit,
+    ): ReceiveChannel<List<FaceIdentity>> = scope.produce(dispatcher, capacity = CANDIDATE_BATCHES_CAPACITY) {
+        when (dataSource) {
+            // Local records are paged by subject id, ranges are only used to size the pages
+            is BiometricDataSource.Simprints -> loadPages(ranges, FaceIdentity::subjectId) { afterSubjectId, pageSize ->
+                localDataSource.loadFaceIdentityPage(query, afterSubjectId, pageSize, onCandidateLoaded)
+            }
+
+            is BiometricDataSource.CommCare -> ranges.forEach { range ->
+                send(commCareDataSource.loadFaceIdentities(query, range, dataSource, project, onCandidateLoaded))
+            }
+        }
+    }
+
+    private suspend fun <T> ProducerScope<List<T>>.loadPages(
+        ranges: Iterable<IntRange>,
+        subjectId: (T) -> String,
+        loadPage: suspend (afterSubjectId: String?, pageSize: Int) -> List<T>,
+    ) {
+        var lastSubjectId: String? = null
+        for (range in ranges) {
+            val page = loadPage(lastSubjectId, range.last - range.first)
+            if (page.isEmpty()) break
+            send(page)
+            lastSubjectId = subjectId(page.last())
+        }
+    }
+
     private fun fromIdentityDataSource(dataSource: BiometricDataSource) = when (dataSource) {
         is BiometricDataSource.Simprints -> localDataSource
         is BiometricDataSource.CommCare -> commCareDataSource
@@ -2,9 +2,10 @@ package com.simprints.infra.enrolment.records.repository
 
 import android.content.Context
 import com.simprints.core.DispatcherIO
-import com.simprints.core.tools.json.JsonHelper
-import com.simprints.core.tools.utils.EncodingUtils
+import com.simprints.infra.config.store.ConfigRepository
+import com.simprints.infra.enrolment.records.repository.commcare.CoSyncSubjectActionsParser
 import com.simprints.infra.enrolment.records.repository.commcare.CommCareIdentityDataSource
+import com.simprints.infra.enrolment.records.repository.commcare.CommCareIdentityIndex
 import com.simprints.infra.enrolment.records.repository.local.EnrolmentRecordLocalDataSource
 import com.simprints.infra.enrolment.records.repository.local.EnrolmentRecordLocalDataSourceImpl
 import com.simprints.infra.enrolment.records.repository.remote.EnrolmentRecordRemoteDataSource
@@ -41,16 +42,18 @@ abstract class EnrolmentRecordsStoreModule {
 class IdentityDataSourceModule {
     @CommCareDataSource
     @Provides
-    fun provideCommCareIdentityDataSource(
-        encoder: EncodingUtils,
-        jsonHelper: JsonHelper,
+    internal fun provideCommCareIdentityDataSource(
+        subjectActionsParser: CoSyncSubjectActionsParser,
         compareImplicitTokenizedStringsUseCase: CompareImplicitTokenizedStringsUseCase,
+        configRepository: ConfigRepository,
+        index: CommCareIdentityIndex,
         @ApplicationContext context: Context,
         @DispatcherIO dispatcher: CoroutineDispatcher,
     ): IdentityDataSource = CommCareIdentityDataSource(
-        encoder = encoder,
-        jsonHelper = jsonHelper,
+        subjectActionsParser = subjectActionsParser,
         compareImplicitTokenizedStringsUseCase = compareImplicitTokenizedStringsUseCase,
+        configRepository = configRepository,
+        index = index,
         context = context,
         dispatcher = dispatcher,
     )
@@ -0,0 +1,21 @@
+package com.simprints.infra.enrolment.records.repository
+
+import com.simprints.infra.config.store.models.Project
+import com.simprints.infra.config.store.models.TokenKeyType
+import java.security.MessageDigest
+
+/**
+ * Digest of the project tokenization keys, used to detect when data tokenized with the keys has to be
+ * tokenized again, without persisting the keys themselves.
+ */
+internal fun Project.tokenizationKeysDigest(): String = tokenizationKeys.entries
+    .sortedBy { it.key.name }
+    .joinToString(separator = "\n", prefix = "$id\n") { "${it.key.name}=${it.value}" }
+    .let { MessageDigest.getInstance("SHA-256").digest(it.toByteArray()) }
+    .joinToString(separator = "") { "%02x".format(it) }
+
+/**
+ * Key types of the subject ids that the project tokenizes.
+ */
+internal fun Project.tokenizedIdKeyTypes(): Set<TokenKeyType> = tokenizationKeys.keys
+    .intersect(setOf(TokenKeyType.AttendantId, TokenKeyType.ModuleId))
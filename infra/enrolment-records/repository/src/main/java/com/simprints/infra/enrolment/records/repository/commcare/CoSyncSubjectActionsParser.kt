@@ -0,0 +1,224 @@
+package com.simprints.infra.enrolment.records.repository.commcare
+
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import com.simprints.core.domain.face.FaceSample
+import com.simprints.core.domain.fingerprint.FingerprintSample
+import com.simprints.core.domain.fingerprint.IFingerIdentifier
+import com.simprints.core.domain.tokenization.TokenizableString
+import com.simprints.core.domain.tokenization.serialization.FIELD_CLASS_NAME
+import com.simprints.core.domain.tokenization.serialization.FIELD_VALUE
+import com.simprints.core.tools.utils.EncodingUtils
+import com.simprints.infra.events.event.domain.models.subject.BiometricReferenceType.Companion.FACE_REFERENCE_KEY
+import com.simprints.infra.events.event.domain.models.subject.BiometricReferenceType.Companion.FINGERPRINT_REFERENCE_KEY
+import javax.inject.Inject
+
+/**
+ * Reads the enrolment records of the CoSync subjectActions of a CommCare case token by token.
+ *
+ * Only the fields of the enrolment record creation events that are kept in the [CommCareIdentityIndex]
+ * are read, everything else is skipped without being bound to any object. Module and attendant ids are
+ * returned as found in the payload, either as plain strings or as tokenizable string objects.
+ */
+internal class CoSyncSubjectActionsParser @Inject constructor(
+    private val encoder: EncodingUtils,
+) {
+    // Factory is thread safe and only creates parsers
+    private val jsonFactory = JsonFactory()
+
+    fun parse(subjectActions: String): List<CommCareIndexedSubject> = jsonFactory.createParser(subjectActions).use { parser ->
+        val subjects = mutableListOf<CommCareIndexedSubject>()
+        parser.expect(JsonToken.START_OBJECT)
+        parser.forEachField { field ->
+            if (field == FIELD_EVENTS && parser.currentToken == JsonToken.START_ARRAY) {
+                parser.forEachElement { parser.readEvent()?.let(subjects::add) }
+            } else {
+                parser.skipChildren()
+            }
+        }
+        subjects
+    }
+
+    private fun JsonParser.readEvent(): CommCareIndexedSubject? {
+        if (currentToken != JsonToken.START_OBJECT) {
+            skipChildren()
+            return null
+        }
+        var type: String? = null
+        var subject: CommCareIndexedSubject? = null
+        forEachField { field ->
+            when {
+                field == FIELD_TYPE -> type = valueAsString
+                // Payloads of other events are skipped if their type is known before reaching them
+                field == FIELD_PAYLOAD && (type == null || type == ENROLMENT_RECORD_CREATION_TYPE) -> subject = readPayload()
+                else -> skipChildren()
+            }
+        }
+        return subject.takeIf { type == ENROLMENT_RECORD_CREATION_TYPE }
+    }
+
+    private fun JsonParser.readPayload(): CommCareIndexedSubject? {
+        if (currentToken != JsonToken.START_OBJECT) {
+            skipChildren()
+            return null
+        }
+        var subjectId: String? = null
+        var moduleId: TokenizableString? = null
+        var attendantId: TokenizableString? = null
+        val fingerprintSamples = mutableListOf<FingerprintSample>()
+        val faceSamples = mutableListOf<FaceSample>()
+        forEachField { field ->
+            when (field) {
+                FIELD_SUBJECT_ID -> subjectId = valueAsString
+                FIELD_MODULE_ID -> moduleId = readTokenizableString()
+                FIELD_ATTENDANT_ID -> attendantId = readTokenizableString()
+                FIELD_BIOMETRIC_REFERENCES -> forEachElement { readBiometricReference(fingerprintSamples, faceSamples) }
+                else -> skipChildren()
+            }
+        }
+        return CommCareIndexedSubject(
+            subjectId = subjectId ?: return null,
+            attendantId = attendantId ?: return null,
+            moduleId = moduleId ?: return null,
+            fingerprintSamples = fingerprintSamples,
+            faceSamples = faceSamples,
+        )
+    }
+
+    /**
+     * Past versions of the events stored module and attendant ids as plain strings, these are read as raw values.
+     */
+    private fun JsonParser.readTokenizableString(): TokenizableString? {
+        if (currentToken != JsonToken.START_OBJECT) return valueAsString?.let(TokenizableString::Raw)
+
+        var className: String? = null
+        var value: String? = null
+        forEachField { field ->
+            when (field) {
+                FIELD_CLASS_NAME -> className = valueAsString
+                FIELD_VALUE -> value = valueAsString
+                else -> skipChildren()
+            }
+        }
+        return value?.let { if (className == TOKENIZED_CLASS_NAME) TokenizableString.Tokenized(it) else TokenizableString.Raw(it) }
+    }
+
+    private fun JsonParser.readBiometricReference(
+        fingerprintSamples: MutableList<FingerprintSample>,
+        faceSamples: MutableList<FaceSample>,
+    ) {
+        if (currentToken != JsonToken.START_OBJECT) {
+            skipChildren()
+            return
+        }
+        var id: String? = null
+        var type: String? = null
+        var format: String? = null
+        val templates = mutableListOf<Template>()
+        forEachField { field ->
+            when (field) {
+                FIELD_ID -> id = valueAsString
+                FIELD_TYPE -> type = valueAsString
+                FIELD_FORMAT -> format = valueAsString
+                FIELD_TEMPLATES -> forEachElement { readTemplate()?.let(templates::add) }
+                else -> skipChildren()
+            }
+        }
+        val referenceId = id ?: return
+        val referenceFormat = format ?: return
+        when (type) {
+            FINGERPRINT_REFERENCE_KEY -> templates.mapNotNullTo(fingerprintSamples) { template ->
+                FingerprintSample(
+                    fingerIdentifier = template.finger ?: return@mapNotNullTo null,
+                    templateQualityScore = template.quality,
+                    template = template.template,
+                    format = referenceFormat,
+                    referenceId = referenceId,
+                )
+            }
+
+            FACE_REFERENCE_KEY -> templates.mapTo(faceSamples) { template ->
+                FaceSample(
+                    template = template.template,
+                    format = referenceFormat,
+                    referenceId = referenceId,
+                )
+            }
+        }
+    }
+
+    private fun JsonParser.readTemplate(): Template? {
+        if (currentToken != JsonToken.START_OBJECT) {
+            skipChildren()
+            return null
+        }
+        var template: ByteArray? = null
+        var quality = 0
+        var finger: IFingerIdentifier? = null
+        forEachField { field ->
+            when (field) {
+                FIELD_TEMPLATE -> template = valueAsString?.let(encoder::base64ToBytes)
+                FIELD_QUALITY -> quality = valueAsInt
+                FIELD_FINGER -> finger = valueAsString?.let(IFingerIdentifier::valueOf)
+                else -> skipChildren()
+            }
+        }
+        return template?.let { Template(it, quality, finger) }
+    }
+
+    private fun JsonParser.expect(token: JsonToken) {
+        if (nextToken() != token) throw IllegalArgumentException("Expected $token but found $currentToken")
+    }
+
+    /**
+     * Calls [block] with the parser positioned on the value of each field of the current object.
+     * The block must consume the whole value, skipping it if not needed.
+     */
+    private inline fun JsonParser.forEachField(block: (String) -> Unit) {
+        while (nextToken() == JsonToken.FIELD_NAME) {
+            val field = currentName
+            nextToken()
+            block(field)
+        }
+    }
+
+    /**
+     * Calls [block] with the parser positioned on each element of the current array.
+     * Values that are not arrays are skipped.
+     */
+    private inline fun JsonParser.forEachElement(block: () -> Unit) {
+        if (currentToken != JsonToken.START_ARRAY) {
+            skipChildren()
+            return
+        }
+        while (nextToken() != JsonToken.END_ARRAY) {
+            block()
+        }
+    }
+
+    private class Template(
+        val template: ByteArray,
+        val quality: Int,
+        val finger: IFingerIdentifier?,
+    )
+
+    companion object {
+        private const val ENROLMENT_RECORD_CREATION_TYPE = "EnrolmentRecordCreation"
+        private const val TOKENIZED_CLASS_NAME = "TokenizableString.Tokenized"
+
+        private const val FIELD_EVENTS = "events"
+        private const val FIELD_TYPE = "type"
+        private const val FIELD_PAYLOAD = "payload"
+        private const val FIELD_SUBJECT_ID = "subjectId"
+        private const val FIELD_MODULE_ID = "moduleId"
+        private const val FIELD_ATTENDANT_ID = "attendantId"
+        private const val FIELD_BIOMETRIC_REFERENCES = "biometricReferences"
+        private const val FIELD_ID = "id"
+        private const val FIELD_FORMAT = "format"
+        private const val FIELD_TEMPLATES = "templates"
+        private const val FIELD_TEMPLATE = "template"
+        private const val FIELD_QUALITY = "quality"
+        private const val FIELD_FINGER = "finger"
+    }
+}
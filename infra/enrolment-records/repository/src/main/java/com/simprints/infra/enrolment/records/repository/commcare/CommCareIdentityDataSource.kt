@@ -3,16 +3,9 @@ package com.simprints.infra.enrolment.records.repository.commcare
 import android.content.Context
 import android.database.Cursor
 import android.net.Uri
-import com.fasterxml.jackson.core.type.TypeReference
-import com.fasterxml.jackson.databind.module.SimpleModule
 import com.simprints.core.DispatcherIO
-import com.simprints.core.domain.face.FaceSample
-import com.simprints.core.domain.fingerprint.FingerprintSample
-import com.simprints.core.domain.tokenization.TokenizableString
-import com.simprints.core.domain.tokenization.serialization.TokenizationClassNameDeserializer
-import com.simprints.core.domain.tokenization.serialization.TokenizationClassNameSerializer
 import com.simprints.core.tools.json.JsonHelper
-import com.simprints.core.tools.utils.EncodingUtils
+import com.simprints.infra.config.store.ConfigRepository
 import com.simprints.infra.config.store.models.Project
 import com.simprints.infra.config.store.models.TokenKeyType
 import com.simprints.infra.enrolment.records.repository.IdentityDataSource
@@ -20,27 +13,35 @@ import com.simprints.infra.enrolment.records.repository.domain.models.BiometricD
 import com.simprints.infra.enrolment.records.repository.domain.models.FaceIdentity
 import com.simprints.infra.enrolment.records.repository.domain.models.FingerprintIdentity
 import com.simprints.infra.enrolment.records.repository.domain.models.SubjectQuery
+import com.simprints.infra.enrolment.records.repository.tokenizationKeysDigest
 import com.simprints.infra.enrolment.records.repository.usecases.CompareImplicitTokenizedStringsUseCase
-import com.simprints.infra.events.event.cosync.CoSyncEnrolmentRecordCreationEventDeserializer
-import com.simprints.infra.events.event.cosync.CoSyncEnrolmentRecordEvents
-import com.simprints.infra.events.event.domain.models.subject.EnrolmentRecordCreationEvent
-import com.simprints.infra.events.event.domain.models.subject.FaceReference
-import com.simprints.infra.events.event.domain.models.subject.FingerprintReference
 import com.simprints.infra.logging.Simber
 import com.simprints.libsimprints.Constants.SIMPRINTS_COSYNC_SUBJECT_ACTIONS
 import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.produce
+import kotlinx.coroutines.channels.toList
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
 import org.json.JSONException
 import javax.inject.Inject
 
 internal class CommCareIdentityDataSource @Inject constructor(
-    private val encoder: EncodingUtils,
-    private val jsonHelper: JsonHelper,
+    private val subjectActionsParser: CoSyncSubjectActionsParser,
     private val compareImplicitTokenizedStringsUseCase: CompareImplicitTokenizedStringsUseCase,
+    private val configRepository: ConfigRepository,
+    private val index: CommCareIdentityIndex,
     @ApplicationContext private val context: Context,
     @DispatcherIO private val dispatcher: CoroutineDispatcher,
 ) : IdentityDataSource {
+    private val indexMutex = Mutex()
+
     private fun getCaseMetadataUri(packageName: String): Uri = Uri.parse("content://$packageName.case/casedb/case")
 
     private fun getCaseDataUri(packageName: String): Uri = Uri.parse("content://$packageName.case/casedb/data")
@@ -52,164 +53,209 @@ internal class CommCareIdentityDataSource @Inject constructor(
         project: Project,
         onCandidateLoaded: () -> Unit,
     ): List<FingerprintIdentity> = withContext(dispatcher) {
-        loadEnrolmentRecordCreationEvents(range, dataSource.callerPackageName(), query, project)
-            .filter { erce ->
-                erce.payload.biometricReferences.any { it is FingerprintReference && it.format == query.fingerprintSampleFormat }
-            }.map {
+        loadRange(query, range, dataSource.callerPackageName(), project)
+            .map {
                 onCandidateLoaded()
-                FingerprintIdentity(
-                    it.payload.subjectId,
-                    it.payload.biometricReferences
-                        .filterIsInstance<FingerprintReference>()
-                        .flatMap { fingerprintReference ->
-                            fingerprintReference.templates.map { fingerprintTemplate ->
-                                FingerprintSample(
-                                    fingerIdentifier = fingerprintTemplate.finger,
-                                    templateQualityScore = fingerprintTemplate.quality,
-                                    template = encoder.base64ToBytes(fingerprintTemplate.template),
-                                    format = fingerprintReference.format,
-                                    referenceId = fingerprintReference.id,
-                                )
-                            }
-                        },
-                )
+                FingerprintIdentity(it.subjectId, it.fingerprintSamples)
             }
     }
 
-    private fun loadEnrolmentRecordCreationEvents(
-        range: IntRange,
-        callerPackageName: String,
+    override suspend fun loadFaceIdentities(
         query: SubjectQuery,
+        range: IntRange,
+        dataSource: BiometricDataSource,
         project: Project,
-    ): List<EnrolmentRecordCreationEvent> {
-        val enrolmentRecordCreationEvents: MutableList<EnrolmentRecordCreationEvent> = mutableListOf()
-        try {
-            val caseId = attemptExtractingCaseId(query.metadata)
-            if (caseId != null) {
-                return loadEnrolmentRecordCreationEvents(caseId, callerPackageName, query, project)
+        onCandidateLoaded: () -> Unit,
+    ): List<FaceIdentity> = withContext(dispatcher) {
+        loadRange(query, range, dataSource.callerPackageName(), project)
+            .map {
+                onCandidateLoaded()
+                FaceIdentity(it.subjectId, it.faceSamples)
             }
+    }
 
-            context.contentResolver
-                .query(
-                    getCaseMetadataUri(callerPackageName),
-                    null,
-                    null,
-                    null,
-                    null,
-                )?.use { caseMetadataCursor ->
-                    if (caseMetadataCursor.moveToPosition(range.first)) {
-                        do {
-                            caseMetadataCursor.getString(caseMetadataCursor.getColumnIndexOrThrow(COLUMN_CASE_ID))?.let { caseId ->
-                                enrolmentRecordCreationEvents.addAll(
-                                    loadEnrolmentRecordCreationEvents(caseId, callerPackageName, query, project),
-                                )
-                            }
-                        } while (caseMetadataCursor.moveToNext() && caseMetadataCursor.position < range.last)
-                    }
+    /**
+     * Ranges are applied to the subjects matching the query, in the order of the CommCare cases, so that
+     * they are consistent with [count]. Ranges are read from the index refreshed by the count that started the
+     * identification, so CommCare is only read once per identification, and only the cases of the subjects in the
+     * range are read from the index.
+     */
+    private suspend fun loadRange(
+        query: SubjectQuery,
+        range: IntRange,
+        callerPackageName: String,
+        project: Project,
+    ): List<CommCareIndexedSubject> = try {
+        val matches = subjectFilter(query, project)
+        val caseId = attemptExtractingCaseId(query.metadata)
+        if (caseId != null) {
+            // A single case is cheaper to read directly than to refresh the whole index
+            loadCase(caseId, null, callerPackageName, project)
+                .subjects
+                .filter { matches(it.toSummary()) }
+                .sliceRange(range)
+        } else {
+            val catalog = index
+                .loadCatalog(callerPackageName, project.tokenizationKeysDigest())
+                .ifEmpty { refreshIndex(callerPackageName, project) }
+            catalog
+                .flatMap { case -> case.subjects.filter(matches).map { case.caseId to it.subjectId } }
+                .sliceRange(range)
+                .groupBy({ it.first }, { it.second })
+                .flatMap { (caseId, subjectIds) ->
+                    // Cases missing from the index are read from CommCare instead
+                    val subjects = index.loadCase(callerPackageName, caseId)
+                        ?: loadCase(caseId, null, callerPackageName, project).subjects
+                    subjects.filter { it.subjectId in subjectIds }
                 }
-        } catch (e: Exception) {
-            Simber.e("Error while querying CommCare", e)
         }
+    } catch (e: Exception) {
+        Simber.e("Error while querying CommCare", e)
+        emptyList()
+    }
 
-        return enrolmentRecordCreationEvents
+    // Ranges end before their last value, as in the local data source
+    private fun <T> List<T>.sliceRange(range: IntRange): List<T> {
+        val from = range.first.coerceIn(0, size)
+        return subList(from, range.last.coerceIn(from, size))
     }
 
-    private fun attemptExtractingCaseId(metadata: String?) = metadata
-        ?.takeUnless { it.isEmpty() }
-        ?.let {
-            try {
-                JsonHelper.fromJson<Map<String, Any>>(it)[ARG_CASE_ID] as? String
-            } catch (_: JSONException) {
-                null
-            }
+    /**
+     * Returns whether an indexed subject matches the query.
+     */
+    private fun subjectFilter(
+        query: SubjectQuery,
+        project: Project,
+    ): (CommCareIndexedSubjectSummary) -> Boolean {
+        // [MS-852] Plain strings from CommCare might be tokenized or untokenized. Indexed values are always
+        // brought to their tokenized state, so the query values only need to be tokenized once to compare them
+        val attendantId = query.attendantId?.let {
+            compareImplicitTokenizedStringsUseCase.ensureTokenized(it, TokenKeyType.AttendantId, project)
+        }
+        val moduleId = query.moduleId?.let {
+            compareImplicitTokenizedStringsUseCase.ensureTokenized(it, TokenKeyType.ModuleId, project)
         }
+        return { subject ->
+            (query.subjectId == null || query.subjectId == subject.subjectId) &&
+                (attendantId == null || attendantId == subject.attendantId) &&
+                (moduleId == null || moduleId == subject.moduleId) &&
+                (query.fingerprintSampleFormat == null || query.fingerprintSampleFormat in subject.fingerprintFormats) &&
+                (query.faceSampleFormat == null || query.faceSampleFormat in subject.faceFormats)
+        }
+    }
 
-    override suspend fun loadFaceIdentities(
-        query: SubjectQuery,
-        range: IntRange,
-        dataSource: BiometricDataSource,
+    /**
+     * Walks the CommCare cases and only reads the data of the cases that are not indexed yet or were modified
+     * since they were indexed. Each case that is read is saved to the index on its own, and the catalog is saved
+     * again if any case was read, added, removed or moved.
+     *
+     * Case metadata is read on a single coroutine while a fixed pool of workers, one per core, takes the cases
+     * from it and queries and parses the changed ones. Every case is handed over as soon as its worker is done
+     * with it, and the catalog is put back in the order of the cases once all of them are handed over.
+     */
+    private suspend fun refreshIndex(
+        callerPackageName: String,
         project: Project,
-        onCandidateLoaded: () -> Unit,
-    ): List<FaceIdentity> = withContext(dispatcher) {
-        loadEnrolmentRecordCreationEvents(range, dataSource.callerPackageName(), query, project)
-            .filter { erce ->
-                erce.payload.biometricReferences.any { it is FaceReference && it.format == query.faceSampleFormat }
-            }.map {
-                onCandidateLoaded()
-                FaceIdentity(
-                    it.payload.subjectId,
-                    it.payload.biometricReferences
-                        .filterIsInstance<FaceReference>()
-                        .flatMap { faceReference ->
-                            faceReference.templates.map { faceTemplate ->
-                                FaceSample(
-                                    template = encoder.base64ToBytes(faceTemplate.template),
-                                    format = faceReference.format,
-                                    referenceId = faceReference.id,
-                                )
-                            }
-                        },
-                )
+    ): List<CommCareIndexedCaseSummary> = indexMutex.withLock {
+        val tokenizationKeysDigest = project.tokenizationKeysDigest()
+        val catalog = index.loadCatalog(callerPackageName, tokenizationKeysDigest)
+        val indexedCases = catalog.associateBy { it.caseId }
+
+        val refreshedCases = coroutineScope {
+            val caseMetadata = readCaseMetadata(callerPackageName)
+            val refreshedCases = Channel<RefreshedCase>(CASE_METADATA_CAPACITY)
+            val workers = List(Runtime.getRuntime().availableProcessors().coerceAtLeast(1)) {
+                launch(dispatcher) {
+                    for ((position, caseId, lastModified) in caseMetadata) {
+                        val indexedCase = indexedCases[caseId]?.takeIf { lastModified != null && it.lastModified == lastModified }
+                        refreshedCases.send(
+                            if (indexedCase != null) {
+                                RefreshedCase(position, indexedCase, read = false)
+                            } else {
+                                // Templates are written to the index right away and are not kept until all cases are read
+                                val case = loadCase(caseId, lastModified, callerPackageName, project)
+                                index.saveCase(callerPackageName, case)
+                                RefreshedCase(position, case.toSummary(), read = true)
+                            },
+                        )
+                    }
+                }
+            }
+            launch {
+                workers.joinAll()
+                refreshedCases.close()
             }
+            refreshedCases.toList()
+        }
+        val cases = refreshedCases.sortedBy { it.position }.map { it.summary }
+        val readCount = refreshedCases.count { it.read }
+
+        if (readCount > 0 || cases != catalog) {
+            index.saveCatalog(callerPackageName, tokenizationKeysDigest, cases)
+        }
+        Simber.d("Read $readCount of ${cases.size} CommCare cases")
+        cases
     }
 
-    private fun loadEnrolmentRecordCreationEvents(
+    /**
+     * Case ids with their last modified marker and their position in the order of the CommCare cases.
+     */
+    private fun CoroutineScope.readCaseMetadata(callerPackageName: String) = produce(capacity = CASE_METADATA_CAPACITY) {
+        context.contentResolver
+            .query(
+                getCaseMetadataUri(callerPackageName),
+                null,
+                null,
+                null,
+                null,
+            )?.use { caseMetadataCursor ->
+                val caseIdColumn = caseMetadataCursor.getColumnIndexOrThrow(COLUMN_CASE_ID)
+                val lastModifiedColumn = caseMetadataCursor.getColumnIndex(COLUMN_LAST_MODIFIED)
+                var position = 0
+                while (caseMetadataCursor.moveToNext()) {
+                    val caseId = caseMetadataCursor.getString(caseIdColumn) ?: continue
+                    val lastModified = lastModifiedColumn.takeIf { it >= 0 }?.let { caseMetadataCursor.getString(it) }
+                    send(CaseMetadata(position++, caseId, lastModified))
+                }
+            }
+    }
+
+    private fun loadCase(
         caseId: String,
+        lastModified: String?,
         callerPackageName: String,
-        query: SubjectQuery,
         project: Project,
-    ): List<EnrolmentRecordCreationEvent> {
+    ): CommCareIndexedCase {
         // Access Case Data Listing for the caseId
         val caseDataUri = getCaseDataUri(callerPackageName).buildUpon().appendPath(caseId).build()
 
         return context.contentResolver
             .query(caseDataUri, null, null, null, null)
             ?.use { caseDataCursor ->
-                var subjectActions = getSubjectActionsValue(caseDataCursor)
-                Simber.d(subjectActions)
-                val coSyncEnrolmentRecordEvents = parseRecordEvents(subjectActions)
-
-                coSyncEnrolmentRecordEvents
-                    ?.events
-                    ?.filterIsInstance<EnrolmentRecordCreationEvent>()
-                    ?.filter { event ->
-                        // [MS-852] Plain strings from CommCare might be tokenized or untokenized. The only way to properly compare them
-                        // is by trying to decrypt the values to check if already tokenized, and then compare the values
-                        isSubjectIdNullOrMatching(query, event) &&
-                            isAttendantIdNullOrMatching(query, event, project) &&
-                            isModuleIdNullOrMatching(query, event, project)
-                    }
-            }.orEmpty()
+                val subjectActions = getSubjectActionsValue(caseDataCursor)
+                val subjects = parseSubjects(subjectActions).map { subject ->
+                    subject.copy(
+                        attendantId = compareImplicitTokenizedStringsUseCase
+                            .ensureTokenized(subject.attendantId, TokenKeyType.AttendantId, project),
+                        moduleId = compareImplicitTokenizedStringsUseCase
+                            .ensureTokenized(subject.moduleId, TokenKeyType.ModuleId, project),
+                    )
+                }
+                CommCareIndexedCase(caseId, lastModified, subjects)
+            }
+            // Cases that could not be queried are read again next time
+            ?: CommCareIndexedCase(caseId, null, emptyList())
     }
 
-    private fun isSubjectIdNullOrMatching(
-        query: SubjectQuery,
-        event: EnrolmentRecordCreationEvent,
-    ): Boolean = query.subjectId == null || query.subjectId == event.payload.subjectId
-
-    private fun isAttendantIdNullOrMatching(
-        query: SubjectQuery,
-        event: EnrolmentRecordCreationEvent,
-        project: Project,
-    ): Boolean = query.attendantId == null ||
-        compareImplicitTokenizedStringsUseCase(
-            query.attendantId,
-            event.payload.attendantId,
-            TokenKeyType.AttendantId,
-            project,
-        )
-
-    private fun isModuleIdNullOrMatching(
-        query: SubjectQuery,
-        event: EnrolmentRecordCreationEvent,
-        project: Project,
-    ): Boolean = query.moduleId == null ||
-        compareImplicitTokenizedStringsUseCase(
-            query.moduleId,
-            event.payload.moduleId,
-            TokenKeyType.ModuleId,
-            project,
-        )
+    private fun attemptExtractingCaseId(metadata: String?) = metadata
+        ?.takeUnless { it.isEmpty() }
+        ?.let {
+            try {
+                JsonHelper.fromJson<Map<String, Any>>(it)[ARG_CASE_ID] as? String
+            } catch (_: JSONException) {
+                null
+            }
+        }
 
     private fun getSubjectActionsValue(caseDataCursor: Cursor): String {
         while (caseDataCursor.moveToNext()) {
@@ -221,55 +267,60 @@ internal class CommCareIdentityDataSource @Inject constructor(
         return ""
     }
 
-    private fun parseRecordEvents(subjectActions: String) = subjectActions.takeIf(String::isNotEmpty)?.let {
+    private fun parseSubjects(subjectActions: String) = subjectActions.takeIf(String::isNotEmpty)?.let {
         try {
-            jsonHelper.fromJson<CoSyncEnrolmentRecordEvents>(
-                json = it,
-                module = coSyncSerializationModule,
-                type = object : TypeReference<CoSyncEnrolmentRecordEvents>() {},
-            )
+            subjectActionsParser.parse(it)
         } catch (e: Exception) {
             Simber.e("Error while parsing subjectActions", e)
             null
         }
-    }
-
-    private val coSyncSerializationModule = SimpleModule().apply {
-        addSerializer(
-            TokenizableString::class.java,
-            TokenizationClassNameSerializer(),
-        )
-        addDeserializer(
-            TokenizableString::class.java,
-            TokenizationClassNameDeserializer(),
-        )
-        addDeserializer(
-            EnrolmentRecordCreationEvent::class.java,
-            CoSyncEnrolmentRecordCreationEventDeserializer(),
-        )
-    }
+    }.orEmpty()
 
     override suspend fun count(
         query: SubjectQuery,
         dataSource: BiometricDataSource,
     ): Int = withContext(dispatcher) {
-        var count = 0
-        context.contentResolver
-            .query(
-                getCaseMetadataUri(dataSource.callerPackageName()),
-                null,
-                null,
-                null,
-                null,
-            )?.use { caseMetadataCursor -> count = caseMetadataCursor.count }
-        count
+        try {
+            val callerPackageName = dataSource.callerPackageName()
+            val project = configRepository.getProject()
+            val matches = subjectFilter(query, project)
+            val caseId = attemptExtractingCaseId(query.metadata)
+            if (caseId != null) {
+                loadCase(caseId, null, callerPackageName, project).subjects.count { matches(it.toSummary()) }
+            } else {
+                // Counting starts an identification, so CommCare is always read again
+                refreshIndex(callerPackageName, project).sumOf { case -> case.subjects.count(matches) }
+            }
+        } catch (e: Exception) {
+            Simber.e("Error while querying CommCare", e)
+            0
+        }
     }
 
+    private data class CaseMetadata(
+        val position: Int,
+        val caseId: String,
+        val lastModified: String?,
+    )
+
+    private class RefreshedCase(
+        val position: Int,
+        val summary: CommCareIndexedCaseSummary,
+        val read: Boolean,
+    )
+
     companion object {
         const val COLUMN_CASE_ID = "case_id"
+        const val COLUMN_LAST_MODIFIED = "last_modified"
         const val COLUMN_DATUM_ID = "datum_id"
         const val COLUMN_VALUE = "value"
 
         const val ARG_CASE_ID = "caseId"
+
+        /**
+         * Number of case ids that can be read ahead of the case data, and of cases handed over by the workers
+         * ahead of the collection of the catalog.
+         */
+        private const val CASE_METADATA_CAPACITY = 64
     }
 }
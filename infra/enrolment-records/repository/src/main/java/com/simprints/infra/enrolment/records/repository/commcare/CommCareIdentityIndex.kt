@@ -0,0 +1,356 @@
+package com.simprints.infra.enrolment.records.repository.commcare
+
+import android.content.Context
+import com.simprints.core.domain.face.FaceSample
+import com.simprints.core.domain.fingerprint.FingerprintSample
+import com.simprints.core.domain.fingerprint.IFingerIdentifier
+import com.simprints.core.domain.tokenization.TokenizableString
+import com.simprints.core.domain.tokenization.asTokenizable
+import com.simprints.core.domain.tokenization.isTokenized
+import com.simprints.infra.logging.Simber
+import com.simprints.infra.security.SecurityManager
+import dagger.hilt.android.qualifiers.ApplicationContext
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.security.MessageDigest
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Encrypted local copy of the CommCare cases that have already been read, one directory per caller package.
+ *
+ * Every case is stored in its own file with its decoded templates and its module and attendant ids in tokenized
+ * form, so a changed case only rewrites its own file and a range of subjects only reads the files of its cases.
+ * A catalog lists the cases in CommCare order with the last-modified marker they were read with and the fields
+ * queries filter on, without templates, so that subjects can be counted and ranged without reading any case.
+ * Directories are bound to the tokenization keys they were built with and are deleted once the keys change.
+ *
+ * Only the catalog of the last used caller package is kept in memory, templates are always read from the files.
+ */
+@Singleton
+internal class CommCareIdentityIndex(
+    private val context: Context,
+    private val securityManager: SecurityManager,
+    private val directory: File,
+) {
+    @Inject
+    constructor(
+        @ApplicationContext context: Context,
+        securityManager: SecurityManager,
+    ) : this(context, securityManager, File(context.noBackupFilesDir, DIRECTORY_NAME))
+
+    private var catalog: Catalog? = null
+
+    /**
+     * Returns the catalog of the indexed cases of the caller package, in CommCare order, or an empty list if none
+     * were indexed with the given tokenization keys.
+     */
+    @Synchronized
+    fun loadCatalog(
+        callerPackageName: String,
+        tokenizationKeysDigest: String,
+    ): List<CommCareIndexedCaseSummary> {
+        catalog
+            ?.takeIf { it.callerPackageName == callerPackageName && it.tokenizationKeysDigest == tokenizationKeysDigest }
+            ?.let { return it.cases }
+
+        val packageDirectory = directoryFor(callerPackageName)
+        if (packageDirectory.isFile) {
+            // Single file index of a previous version
+            packageDirectory.delete()
+        }
+        val file = File(packageDirectory, CATALOG_FILE_NAME).takeIf { it.exists() } ?: return emptyList()
+        val cases = try {
+            securityManager.getEncryptedFileBuilder(file, context).openFileInput().use { stream ->
+                readCatalog(DataInputStream(stream.buffered()), tokenizationKeysDigest)
+            }
+        } catch (e: Exception) {
+            Simber.e("Failed to read the CommCare index", e)
+            null
+        }
+        if (cases == null) {
+            // Index was built with other keys or could not be read
+            packageDirectory.deleteRecursively()
+            return emptyList()
+        }
+        catalog = Catalog(callerPackageName, tokenizationKeysDigest, cases)
+        return cases
+    }
+
+    /**
+     * Replaces the catalog of the caller package and deletes the files of the cases it no longer lists.
+     */
+    @Synchronized
+    fun saveCatalog(
+        callerPackageName: String,
+        tokenizationKeysDigest: String,
+        cases: List<CommCareIndexedCaseSummary>,
+    ) {
+        val packageDirectory = directoryFor(callerPackageName)
+        val file = File(packageDirectory, CATALOG_FILE_NAME)
+        catalog = null
+        try {
+            writeEncrypted(file) { writeCatalog(tokenizationKeysDigest, cases) }
+            catalog = Catalog(callerPackageName, tokenizationKeysDigest, cases)
+
+            val caseFileNames = cases.mapTo(HashSet()) { caseFileName(it.caseId) }
+            File(packageDirectory, CASES_DIRECTORY_NAME)
+                .listFiles()
+                ?.filterNot { it.name in caseFileNames }
+                ?.forEach { it.delete() }
+        } catch (e: Exception) {
+            Simber.e("Failed to save the CommCare index", e)
+            packageDirectory.deleteRecursively()
+        }
+    }
+
+    /**
+     * Replaces the subjects of a single case of the caller package. The case is only used once it is listed
+     * in the catalog.
+     */
+    fun saveCase(
+        callerPackageName: String,
+        case: CommCareIndexedCase,
+    ) {
+        val file = caseFile(callerPackageName, case.caseId)
+        try {
+            writeEncrypted(file) {
+                writeInt(case.subjects.size)
+                case.subjects.forEach { writeSubject(it) }
+            }
+        } catch (e: Exception) {
+            Simber.e("Failed to save a CommCare case to the index", e)
+            file.delete()
+        }
+    }
+
+    /**
+     * Returns the subjects of a single indexed case of the caller package, or null if it could not be read.
+     */
+    fun loadCase(
+        callerPackageName: String,
+        caseId: String,
+    ): List<CommCareIndexedSubject>? = try {
+        securityManager.getEncryptedFileBuilder(caseFile(callerPackageName, caseId), context).openFileInput().use { stream ->
+            val input = DataInputStream(stream.buffered())
+            List(input.readInt()) { input.readSubject() }
+        }
+    } catch (e: Exception) {
+        Simber.e("Failed to read a CommCare case from the index", e)
+        null
+    }
+
+    @Synchronized
+    fun invalidateAll() {
+        catalog = null
+        directory.deleteRecursively()
+    }
+
+    private fun writeEncrypted(
+        file: File,
+        write: DataOutputStream.() -> Unit,
+    ) {
+        file.parentFile?.mkdirs()
+        // Encrypted files cannot be overwritten
+        file.delete()
+        securityManager.getEncryptedFileBuilder(file, context).openFileOutput().use { stream ->
+            DataOutputStream(stream.buffered()).run {
+                write()
+                flush()
+            }
+        }
+    }
+
+    private fun readCatalog(
+        input: DataInputStream,
+        tokenizationKeysDigest: String,
+    ): List<CommCareIndexedCaseSummary>? {
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) return null
+        if (input.readUTF() != tokenizationKeysDigest) return null
+
+        return List(input.readInt()) {
+            CommCareIndexedCaseSummary(
+                caseId = input.readUTF(),
+                lastModified = input.readNullableUTF(),
+                subjects = List(input.readInt()) {
+                    CommCareIndexedSubjectSummary(
+                        subjectId = input.readUTF(),
+                        attendantId = input.readTokenizableString(),
+                        moduleId = input.readTokenizableString(),
+                        fingerprintFormats = List(input.readInt()) { input.readUTF() },
+                        faceFormats = List(input.readInt()) { input.readUTF() },
+                    )
+                },
+            )
+        }
+    }
+
+    private fun DataOutputStream.writeCatalog(
+        tokenizationKeysDigest: String,
+        cases: List<CommCareIndexedCaseSummary>,
+    ) {
+        writeInt(MAGIC)
+        writeInt(VERSION)
+        writeUTF(tokenizationKeysDigest)
+        writeInt(cases.size)
+        cases.forEach { case ->
+            writeUTF(case.caseId)
+            writeNullableUTF(case.lastModified)
+            writeInt(case.subjects.size)
+            case.subjects.forEach { subject ->
+                writeUTF(subject.subjectId)
+                writeTokenizableString(subject.attendantId)
+                writeTokenizableString(subject.moduleId)
+                writeInt(subject.fingerprintFormats.size)
+                subject.fingerprintFormats.forEach { writeUTF(it) }
+                writeInt(subject.faceFormats.size)
+                subject.faceFormats.forEach { writeUTF(it) }
+            }
+        }
+    }
+
+    private fun DataInputStream.readSubject() = CommCareIndexedSubject(
+        subjectId = readUTF(),
+        attendantId = readTokenizableString(),
+        moduleId = readTokenizableString(),
+        fingerprintSamples = List(readInt()) {
+            FingerprintSample(
+                fingerIdentifier = IFingerIdentifier.valueOf(readUTF()),
+                templateQualityScore = readInt(),
+                format = readUTF(),
+                referenceId = readUTF(),
+                template = readByteArray(),
+            )
+        },
+        faceSamples = List(readInt()) {
+            FaceSample(
+                format = readUTF(),
+                referenceId = readUTF(),
+                template = readByteArray(),
+            )
+        },
+    )
+
+    private fun DataOutputStream.writeSubject(subject: CommCareIndexedSubject) {
+        writeUTF(subject.subjectId)
+        writeTokenizableString(subject.attendantId)
+        writeTokenizableString(subject.moduleId)
+        writeInt(subject.fingerprintSamples.size)
+        subject.fingerprintSamples.forEach { sample ->
+            writeUTF(sample.fingerIdentifier.name)
+            writeInt(sample.templateQualityScore)
+            writeUTF(sample.format)
+            writeUTF(sample.referenceId)
+            writeByteArray(sample.template)
+        }
+        writeInt(subject.faceSamples.size)
+        subject.faceSamples.forEach { sample ->
+            writeUTF(sample.format)
+            writeUTF(sample.referenceId)
+            writeByteArray(sample.template)
+        }
+    }
+
+    private fun DataInputStream.readTokenizableString(): TokenizableString {
+        val isTokenized = readBoolean()
+        return readUTF().asTokenizable(isTokenized)
+    }
+
+    private fun DataOutputStream.writeTokenizableString(value: TokenizableString) {
+        writeBoolean(value.isTokenized())
+        writeUTF(value.value)
+    }
+
+    private fun DataInputStream.readNullableUTF(): String? = if (readBoolean()) readUTF() else null
+
+    private fun DataOutputStream.writeNullableUTF(value: String?) {
+        writeBoolean(value != null)
+        value?.let { writeUTF(it) }
+    }
+
+    private fun DataInputStream.readByteArray() = ByteArray(readInt()).also { readFully(it) }
+
+    private fun DataOutputStream.writeByteArray(value: ByteArray) {
+        writeInt(value.size)
+        write(value)
+    }
+
+    private fun directoryFor(callerPackageName: String) = File(directory, callerPackageName.replace(UNSAFE_CHARACTERS, "_"))
+
+    private fun caseFile(
+        callerPackageName: String,
+        caseId: String,
+    ) = File(File(directoryFor(callerPackageName), CASES_DIRECTORY_NAME), caseFileName(caseId))
+
+    // Case ids are not guaranteed to be valid file names
+    private fun caseFileName(caseId: String) = MessageDigest
+        .getInstance("SHA-256")
+        .digest(caseId.toByteArray())
+        .joinToString(separator = "") { "%02x".format(it) }
+
+    private class Catalog(
+        val callerPackageName: String,
+        val tokenizationKeysDigest: String,
+        val cases: List<CommCareIndexedCaseSummary>,
+    )
+
+    companion object {
+        private const val DIRECTORY_NAME = "commcare_index"
+        private const val CATALOG_FILE_NAME = "catalog"
+        private const val CASES_DIRECTORY_NAME = "cases"
+        private const val MAGIC = 0x43434958 // "CCIX"
+        private const val VERSION = 2
+        private val UNSAFE_CHARACTERS = Regex("[^A-Za-z0-9.-]")
+    }
+}
+
+/**
+ * CommCare case as read at its [lastModified] marker. Cases read without a marker are never reused.
+ */
+internal data class CommCareIndexedCase(
+    val caseId: String,
+    val lastModified: String?,
+    val subjects: List<CommCareIndexedSubject>,
+) {
+    fun toSummary() = CommCareIndexedCaseSummary(caseId, lastModified, subjects.map { it.toSummary() })
+}
+
+/**
+ * Enrolment record of a CommCare case, with ids in their tokenized form and decoded templates.
+ */
+internal data class CommCareIndexedSubject(
+    val subjectId: String,
+    val attendantId: TokenizableString,
+    val moduleId: TokenizableString,
+    val fingerprintSamples: List<FingerprintSample>,
+    val faceSamples: List<FaceSample>,
+) {
+    fun toSummary() = CommCareIndexedSubjectSummary(
+        subjectId = subjectId,
+        attendantId = attendantId,
+        moduleId = moduleId,
+        fingerprintFormats = fingerprintSamples.map { it.format }.distinct(),
+        faceFormats = faceSamples.map { it.format }.distinct(),
+    )
+}
+
+/**
+ * Catalog entry of an indexed case, without the templates of its subjects.
+ */
+internal data class CommCareIndexedCaseSummary(
+    val caseId: String,
+    val lastModified: String?,
+    val subjects: List<CommCareIndexedSubjectSummary>,
+)
+
+/**
+ * Fields of an indexed subject that queries filter on.
+ */
+internal data class CommCareIndexedSubjectSummary(
+    val subjectId: String,
+    val attendantId: TokenizableString,
+    val moduleId: TokenizableString,
+    val fingerprintFormats: List<String>,
+    val faceFormats: List<String>,
+)
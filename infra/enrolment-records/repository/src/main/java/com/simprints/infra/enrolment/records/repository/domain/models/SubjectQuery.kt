@@ -2,6 +2,7 @@ package com.simprints.infra.enrolment.records.repository.domain.models
 
 import androidx.annotation.Keep
 import com.simprints.core.domain.tokenization.TokenizableString
+import com.simprints.infra.config.store.models.TokenKeyType
 import java.io.Serializable
 
 @Keep
@@ -12,7 +13,7 @@ data class SubjectQuery(
     val attendantId: TokenizableString? = null,
     val fingerprintSampleFormat: String? = null,
     val faceSampleFormat: String? = null,
-    val hasUntokenizedFields: Boolean? = null,
+    val untokenizedKeyTypes: Set<TokenKeyType>? = null,
     val moduleId: TokenizableString? = null,
     val sort: Boolean = false,
     val afterSubjectId: String? = null,
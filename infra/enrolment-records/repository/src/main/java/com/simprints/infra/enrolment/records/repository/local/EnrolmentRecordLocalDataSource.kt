@@ -2,6 +2,8 @@ package com.simprints.infra.enrolment.records.repository.local
 
 import com.simprints.infra.config.store.models.Project
 import com.simprints.infra.enrolment.records.repository.IdentityDataSource
+import com.simprints.infra.enrolment.records.repository.domain.models.FaceIdentity
+import com.simprints.infra.enrolment.records.repository.domain.models.FingerprintIdentity
 import com.simprints.infra.enrolment.records.repository.domain.models.Subject
 import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAction
 import com.simprints.infra.enrolment.records.repository.domain.models.SubjectQuery
@@ -9,6 +11,53 @@ import com.simprints.infra.enrolment.records.repository.domain.models.SubjectQue
 interface EnrolmentRecordLocalDataSource : IdentityDataSource {
     suspend fun load(query: SubjectQuery): List<Subject>
 
+    /**
+     * Loads up to [pageSize] subjects sorted by subject id, starting right after [afterSubjectId]
+     * (or from the first subject when null). To get the next page, pass the subject id of the last loaded subject.
+     */
+    suspend fun loadPage(
+        query: SubjectQuery,
+        afterSubjectId: String?,
+        pageSize: Int,
+    ): List<Subject>
+
+    /**
+     * Loads up to [pageSize] fingerprint identities sorted by subject id, starting right after [afterSubjectId]
+     * (or from the first subject when null). To get the next page, pass the subject id of the last loaded identity.
+     *
+     * Unlike the range based loading, the position of the page is resolved via the subject id index instead of
+     * skipping all preceding results, so loading the whole pool page by page scales linearly.
+     */
+    suspend fun loadFingerprintIdentityPage(
+        query: SubjectQuery,
+        afterSubjectId: String?,
+        pageSize: Int,
+        onCandidateLoaded: () -> Unit,
+    ): List<FingerprintIdentity>
+
+    /**
+     * Same as [loadFingerprintIdentityPage], but for face identities.
+     */
+    suspend fun loadFaceIdentityPage(
+        query: SubjectQuery,
+        afterSubjectId: String?,
+        pageSize: Int,
+        onCandidateLoaded: () -> Unit,
+    ): List<FaceIdentity>
+
+    /**
+     * Tokenizes the attendant and module ids of up to [pageSize] subjects of the [project] that still have
+     * untokenized ids of the key types the project has, sorted by subject id and starting right after [afterSubjectId].
+     * Only the id fields that change are updated, within a single write transaction.
+     *
+     * @return the subject id of the last processed subject, or null when there was no subject left to process
+     */
+    suspend fun tokenizeIdsPage(
+        project: Project,
+        afterSubjectId: String?,
+        pageSize: Int,
+    ): String?
+
     suspend fun delete(queries: List<SubjectQuery>)
 
     suspend fun deleteAll()
@@ -1,6 +1,8 @@
 package com.simprints.infra.enrolment.records.repository.local
 
 import com.simprints.core.domain.tokenization.TokenizableString
+import com.simprints.core.domain.tokenization.asTokenizableRaw
+import com.simprints.core.domain.tokenization.isTokenized
 import com.simprints.infra.config.store.models.Project
 import com.simprints.infra.config.store.models.TokenKeyType
 import com.simprints.infra.config.store.tokenization.TokenizationProcessor
@@ -16,6 +18,7 @@ import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAct
 import com.simprints.infra.enrolment.records.repository.domain.models.SubjectQuery
 import com.simprints.infra.enrolment.records.repository.local.models.fromDbToDomain
 import com.simprints.infra.enrolment.records.repository.local.models.fromDomainToDb
+import com.simprints.infra.enrolment.records.repository.tokenizedIdKeyTypes
 import com.simprints.infra.logging.LoggingConstants.CrashReportTag.REALM_DB
 import com.simprints.infra.logging.Simber
 import io.realm.kotlin.MutableRealm
@@ -51,6 +54,18 @@ internal class EnrolmentRecordLocalDataSourceImpl @Inject constructor(
             .map { dbSubject -> dbSubject.fromDbToDomain() }
     }
 
+    override suspend fun loadPage(
+        query: SubjectQuery,
+        afterSubjectId: String?,
+        pageSize: Int,
+    ): List<Subject> = realmWrapper.readRealm {
+        it
+            .query(DbSubject::class)
+            .buildRealmQueryForPage(query, afterSubjectId, pageSize)
+            .find()
+            .map { dbSubject -> dbSubject.fromDbToDomain() }
+    }
+
     override suspend fun loadFingerprintIdentities(
         query: SubjectQuery,
         range: IntRange,
@@ -91,6 +106,44 @@ internal class EnrolmentRecordLocalDataSourceImpl @Inject constructor(
             }
     }
 
+    override suspend fun loadFingerprintIdentityPage(
+        query: SubjectQuery,
+        afterSubjectId: String?,
+        pageSize: Int,
+        onCandidateLoaded: () -> Unit,
+    ): List<FingerprintIdentity> = realmWrapper.readRealm { realm ->
+        realm
+            .query(DbSubject::class)
+            .buildRealmQueryForPage(query, afterSubjectId, pageSize)
+            .find()
+            .map { subject ->
+                onCandidateLoaded()
+                FingerprintIdentity(
+                    subject.subjectId.toString(),
+                    subject.fingerprintSamples.map(DbFingerprintSample::fromDbToDomain),
+                )
+            }
+    }
+
+    override suspend fun loadFaceIdentityPage(
+        query: SubjectQuery,
+        afterSubjectId: String?,
+        pageSize: Int,
+        onCandidateLoaded: () -> Unit,
+    ): List<FaceIdentity> = realmWrapper.readRealm { realm ->
+        realm
+            .query(DbSubject::class)
+            .buildRealmQueryForPage(query, afterSubjectId, pageSize)
+            .find()
+            .map { subject ->
+                onCandidateLoaded()
+                FaceIdentity(
+                    subject.subjectId.toString(),
+                    subject.faceSamples.map(DbFaceSample::fromDbToDomain),
+                )
+            }
+    }
+
     override suspend fun delete(queries: List<SubjectQuery>) {
         realmWrapper.writeRealm { realm ->
             queries.forEach {
@@ -127,8 +180,11 @@ internal class EnrolmentRecordLocalDataSourceImpl @Inject constructor(
             return
         }
 
+        // Down-sync batches often contain several actions on the same subject
+        val netActions = actions.coalesceBySubject()
+
         realmWrapper.writeRealm { realm ->
-            actions.forEach { action ->
+            netActions.forEach { action ->
                 when (action) {
                     is SubjectAction.Creation -> {
                         val newSubject = action.subject
@@ -190,6 +246,54 @@ internal class EnrolmentRecordLocalDataSourceImpl @Inject constructor(
         }
     }
 
+    override suspend fun tokenizeIdsPage(
+        project: Project,
+        afterSubjectId: String?,
+        pageSize: Int,
+    ): String? {
+        val keyTypes = project.tokenizedIdKeyTypes()
+        if (keyTypes.isEmpty()) return null
+
+        var lastSubjectId: String? = null
+        realmWrapper.writeRealm { realm ->
+            val subjects = realm
+                .query(DbSubject::class)
+                .buildRealmQueryForPage(
+                    SubjectQuery(projectId = project.id, untokenizedKeyTypes = keyTypes),
+                    afterSubjectId,
+                    pageSize,
+                ).find()
+
+            // Managed objects are updated in place and only the fields that change are written
+            if (TokenKeyType.ModuleId in keyTypes) {
+                val untokenizedModules = subjects.filterNot { it.isModuleIdTokenized }
+                tokenizationProcessor
+                    .encryptAll(untokenizedModules.map { it.moduleId.asTokenizableRaw() }, TokenKeyType.ModuleId, project)
+                    .zip(untokenizedModules)
+                    .forEach { (moduleId, subject) ->
+                        if (moduleId.isTokenized()) {
+                            subject.moduleId = moduleId.value
+                            subject.isModuleIdTokenized = true
+                        }
+                    }
+            }
+            if (TokenKeyType.AttendantId in keyTypes) {
+                val untokenizedAttendants = subjects.filterNot { it.isAttendantIdTokenized }
+                tokenizationProcessor
+                    .encryptAll(untokenizedAttendants.map { it.attendantId.asTokenizableRaw() }, TokenKeyType.AttendantId, project)
+                    .zip(untokenizedAttendants)
+                    .forEach { (attendantId, subject) ->
+                        if (attendantId.isTokenized()) {
+                            subject.attendantId = attendantId.value
+                            subject.isAttendantIdTokenized = true
+                        }
+                    }
+            }
+            lastSubjectId = subjects.lastOrNull()?.subjectId?.toString()
+        }
+        return lastSubjectId
+    }
+
     private fun TokenizableString.tokenizeIfNecessary(
         tokenKeyType: TokenKeyType,
         project: Project,
@@ -206,6 +310,20 @@ internal class EnrolmentRecordLocalDataSourceImpl @Inject constructor(
     private fun MutableRealm.findSubject(subjectId: RealmUUID): DbSubject? =
         query(DbSubject::class).query("$SUBJECT_ID_FIELD == $0", subjectId).first().find()
 
+    private fun RealmQuery<DbSubject>.buildRealmQueryForPage(
+        query: SubjectQuery,
+        afterSubjectId: String?,
+        pageSize: Int,
+    ): RealmQuery<DbSubject> {
+        var realmQuery = buildRealmQueryForSubject(query.copy(sort = false))
+        if (afterSubjectId != null) {
+            realmQuery = realmQuery.query("$SUBJECT_ID_FIELD > $0", RealmUUID.from(afterSubjectId))
+        }
+        return realmQuery
+            .sort(SUBJECT_ID_FIELD, Sort.ASCENDING)
+            .limit(pageSize)
+    }
+
     private fun RealmQuery<DbSubject>.buildRealmQueryForSubject(query: SubjectQuery): RealmQuery<DbSubject> {
         var realmQuery = this
 
@@ -248,12 +366,12 @@ internal class EnrolmentRecordLocalDataSourceImpl @Inject constructor(
                 RealmUUID.from(query.afterSubjectId),
             )
         }
-        if (query.hasUntokenizedFields != null) {
-            realmQuery = realmQuery.query(
-                "$IS_ATTENDANT_ID_TOKENIZED_FIELD == $0 OR $IS_MODULE_ID_TOKENIZED_FIELD == $1",
-                false,
-                false,
+        if (query.untokenizedKeyTypes != null) {
+            val untokenizedFields = listOfNotNull(
+                "$IS_ATTENDANT_ID_TOKENIZED_FIELD == false".takeIf { TokenKeyType.AttendantId in query.untokenizedKeyTypes },
+                "$IS_MODULE_ID_TOKENIZED_FIELD == false".takeIf { TokenKeyType.ModuleId in query.untokenizedKeyTypes },
             )
+            realmQuery = realmQuery.query(untokenizedFields.ifEmpty { listOf("FALSEPREDICATE") }.joinToString(" OR "))
         }
         if (query.sort) {
             realmQuery = realmQuery.sort(SUBJECT_ID_FIELD, Sort.ASCENDING)
@@ -0,0 +1,63 @@
+package com.simprints.infra.enrolment.records.repository.local
+
+import com.simprints.infra.enrolment.records.repository.domain.models.Subject
+import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAction
+
+/**
+ * Folds the actions on each subject into a single action with the same outcome as applying them in order,
+ * so that every subject is looked up and written at most once. Subjects keep the order of their first action.
+ *
+ * Deletions are kept even when the subject was created in the same list, since the creation
+ * might have replaced a subject that already exists in the DB.
+ */
+internal fun List<SubjectAction>.coalesceBySubject(): List<SubjectAction> {
+    if (size < 2) return this
+
+    val netActions = LinkedHashMap<String, SubjectAction>()
+    forEach { action ->
+        val subjectId = action.subjectId()
+        netActions[subjectId] = netActions[subjectId]?.then(action) ?: action
+    }
+    return netActions.values.toList()
+}
+
+private fun SubjectAction.subjectId() = when (this) {
+    is SubjectAction.Creation -> subject.subjectId
+    is SubjectAction.Update -> subjectId
+    is SubjectAction.Deletion -> subjectId
+}
+
+/**
+ * Returns a single action equivalent to applying this action and then [next] to the same subject.
+ */
+private fun SubjectAction.then(next: SubjectAction): SubjectAction = when (next) {
+    // Both replace whatever was done to the subject before
+    is SubjectAction.Creation, is SubjectAction.Deletion -> next
+
+    is SubjectAction.Update -> when (this) {
+        // The whole subject is known, so the update can be applied before writing it
+        is SubjectAction.Creation -> SubjectAction.Creation(subject.updatedWith(next))
+
+        // Updates of subjects that no longer exist are ignored
+        is SubjectAction.Deletion -> this
+
+        is SubjectAction.Update -> {
+            val referencesToRemove = next.referenceIdsToRemove.toSet()
+            SubjectAction.Update(
+                subjectId = subjectId,
+                faceSamplesToAdd = faceSamplesToAdd.filterNot { it.referenceId in referencesToRemove } + next.faceSamplesToAdd,
+                fingerprintSamplesToAdd = fingerprintSamplesToAdd
+                    .filterNot { it.referenceId in referencesToRemove } + next.fingerprintSamplesToAdd,
+                referenceIdsToRemove = (referenceIdsToRemove + next.referenceIdsToRemove).distinct(),
+            )
+        }
+    }
+}
+
+private fun Subject.updatedWith(update: SubjectAction.Update): Subject {
+    val referencesToRemove = update.referenceIdsToRemove.toSet()
+    return copy(
+        faceSamples = faceSamples.filterNot { it.referenceId in referencesToRemove } + update.faceSamplesToAdd,
+        fingerprintSamples = fingerprintSamples.filterNot { it.referenceId in referencesToRemove } + update.fingerprintSamplesToAdd,
+    )
+}
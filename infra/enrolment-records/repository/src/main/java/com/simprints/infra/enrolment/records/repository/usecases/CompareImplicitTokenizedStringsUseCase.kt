@@ -34,7 +34,10 @@ class CompareImplicitTokenizedStringsUseCase @Inject constructor(
         else -> ensureTokenized(s1, tokenKeyType, project) == ensureTokenized(s2, tokenKeyType, project)
     }
 
-    private fun ensureTokenized(
+    /**
+     * Brings the value to its tokenized state, so that it can be compared with other tokenized values by equality.
+     */
+    fun ensureTokenized(
         s: TokenizableString,
         tokenKeyType: TokenKeyType,
         project: Project,
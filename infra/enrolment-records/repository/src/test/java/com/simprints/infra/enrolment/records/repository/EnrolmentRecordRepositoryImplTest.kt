@@ -2,32 +2,37 @@ package com.simprints.infra.enrolment.records.repository
 
 import android.content.Context
 import android.content.SharedPreferences
-import com.simprints.core.domain.tokenization.asTokenizableEncrypted
-import com.simprints.core.domain.tokenization.asTokenizableRaw
 import com.simprints.infra.config.store.models.Project
 import com.simprints.infra.config.store.models.TokenKeyType
-import com.simprints.infra.config.store.tokenization.TokenizationProcessor
+import com.simprints.infra.enrolment.records.repository.commcare.CommCareIdentityIndex
 import com.simprints.infra.enrolment.records.repository.domain.models.BiometricDataSource
 import com.simprints.infra.enrolment.records.repository.domain.models.FaceIdentity
 import com.simprints.infra.enrolment.records.repository.domain.models.FingerprintIdentity
 import com.simprints.infra.enrolment.records.repository.domain.models.Subject
-import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAction
 import com.simprints.infra.enrolment.records.repository.domain.models.SubjectQuery
 import com.simprints.infra.enrolment.records.repository.local.EnrolmentRecordLocalDataSource
 import com.simprints.infra.enrolment.records.repository.remote.EnrolmentRecordRemoteDataSource
+import com.google.common.truth.Truth.assertThat
+import com.simprints.testtools.common.syntax.assertThrows
 import io.mockk.coEvery
 import io.mockk.coVerify
 import io.mockk.every
 import io.mockk.mockk
+import io.mockk.slot
+import io.mockk.verify
+import kotlinx.coroutines.channels.toList
 import kotlinx.coroutines.test.UnconfinedTestDispatcher
 import kotlinx.coroutines.test.runTest
 import org.junit.Before
 import org.junit.Test
-import java.util.Date
 
 class EnrolmentRecordRepositoryImplTest {
     companion object {
         private const val BATCH_SIZE = 2
+        private const val TOKENIZATION_BATCH_SIZE = 3
+        private const val TOKENIZATION_WATERMARK_KEY = "TOKENIZED_WITH"
+        private const val TOKENIZATION_PROGRESS_KEY = "PROGRESS"
+        private const val TOKENIZATION_PROGRESS_WATERMARK_KEY = "PROGRESS_TOKENIZED_WITH"
         private const val SUBJECT_ID_1 = "SUBJECT_ID_1"
         private const val SUBJECT_ID_2 = "SUBJECT_ID_2"
         private const val SUBJECT_ID_3 = "SUBJECT_ID_3"
@@ -51,9 +56,9 @@ class EnrolmentRecordRepositoryImplTest {
     }
 
     private val onCandidateLoaded: () -> Unit = {}
-    private val tokenizationProcessor = mockk<TokenizationProcessor>()
     private val localDataSource = mockk<EnrolmentRecordLocalDataSource>(relaxed = true)
     private val commCareDataSource = mockk<IdentityDataSource>(relaxed = true)
+    private val commCareIdentityIndex = mockk<CommCareIdentityIndex>(relaxed = true)
     private val remoteDataSource = mockk<EnrolmentRecordRemoteDataSource>(relaxed = true)
     private val prefsEditor = mockk<SharedPreferences.Editor>(relaxed = true)
     private val prefs = mockk<SharedPreferences> {
@@ -75,21 +80,18 @@ class EnrolmentRecordRepositoryImplTest {
             remoteDataSource = remoteDataSource,
             localDataSource = localDataSource,
             commCareDataSource = commCareDataSource,
-            tokenizationProcessor = tokenizationProcessor,
+            commCareIdentityIndex = commCareIdentityIndex,
             dispatcher = UnconfinedTestDispatcher(),
             batchSize = BATCH_SIZE,
+            tokenizationBatchSize = TOKENIZATION_BATCH_SIZE,
         )
     }
 
     @Test
     fun `should upload the records correctly when there is more than one batch`() = runTest {
-        val expectedSubjectQuery = SubjectQuery(sort = true)
         every { prefs.getString(any(), null) } returns null
-        coEvery { localDataSource.load(expectedSubjectQuery) } returns listOf(
-            SUBJECT_1,
-            SUBJECT_2,
-            SUBJECT_3,
-        )
+        coEvery { localDataSource.loadPage(SubjectQuery(), null, BATCH_SIZE) } returns listOf(SUBJECT_1, SUBJECT_2)
+        coEvery { localDataSource.loadPage(SubjectQuery(), SUBJECT_ID_2, BATCH_SIZE) } returns listOf(SUBJECT_3)
 
         repository.uploadRecords(listOf())
 
@@ -101,12 +103,8 @@ class EnrolmentRecordRepositoryImplTest {
 
     @Test
     fun `should upload the records correctly when there is exactly one batch`() = runTest {
-        val expectedSubjectQuery = SubjectQuery(sort = true)
         every { prefs.getString(any(), null) } returns null
-        coEvery { localDataSource.load(expectedSubjectQuery) } returns listOf(
-            SUBJECT_1,
-            SUBJECT_2,
-        )
+        coEvery { localDataSource.loadPage(SubjectQuery(), null, BATCH_SIZE) } returns listOf(SUBJECT_1, SUBJECT_2)
 
         repository.uploadRecords(listOf())
 
@@ -117,15 +115,10 @@ class EnrolmentRecordRepositoryImplTest {
 
     @Test
     fun `should upload the records correctly when there is more than two batches`() = runTest {
-        val expectedSubjectQuery = SubjectQuery(sort = true)
         every { prefs.getString(any(), null) } returns null
-        coEvery { localDataSource.load(expectedSubjectQuery) } returns listOf(
-            SUBJECT_1,
-            SUBJECT_2,
-            SUBJECT_3,
-            SUBJECT_4,
-            SUBJECT_5,
-        )
+        coEvery { localDataSource.loadPage(SubjectQuery(), null, BATCH_SIZE) } returns listOf(SUBJECT_1, SUBJECT_2)
+        coEvery { localDataSource.loadPage(SubjectQuery(), SUBJECT_ID_2, BATCH_SIZE) } returns listOf(SUBJECT_3, SUBJECT_4)
+        coEvery { localDataSource.loadPage(SubjectQuery(), SUBJECT_ID_4, BATCH_SIZE) } returns listOf(SUBJECT_5)
 
         repository.uploadRecords(listOf())
 
@@ -139,13 +132,9 @@ class EnrolmentRecordRepositoryImplTest {
 
     @Test
     fun `should upload the records correctly when some subject ids are specified`() = runTest {
-        val expectedSubjectQuery =
-            SubjectQuery(sort = true, subjectIds = listOf(SUBJECT_ID_1, SUBJECT_ID_2))
+        val expectedSubjectQuery = SubjectQuery(subjectIds = listOf(SUBJECT_ID_1, SUBJECT_ID_2))
         every { prefs.getString(any(), null) } returns null
-        coEvery { localDataSource.load(expectedSubjectQuery) } returns listOf(
-            SUBJECT_1,
-            SUBJECT_2,
-        )
+        coEvery { localDataSource.loadPage(expectedSubjectQuery, null, BATCH_SIZE) } returns listOf(SUBJECT_1, SUBJECT_2)
 
         repository.uploadRecords(listOf(SUBJECT_ID_1, SUBJECT_ID_2))
 
@@ -156,99 +145,176 @@ class EnrolmentRecordRepositoryImplTest {
 
     @Test
     fun `should upload the records correctly when it has failed before`() = runTest {
-        val expectedSubjectQuery = SubjectQuery(
-            sort = true,
-            afterSubjectId = SUBJECT_ID_3,
-        )
         every { prefs.getString(any(), null) } returns SUBJECT_ID_3
-        coEvery { localDataSource.load(expectedSubjectQuery) } returns listOf(
-            SUBJECT_1,
-            SUBJECT_2,
-        )
+        coEvery { localDataSource.loadPage(SubjectQuery(), SUBJECT_ID_3, BATCH_SIZE) } returns listOf(SUBJECT_4, SUBJECT_5)
 
         repository.uploadRecords(listOf())
 
-        coVerify(exactly = 1) { remoteDataSource.uploadRecords(listOf(SUBJECT_1, SUBJECT_2)) }
-        coVerify(exactly = 1) { prefsEditor.putString(any(), SUBJECT_ID_2) }
+        coVerify(exactly = 1) { remoteDataSource.uploadRecords(listOf(SUBJECT_4, SUBJECT_5)) }
+        coVerify(exactly = 0) { remoteDataSource.uploadRecords(match { SUBJECT_3 in it }) }
+        coVerify(exactly = 1) { prefsEditor.putString(any(), SUBJECT_ID_5) }
         coVerify(exactly = 1) { prefsEditor.remove(any()) }
     }
 
     @Test
-    fun `given the tokenization keys, when tokenizing existing subjects, the untokenized existing subjects should be tokenized`() =
-        runTest {
-            val projectId = "projectId"
-            val attendantIdRaw = "attendantId".asTokenizableRaw()
-            val moduleIdRaw = "moduleId".asTokenizableRaw()
-            val attendantIdTokenized = "attendantId".asTokenizableEncrypted()
-            val moduleIdTokenized = "moduleId".asTokenizableEncrypted()
-            val project = mockk<Project>()
-            val subject = Subject(
-                subjectId = "subjectId",
-                projectId = projectId,
-                attendantId = attendantIdRaw,
-                moduleId = moduleIdRaw,
-                createdAt = Date(),
-                updatedAt = null,
-                fingerprintSamples = emptyList(),
-                faceSamples = emptyList(),
-            )
-            every { project.id } returns projectId
-            coEvery { localDataSource.load(any()) } returns listOf(subject)
-            every {
-                tokenizationProcessor.encrypt(
-                    decrypted = attendantIdRaw,
-                    tokenKeyType = TokenKeyType.AttendantId,
-                    project = project,
-                )
-            } returns attendantIdTokenized
-            every {
-                tokenizationProcessor.encrypt(
-                    decrypted = moduleIdRaw,
-                    tokenKeyType = TokenKeyType.ModuleId,
-                    project = project,
-                )
-            } returns moduleIdTokenized
-
-            repository.tokenizeExistingRecords(project)
-            val expectedSubject = subject.copy(
-                attendantId = attendantIdTokenized,
-                moduleId = moduleIdTokenized,
+    fun `should keep the progress of uploaded pages when upload fails`() = runTest {
+        every { prefs.getString(any(), null) } returns null
+        coEvery { localDataSource.loadPage(SubjectQuery(), null, BATCH_SIZE) } returns listOf(SUBJECT_1, SUBJECT_2)
+        coEvery { localDataSource.loadPage(SubjectQuery(), SUBJECT_ID_2, BATCH_SIZE) } returns listOf(SUBJECT_3)
+        coEvery { remoteDataSource.uploadRecords(listOf(SUBJECT_3)) } throws IllegalStateException()
+
+        assertThrows<IllegalStateException> { repository.uploadRecords(listOf()) }
+
+        coVerify(exactly = 1) { prefsEditor.putString(any(), SUBJECT_ID_2) }
+        coVerify(exactly = 0) { prefsEditor.putString(any(), SUBJECT_ID_3) }
+        coVerify(exactly = 0) { prefsEditor.remove(any()) }
+    }
+
+    @Test
+    fun `when tokenizing existing subjects, pages are tokenized until none is left and the keys are saved`() = runTest {
+        every { prefs.getString(any(), null) } returns null
+        val project = tokenizedProject()
+        coEvery { localDataSource.tokenizeIdsPage(project, null, TOKENIZATION_BATCH_SIZE) } returns SUBJECT_ID_2
+        coEvery { localDataSource.tokenizeIdsPage(project, SUBJECT_ID_2, TOKENIZATION_BATCH_SIZE) } returns SUBJECT_ID_4
+        coEvery { localDataSource.tokenizeIdsPage(project, SUBJECT_ID_4, TOKENIZATION_BATCH_SIZE) } returns null
+
+        repository.tokenizeExistingRecords(project)
+
+        coVerify(exactly = 3) { localDataSource.tokenizeIdsPage(project, any(), TOKENIZATION_BATCH_SIZE) }
+        coVerify(exactly = 1) { prefsEditor.putString(TOKENIZATION_PROGRESS_KEY, SUBJECT_ID_2) }
+        coVerify(exactly = 1) { prefsEditor.putString(TOKENIZATION_PROGRESS_KEY, SUBJECT_ID_4) }
+        coVerify(exactly = 1) { prefsEditor.remove(TOKENIZATION_PROGRESS_KEY) }
+        coVerify(exactly = 1) { prefsEditor.putString(TOKENIZATION_WATERMARK_KEY, any()) }
+    }
+
+    @Test
+    fun `when existing subjects are already tokenized with the project keys, then they are not tokenized again`() = runTest {
+        every { prefs.getString(any(), null) } returns null
+        val project = tokenizedProject()
+        val watermark = slot<String>()
+        every { prefsEditor.putString(TOKENIZATION_WATERMARK_KEY, capture(watermark)) } returns prefsEditor
+        coEvery { localDataSource.tokenizeIdsPage(project, any(), any()) } returns null
+        repository.tokenizeExistingRecords(project)
+
+        every { prefs.getString(TOKENIZATION_WATERMARK_KEY, null) } returns watermark.captured
+        repository.tokenizeExistingRecords(project)
+
+        coVerify(exactly = 1) { localDataSource.tokenizeIdsPage(project, any(), any()) }
+    }
+
+    @Test
+    fun `when untokenized subjects are left after tokenizing with the project keys, then they are tokenized again`() = runTest {
+        every { prefs.getString(any(), null) } returns null
+        val project = tokenizedProject()
+        val watermark = slot<String>()
+        every { prefsEditor.putString(TOKENIZATION_WATERMARK_KEY, capture(watermark)) } returns prefsEditor
+        coEvery { localDataSource.tokenizeIdsPage(project, any(), any()) } returns null
+        repository.tokenizeExistingRecords(project)
+
+        every { prefs.getString(TOKENIZATION_WATERMARK_KEY, null) } returns watermark.captured
+        coEvery {
+            localDataSource.count(
+                SubjectQuery(projectId = "projectId", untokenizedKeyTypes = setOf(TokenKeyType.AttendantId, TokenKeyType.ModuleId)),
+                any(),
             )
-            val expectedSubjectActions = listOf(SubjectAction.Creation(expectedSubject))
-            coVerify { localDataSource.performActions(expectedSubjectActions, project) }
+        } returns 1
+        repository.tokenizeExistingRecords(project)
+
+        coVerify(exactly = 2) { localDataSource.tokenizeIdsPage(project, null, any()) }
+    }
+
+    @Test
+    fun `when the project only has some key types, then only those are rechecked for untokenized subjects`() = runTest {
+        every { prefs.getString(any(), null) } returns null
+        val project = mockk<Project> {
+            every { id } returns "projectId"
+            every { tokenizationKeys } returns mapOf(TokenKeyType.ModuleId to "moduleIdKey")
         }
+        val watermark = slot<String>()
+        every { prefsEditor.putString(TOKENIZATION_WATERMARK_KEY, capture(watermark)) } returns prefsEditor
+        coEvery { localDataSource.tokenizeIdsPage(project, any(), any()) } returns null
+        repository.tokenizeExistingRecords(project)
+
+        every { prefs.getString(TOKENIZATION_WATERMARK_KEY, null) } returns watermark.captured
+        repository.tokenizeExistingRecords(project)
+
+        coVerify { localDataSource.count(SubjectQuery(projectId = "projectId", untokenizedKeyTypes = setOf(TokenKeyType.ModuleId)), any()) }
+        coVerify(exactly = 1) { localDataSource.tokenizeIdsPage(project, any(), any()) }
+    }
 
     @Test
-    fun `given the different project, when tokenizing existing subjects, the untokenized existing subjects are not tokenized`() = runTest {
-        val projectId = "projectId"
-        val attendantIdRaw = "attendantId".asTokenizableRaw()
-        val moduleIdRaw = "moduleId".asTokenizableRaw()
-        val project = mockk<Project>()
-        val subject = Subject(
-            subjectId = "subjectId",
-            projectId = "another project id",
-            attendantId = attendantIdRaw,
-            moduleId = moduleIdRaw,
-            createdAt = Date(),
-            updatedAt = null,
-            fingerprintSamples = emptyList(),
-            faceSamples = emptyList(),
-        )
-        every { project.id } returns projectId
-        coEvery { localDataSource.load(any()) } returns listOf(subject)
+    fun `when the project has no tokenization keys, then existing subjects are not checked nor tokenized`() = runTest {
+        every { prefs.getString(any(), null) } returns null
+        val project = mockk<Project> {
+            every { id } returns "projectId"
+            every { tokenizationKeys } returns emptyMap()
+        }
 
         repository.tokenizeExistingRecords(project)
-        coVerify { localDataSource.performActions(emptyList(), project) }
+
+        coVerify(exactly = 0) { localDataSource.count(any(), any()) }
+        coVerify(exactly = 0) { localDataSource.tokenizeIdsPage(any(), any(), any()) }
+    }
+
+    @Test
+    fun `when the project keys change, then existing subjects are tokenized again`() = runTest {
+        every { prefs.getString(any(), null) } returns null
+        val watermark = slot<String>()
+        every { prefsEditor.putString(TOKENIZATION_WATERMARK_KEY, capture(watermark)) } returns prefsEditor
+        coEvery { localDataSource.tokenizeIdsPage(any(), any(), any()) } returns null
+        repository.tokenizeExistingRecords(tokenizedProject())
+
+        every { prefs.getString(TOKENIZATION_WATERMARK_KEY, null) } returns watermark.captured
+        repository.tokenizeExistingRecords(tokenizedProject(moduleIdKey = "otherModuleIdKey"))
+
+        coVerify(exactly = 2) { localDataSource.tokenizeIdsPage(any(), null, any()) }
+    }
+
+    @Test
+    fun `when tokenizing existing subjects was interrupted, then it resumes after the last tokenized subject`() = runTest {
+        every { prefs.getString(any(), null) } returns null
+        val project = tokenizedProject()
+        val watermark = slot<String>()
+        every { prefsEditor.putString(TOKENIZATION_PROGRESS_WATERMARK_KEY, capture(watermark)) } returns prefsEditor
+        coEvery { localDataSource.tokenizeIdsPage(project, null, any()) } returns SUBJECT_ID_2
+        coEvery { localDataSource.tokenizeIdsPage(project, SUBJECT_ID_2, any()) } throws Exception()
+        repository.tokenizeExistingRecords(project)
+
+        every { prefs.getString(TOKENIZATION_PROGRESS_KEY, null) } returns SUBJECT_ID_2
+        every { prefs.getString(TOKENIZATION_PROGRESS_WATERMARK_KEY, null) } returns watermark.captured
+        coEvery { localDataSource.tokenizeIdsPage(project, SUBJECT_ID_2, any()) } returns null
+        repository.tokenizeExistingRecords(project)
+
+        coVerify(exactly = 1) { localDataSource.tokenizeIdsPage(project, null, any()) }
+        coVerify(exactly = 2) { localDataSource.tokenizeIdsPage(project, SUBJECT_ID_2, any()) }
+        coVerify(exactly = 1) { prefsEditor.remove(TOKENIZATION_PROGRESS_KEY) }
     }
 
     @Test
     fun `when tokenizing existing subjects throws exception, then it is captured and not thrown up the calling chain`() = runTest {
-        val projectId = "projectId"
-        val project = mockk<Project>()
-        every { project.id } returns projectId
-        coEvery { localDataSource.load(any()) } throws Exception()
+        every { prefs.getString(any(), null) } returns null
+        val project = tokenizedProject()
+        coEvery { localDataSource.tokenizeIdsPage(any(), any(), any()) } throws Exception()
 
         repository.tokenizeExistingRecords(project)
+
+        coVerify(exactly = 0) { prefsEditor.putString(TOKENIZATION_WATERMARK_KEY, any()) }
+    }
+
+    private fun tokenizedProject(moduleIdKey: String = "moduleIdKey") = mockk<Project> {
+        every { id } returns "projectId"
+        every { tokenizationKeys } returns mapOf(
+            TokenKeyType.AttendantId to "attendantIdKey",
+            TokenKeyType.ModuleId to moduleIdKey,
+        )
+    }
+
+    @Test
+    fun `when deleting all records, the CommCare index is deleted too`() = runTest {
+        repository.deleteAll()
+
+        coVerify { localDataSource.deleteAll() }
+        verify { commCareIdentityIndex.invalidateAll() }
     }
 
     @Test
@@ -398,4 +464,76 @@ class EnrolmentRecordRepositoryImplTest {
             )
         }
     }
+
+    @Test
+    fun `should stream local fingerprint identities page by page continuing after the last loaded subject`() = runTest {
+        val expectedSubjectQuery = SubjectQuery()
+        val firstPage = listOf(FingerprintIdentity(SUBJECT_ID_1, emptyList()))
+        val secondPage = listOf(FingerprintIdentity(SUBJECT_ID_2, emptyList()))
+        coEvery {
+            localDataSource.loadFingerprintIdentityPage(expectedSubjectQuery, null, 1, onCandidateLoaded)
+        } returns firstPage
+        coEvery {
+            localDataSource.loadFingerprintIdentityPage(expectedSubjectQuery, SUBJECT_ID_1, 1, onCandidateLoaded)
+        } returns secondPage
+
+        val batches = repository
+            .loadFingerprintIdentities(
+                query = expectedSubjectQuery,
+                ranges = listOf(0..1, 1..2),
+                dataSource = BiometricDataSource.Simprints,
+                project = project,
+                scope = this,
+                onCandidateLoaded = onCandidateLoaded,
+            ).toList()
+
+        assertThat(batches).containsExactly(firstPage, secondPage).inOrder()
+    }
+
+    @Test
+    fun `should stop streaming local face identities when a page is empty`() = runTest {
+        val expectedSubjectQuery = SubjectQuery()
+        val firstPage = listOf(FaceIdentity(SUBJECT_ID_1, emptyList()))
+        coEvery {
+            localDataSource.loadFaceIdentityPage(expectedSubjectQuery, null, 1, onCandidateLoaded)
+        } returns firstPage
+        coEvery {
+            localDataSource.loadFaceIdentityPage(expectedSubjectQuery, SUBJECT_ID_1, 1, onCandidateLoaded)
+        } returns emptyList()
+
+        val batches = repository
+            .loadFaceIdentities(
+                query = expectedSubjectQuery,
+                ranges = listOf(0..1, 1..2, 2..3),
+                dataSource = BiometricDataSource.Simprints,
+                project = project,
+                scope = this,
+                onCandidateLoaded = onCandidateLoaded,
+            ).toList()
+
+        assertThat(batches).containsExactly(firstPage)
+        coVerify(exactly = 2) { localDataSource.loadFaceIdentityPage(any(), any(), any(), any()) }
+    }
+
+    @Test
+    fun `should stream face identities from the commcare data source when dataSource is CommCare`() = runTest {
+        val expectedSubjectQuery = SubjectQuery()
+        val expectedFaceIdentities = listOf(FaceIdentity(SUBJECT_ID_1, emptyList()))
+        coEvery {
+            commCareDataSource.loadFaceIdentities(expectedSubjectQuery, 0..10, any(), project, onCandidateLoaded)
+        } returns expectedFaceIdentities
+
+        val batches = repository
+            .loadFaceIdentities(
+                query = expectedSubjectQuery,
+                ranges = listOf(0..10),
+                dataSource = BiometricDataSource.CommCare(""),
+                project = project,
+                scope = this,
+                onCandidateLoaded = onCandidateLoaded,
+            ).toList()
+
+        assertThat(batches).containsExactly(expectedFaceIdentities)
+        coVerify(exactly = 0) { localDataSource.loadFaceIdentities(any(), any(), any(), any(), any()) }
+    }
 }
@@ -0,0 +1,104 @@
+package com.simprints.infra.enrolment.records.repository.commcare
+
+import com.fasterxml.jackson.core.JsonProcessingException
+import com.google.common.truth.Truth.assertThat
+import com.simprints.core.domain.fingerprint.IFingerIdentifier
+import com.simprints.core.domain.tokenization.TokenizableString
+import com.simprints.core.tools.utils.EncodingUtils
+import com.simprints.testtools.common.syntax.assertThrows
+import io.mockk.every
+import io.mockk.mockk
+import org.junit.Before
+import org.junit.Test
+
+class CoSyncSubjectActionsParserTest {
+    private val encoder = mockk<EncodingUtils>()
+
+    private lateinit var parser: CoSyncSubjectActionsParser
+
+    @Before
+    fun setUp() {
+        every { encoder.base64ToBytes(any()) } answers { firstArg<String>().toByteArray() }
+        parser = CoSyncSubjectActionsParser(encoder)
+    }
+
+    @Test
+    fun `enrolment record creation events are parsed`() {
+        val subjects = parser.parse(SUBJECT_ACTIONS)
+
+        val subject = subjects.single()
+        assertThat(subject.subjectId).isEqualTo("subjectId")
+        assertThat(subject.moduleId).isEqualTo(TokenizableString.Tokenized("moduleId"))
+        assertThat(subject.attendantId).isEqualTo(TokenizableString.Raw("attendantId"))
+
+        val fingerprint = subject.fingerprintSamples.single()
+        assertThat(fingerprint.fingerIdentifier).isEqualTo(IFingerIdentifier.LEFT_THUMB)
+        assertThat(fingerprint.templateQualityScore).isEqualTo(99)
+        assertThat(fingerprint.template).isEqualTo("fingerprintTemplate".toByteArray())
+        assertThat(fingerprint.format).isEqualTo("ISO_19794_2")
+        assertThat(fingerprint.referenceId).isEqualTo("fingerprintReferenceId")
+
+        val face = subject.faceSamples.single()
+        assertThat(face.template).isEqualTo("faceTemplate".toByteArray())
+        assertThat(face.format).isEqualTo("ROC_3")
+        assertThat(face.referenceId).isEqualTo("faceReferenceId")
+    }
+
+    @Test
+    fun `plain string ids are parsed as raw values`() {
+        val subjects = parser.parse(
+            """{"events":[{"id":"eventId","type":"EnrolmentRecordCreation","payload":{"subjectId":"subjectId","moduleId":"moduleId","attendantId":"attendantId","biometricReferences":[]}}]}""",
+        )
+
+        assertThat(subjects.single().moduleId).isEqualTo(TokenizableString.Raw("moduleId"))
+        assertThat(subjects.single().attendantId).isEqualTo(TokenizableString.Raw("attendantId"))
+    }
+
+    @Test
+    fun `events are filtered by type wherever it is in the event`() {
+        val subjects = parser.parse(
+            """{"events":[
+                |{"payload":{"subjectId":"first","moduleId":"m","attendantId":"a","biometricReferences":[]},"type":"EnrolmentRecordCreation"},
+                |{"payload":{"subjectId":"deleted","moduleId":"m","attendantId":"a"},"type":"EnrolmentRecordDeletion"},
+                |{"type":"EnrolmentRecordMove","payload":{"enrolmentRecordCreation":{"subjectId":"moved"}}},
+                |{"type":"EnrolmentRecordCreation","payload":{"subjectId":"second","moduleId":"m","attendantId":"a","biometricReferences":[]}}
+                |]}
+            """.trimMargin(),
+        )
+
+        assertThat(subjects.map { it.subjectId }).containsExactly("first", "second").inOrder()
+    }
+
+    @Test
+    fun `references of unknown type and incomplete events are skipped`() {
+        val subjects = parser.parse(
+            """{"events":[
+                |{"type":"EnrolmentRecordCreation","payload":{"subjectId":"subjectId","moduleId":"m","attendantId":"a","biometricReferences":[
+                |{"id":"referenceId","format":"format","templates":[{"template":"template"}],"type":"UNKNOWN_REFERENCE"}]}},
+                |{"type":"EnrolmentRecordCreation","payload":{"moduleId":"m","attendantId":"a","biometricReferences":[]}}
+                |]}
+            """.trimMargin(),
+        )
+
+        val subject = subjects.single()
+        assertThat(subject.fingerprintSamples).isEmpty()
+        assertThat(subject.faceSamples).isEmpty()
+    }
+
+    @Test
+    fun `subject actions without events are parsed to no subjects`() {
+        assertThat(parser.parse("""{"other":{"events":[1]}}""")).isEmpty()
+    }
+
+    @Test
+    fun `malformed subject actions throw`() {
+        assertThrows<JsonProcessingException> {
+            parser.parse("""{"events":[{"type":"EnrolmentRecordCreation","payload":""")
+        }
+    }
+
+    companion object {
+        private const val SUBJECT_ACTIONS =
+            """{"events":[{"id":"eventId","payload":{"subjectId":"subjectId","projectId":"projectId","moduleId":{"className":"TokenizableString.Tokenized","value":"moduleId"},"attendantId":{"value":"attendantId"},"biometricReferences":[{"id":"fingerprintReferenceId","templates":[{"quality":99,"template":"fingerprintTemplate","finger":"LEFT_THUMB"}],"format":"ISO_19794_2","metadata":{"key":"value"},"type":"FINGERPRINT_REFERENCE"},{"id":"faceReferenceId","templates":[{"template":"faceTemplate"}],"format":"ROC_3","type":"FACE_REFERENCE"}]},"type":"EnrolmentRecordCreation"}]}"""
+    }
+}
@@ -9,10 +9,12 @@ import com.simprints.core.domain.fingerprint.FingerprintSample
 import com.simprints.core.domain.fingerprint.IFingerIdentifier.LEFT_INDEX_FINGER
 import com.simprints.core.domain.fingerprint.IFingerIdentifier.LEFT_THUMB
 import com.simprints.core.domain.tokenization.TokenizableString
-import com.simprints.core.tools.json.JsonHelper
 import com.simprints.core.tools.utils.EncodingUtils
+import com.simprints.infra.config.store.ConfigRepository
 import com.simprints.infra.config.store.models.Project
+import com.simprints.infra.enrolment.records.repository.commcare.CommCareIdentityDataSource.Companion.COLUMN_CASE_ID
 import com.simprints.infra.enrolment.records.repository.commcare.CommCareIdentityDataSource.Companion.COLUMN_DATUM_ID
+import com.simprints.infra.enrolment.records.repository.commcare.CommCareIdentityDataSource.Companion.COLUMN_LAST_MODIFIED
 import com.simprints.infra.enrolment.records.repository.commcare.CommCareIdentityDataSource.Companion.COLUMN_VALUE
 import com.simprints.infra.enrolment.records.repository.domain.models.FaceIdentity
 import com.simprints.infra.enrolment.records.repository.domain.models.FingerprintIdentity
@@ -24,15 +26,21 @@ import io.mockk.*
 import io.mockk.impl.annotations.MockK
 import junit.framework.TestCase.assertEquals
 import junit.framework.TestCase.assertTrue
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.test.runTest
 import org.junit.AfterClass
 import org.junit.Before
 import org.junit.BeforeClass
 import org.junit.Rule
 import org.junit.Test
+import java.util.concurrent.ConcurrentHashMap
 
 class CommCareIdentityDataSourceTest {
     companion object {
+        private const val PROJECT_ID = "projectId"
+        private const val CASE_ID = "caseId"
+        private const val LAST_MODIFIED = "2024-01-01 10:00:00"
+        private const val INDEXED_SUBJECT_ID = "indexedSubjectId"
         private const val SUBJECT_ACTIONS_FINGERPRINT_1 =
             """{"events":[{"id":"0dafcd03-96c4-4ca5-b802-292da6d4f799","payload":{"subjectId":"b26c91bc-b307-4131-80c3-55090ba5dbf2","projectId":"nXcj9neYhXP9rFp56uWk","moduleId":{"value":"AWuA3H0WGtHI2uod+ePZ3yiWTt9etQ=="},"attendantId":{"value":"AdySMrjuy7uq0Dcxov3rUFIw66uXTFrKd0BnzSr9MYXl5maWEpyKQT8AUdcPuVHUWpOkO88="},"biometricReferences":[{"id":"2b9b4991-29d7-3eee-ac02-191afaa0c1a2","templates":[{"quality":99,"template":"123","finger":"LEFT_THUMB"},{"quality":88,"template":"123","finger":"LEFT_INDEX_FINGER"}],"format":"ISO_19794_2","type":"FINGERPRINT_REFERENCE"}]},"type":"EnrolmentRecordCreation"}]}"""
         private const val SUBJECT_ACTIONS_FINGERPRINT_2 =
@@ -155,12 +163,21 @@ class CommCareIdentityDataSourceTest {
     @MockK
     private lateinit var useCase: CompareImplicitTokenizedStringsUseCase
 
+    @MockK
+    private lateinit var configRepository: ConfigRepository
+
+    @MockK
+    private lateinit var index: CommCareIdentityIndex
+
     private lateinit var mockMetadataCursor: Cursor
 
     private lateinit var mockDataCursor: Cursor
 
     private lateinit var dataSource: CommCareIdentityDataSource
 
+    private val indexedCatalog = mutableListOf<CommCareIndexedCaseSummary>()
+    private val indexedCases = ConcurrentHashMap<String, List<CommCareIndexedSubject>>()
+
     @MockK
     lateinit var project: Project
 
@@ -178,6 +195,12 @@ class CommCareIdentityDataSourceTest {
         mockMetadataCursor = mockk(relaxed = true)
         mockDataCursor = mockk(relaxed = true)
 
+        // Every case has its own id unless a test says otherwise
+        var caseCount = 0
+        every { mockMetadataCursor.getColumnIndexOrThrow(COLUMN_CASE_ID) } returns 0
+        every { mockMetadataCursor.getColumnIndex(COLUMN_LAST_MODIFIED) } returns -1
+        every { mockMetadataCursor.getString(0) } answers { "caseId${caseCount++}" }
+
         every { mockMetadataCursor.close() } just Runs
         every { mockDataCursor.close() } just Runs
 
@@ -201,12 +224,28 @@ class CommCareIdentityDataSourceTest {
         } returns mockDataCursor
 
         every { encoder.base64ToBytes(any()) } returns byteArrayOf()
-        every { useCase.invoke(any(), any(), any(), any()) } returns true
+        every { useCase.ensureTokenized(any(), any(), any()) } answers { firstArg() }
+        every { project.id } returns PROJECT_ID
+        every { project.tokenizationKeys } returns emptyMap()
+        coEvery { configRepository.getProject() } returns project
+        indexedCatalog.clear()
+        indexedCases.clear()
+        every { index.loadCatalog(any(), any()) } answers { indexedCatalog.toList() }
+        every { index.saveCatalog(any(), any(), any()) } answers {
+            indexedCatalog.clear()
+            indexedCatalog += thirdArg<List<CommCareIndexedCaseSummary>>()
+        }
+        every { index.saveCase(any(), any()) } answers {
+            val case = secondArg<CommCareIndexedCase>()
+            indexedCases[case.caseId] = case.subjects
+        }
+        every { index.loadCase(any(), any()) } answers { indexedCases[secondArg()] }
 
         dataSource = CommCareIdentityDataSource(
-            encoder,
-            JsonHelper,
+            CoSyncSubjectActionsParser(encoder),
             useCase,
+            configRepository,
+            index,
             context,
             testCoroutineRule.testCoroutineDispatcher,
         )
@@ -214,9 +253,7 @@ class CommCareIdentityDataSourceTest {
 
     @Test
     fun testLoadFingerprintIdentities() = runTest {
-        every { mockMetadataCursor.count } returns expectedFingerprintIdentities.size
-        every { mockMetadataCursor.moveToPosition(0) } returns true
-        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, false)
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, false)
         every { mockDataCursor.moveToNext() } returns true
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_DATUM_ID) } returns 0
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_VALUE) } returns 1
@@ -259,9 +296,7 @@ class CommCareIdentityDataSourceTest {
 
     @Test
     fun testLoadFaceIdentities() = runTest {
-        every { mockMetadataCursor.count } returns expectedFaceIdentities.size
-        every { mockMetadataCursor.moveToPosition(0) } returns true
-        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, false)
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, false)
         every { mockDataCursor.moveToNext() } returns true
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_DATUM_ID) } returns 0
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_VALUE) } returns 1
@@ -305,9 +340,7 @@ class CommCareIdentityDataSourceTest {
 
     @Test
     fun `test loadFingerprintIdentities returns only identities with fingerprint references`() = runTest {
-        every { mockMetadataCursor.count } returns expectedFingerprintIdentities.size + 1
-        every { mockMetadataCursor.moveToPosition(0) } returns true
-        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, false)
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, true, false)
         every { mockDataCursor.moveToNext() } returns true
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_DATUM_ID) } returns 0
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_VALUE) } returns 1
@@ -352,9 +385,7 @@ class CommCareIdentityDataSourceTest {
 
     @Test
     fun `test loadFaceIdentities returns only identities with face references`() = runTest {
-        every { mockMetadataCursor.count } returns expectedFaceIdentities.size + 1
-        every { mockMetadataCursor.moveToPosition(0) } returns true
-        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, false)
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, true, false)
         every { mockDataCursor.moveToNext() } returns true
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_DATUM_ID) } returns 0
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_VALUE) } returns 1
@@ -395,9 +426,7 @@ class CommCareIdentityDataSourceTest {
 
     @Test
     fun `test loadFingerprintIdentities returns only fingerprint references for dual modality identities`() = runTest {
-        every { mockMetadataCursor.count } returns expectedFingerprintIdentities.size
-        every { mockMetadataCursor.moveToPosition(0) } returns true
-        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, false)
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, false)
         every { mockDataCursor.moveToNext() } returns true
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_DATUM_ID) } returns 0
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_VALUE) } returns 1
@@ -439,9 +468,7 @@ class CommCareIdentityDataSourceTest {
 
     @Test
     fun `test loadFaceIdentities returns only face references for dual modality identities`() = runTest {
-        every { mockMetadataCursor.count } returns expectedFaceIdentities.size
-        every { mockMetadataCursor.moveToPosition(0) } returns true
-        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, false)
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, false)
         every { mockDataCursor.moveToNext() } returns true
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_DATUM_ID) } returns 0
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_VALUE) } returns 1
@@ -478,15 +505,39 @@ class CommCareIdentityDataSourceTest {
 
     @Test
     fun testCount() = runTest {
-        val expectedCount = 5
-        every { mockMetadataCursor.count } returns expectedCount
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, true, false)
+        every { mockDataCursor.moveToNext() } returns true
+        every { mockDataCursor.getColumnIndexOrThrow(COLUMN_DATUM_ID) } returns 0
+        every { mockDataCursor.getColumnIndexOrThrow(COLUMN_VALUE) } returns 1
+        every { mockDataCursor.getString(0) } returns "subjectActions"
+        every { mockDataCursor.getString(1) } returnsMany listOf(
+            SUBJECT_ACTIONS_FINGERPRINT_1,
+            SUBJECT_ACTIONS_FINGERPRINT_2,
+            SUBJECT_ACTIONS_FACE_1,
+        )
 
-        val query = SubjectQuery()
-        val actualCount = dataSource.count(query)
+        val actualCount = dataSource.count(SubjectQuery())
 
-        assertEquals(expectedCount, actualCount)
+        assertEquals(3, actualCount)
         coVerify { mockContentResolver.query(mockMetadataUri, any(), any(), any(), any()) }
-        coVerify { mockMetadataCursor.count }
+    }
+
+    @Test
+    fun `count only includes the subjects matching the query`() = runTest {
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, true, false)
+        every { mockDataCursor.moveToNext() } returns true
+        every { mockDataCursor.getColumnIndexOrThrow(COLUMN_DATUM_ID) } returns 0
+        every { mockDataCursor.getColumnIndexOrThrow(COLUMN_VALUE) } returns 1
+        every { mockDataCursor.getString(0) } returns "subjectActions"
+        every { mockDataCursor.getString(1) } returnsMany listOf(
+            SUBJECT_ACTIONS_FINGERPRINT_1,
+            SUBJECT_ACTIONS_FINGERPRINT_2,
+            SUBJECT_ACTIONS_FACE_1,
+        )
+
+        val actualCount = dataSource.count(SubjectQuery(fingerprintSampleFormat = "ISO_19794_2"))
+
+        assertEquals(1, actualCount)
     }
 
     @Test
@@ -519,77 +570,268 @@ class CommCareIdentityDataSourceTest {
     }
 
     @Test
-    fun `test metadata cursor size below range's first`() = runTest {
-        every { mockMetadataCursor.count } returns 1
+    fun `test matching subjects below range's first`() = runTest {
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, false)
+        every { mockMetadataCursor.getColumnIndexOrThrow(COLUMN_CASE_ID) } returns 0
+        every { mockMetadataCursor.getColumnIndex(COLUMN_LAST_MODIFIED) } returns 1
+        every { mockMetadataCursor.getString(0) } returns CASE_ID
+        every { mockMetadataCursor.getString(1) } returns LAST_MODIFIED
+        indexCases(indexedCase(LAST_MODIFIED))
 
         val query = SubjectQuery()
         val range = 2..3
         val actualIdentities = dataSource.loadFingerprintIdentities(query, range, project = project) {}
 
         assertTrue(actualIdentities.isEmpty())
-        coVerify { mockContentResolver.query(mockMetadataUri, any(), any(), any(), any()) }
-        coVerify(exactly = 0) {
-            mockContentResolver.query(
-                mockDataCaseIdUri,
-                any(),
-                any(),
-                any(),
-                any(),
-            )
-        }
     }
 
     @Test
-    fun `test metadata cursor size bigger than range`() = runTest {
-        every { mockMetadataCursor.count } returns expectedFingerprintIdentities.size + 1
-        every { mockMetadataCursor.moveToPosition(0) } returns true
-        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true)
-        every { mockMetadataCursor.position } returnsMany listOf(1, 2)
+    fun `test matching subjects more than range`() = runTest {
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, true, false)
         every { mockDataCursor.moveToNext() } returns true
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_DATUM_ID) } returns 0
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_VALUE) } returns 1
-        every { mockDataCursor.getString(0) } returnsMany listOf(
-            "someOtherDatumId",
-            "subjectActions",
-            "someOtherDatumId",
-            "subjectActions",
-        )
+        every { mockDataCursor.getString(0) } returns "subjectActions"
         every { mockDataCursor.getString(1) } returnsMany listOf(
             SUBJECT_ACTIONS_FINGERPRINT_1,
             SUBJECT_ACTIONS_FINGERPRINT_2,
+            SUBJECT_ACTIONS_FINGERPRINT_1,
         )
 
-        val templateFormat = "ISO_19794_2"
-        val query = SubjectQuery(fingerprintSampleFormat = templateFormat)
-        val range = 0..expectedFingerprintIdentities.size
-        val actualIdentities = dataSource.loadFingerprintIdentities(query, range, project = project) {}
+        val query = SubjectQuery()
+        val actualIdentities = dataSource.loadFingerprintIdentities(query, 1..3, project = project) {}
+
+        assertEquals(2, actualIdentities.size)
+        assertEquals(expectedFingerprintIdentities[1].subjectId, actualIdentities[0].subjectId)
+        assertEquals(expectedFingerprintIdentities[0].subjectId, actualIdentities[1].subjectId)
+    }
+
+    @Test
+    fun `cases indexed with the same last modified marker are not read again`() = runTest {
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, false)
+        every { mockMetadataCursor.getColumnIndexOrThrow(COLUMN_CASE_ID) } returns 0
+        every { mockMetadataCursor.getColumnIndex(COLUMN_LAST_MODIFIED) } returns 1
+        every { mockMetadataCursor.getString(0) } returns CASE_ID
+        every { mockMetadataCursor.getString(1) } returns LAST_MODIFIED
+        indexCases(indexedCase(LAST_MODIFIED))
+
+        dataSource.count(SubjectQuery())
+        val actualIdentities = dataSource.loadFingerprintIdentities(SubjectQuery(), 0..1, project = project) {}
 
         assertEquals(1, actualIdentities.size)
-        val areContentsEqual =
-            expectedFingerprintIdentities
-                .filter { identity -> identity.fingerprints.any { it.format == templateFormat } }
-                .zip(actualIdentities) { expected, actual ->
-                    expected.subjectId == actual.subjectId &&
-                        expected.fingerprints
-                            .zip(actual.fingerprints) { expectedFingerprint, actualFingerprint ->
-                                expectedFingerprint.fingerIdentifier == actualFingerprint.fingerIdentifier &&
-                                    expectedFingerprint.templateQualityScore == actualFingerprint.templateQualityScore &&
-                                    expectedFingerprint.template.contentEquals(
-                                        actualFingerprint.template,
-                                    ) &&
-                                    expectedFingerprint.format == actualFingerprint.format
-                            }.all { it }
-                }.all { it }
-        assertTrue(areContentsEqual)
+        assertEquals(INDEXED_SUBJECT_ID, actualIdentities[0].subjectId)
         coVerify { mockContentResolver.query(mockMetadataUri, any(), any(), any(), any()) }
+        coVerify(exactly = 0) { mockContentResolver.query(mockDataCaseIdUri, any(), any(), any(), any()) }
+        verify(exactly = 0) { index.saveCase(any(), any()) }
+        verify(exactly = 0) { index.saveCatalog(any(), any(), any()) }
+    }
+
+    @Test
+    fun `cases modified since indexed are read again and the index is saved`() = runTest {
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, false)
+        every { mockMetadataCursor.getColumnIndexOrThrow(COLUMN_CASE_ID) } returns 0
+        every { mockMetadataCursor.getColumnIndex(COLUMN_LAST_MODIFIED) } returns 1
+        every { mockMetadataCursor.getString(0) } returns CASE_ID
+        every { mockMetadataCursor.getString(1) } returns "modified"
+        indexCases(indexedCase(LAST_MODIFIED))
+        every { mockDataCursor.moveToNext() } returns true
+        every { mockDataCursor.getColumnIndexOrThrow(COLUMN_DATUM_ID) } returns 0
+        every { mockDataCursor.getColumnIndexOrThrow(COLUMN_VALUE) } returns 1
+        every { mockDataCursor.getString(0) } returns "subjectActions"
+        every { mockDataCursor.getString(1) } returns SUBJECT_ACTIONS_FINGERPRINT_1
+
+        dataSource.count(SubjectQuery())
+        val actualIdentities = dataSource.loadFingerprintIdentities(SubjectQuery(), 0..1, project = project) {}
+
+        assertEquals(expectedFingerprintIdentities[0].subjectId, actualIdentities.single().subjectId)
+        assertEquals(listOf(CASE_ID), indexedCatalog.map { it.caseId })
+        assertEquals("modified", indexedCatalog.single().lastModified)
+        verify(exactly = 1) { index.saveCase(any(), match { it.caseId == CASE_ID }) }
+    }
+
+    @Test
+    fun `cases without last modified marker are always read again`() = runTest {
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, false)
+        every { mockMetadataCursor.getColumnIndexOrThrow(COLUMN_CASE_ID) } returns 0
+        every { mockMetadataCursor.getColumnIndex(COLUMN_LAST_MODIFIED) } returns -1
+        every { mockMetadataCursor.getString(0) } returns CASE_ID
+        indexCases(indexedCase(lastModified = null))
+
+        dataSource.count(SubjectQuery())
+
         coVerify { mockContentResolver.query(mockDataCaseIdUri, any(), any(), any(), any()) }
     }
 
     @Test
-    fun `empty caseId results in empty result`() = runTest {
-        every { mockMetadataCursor.count } returns 2
-        every { mockMetadataCursor.moveToPosition(0) } returns true
+    fun `cases removed from CommCare are removed from the index`() = runTest {
         every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, false)
+        every { mockMetadataCursor.getColumnIndexOrThrow(COLUMN_CASE_ID) } returns 0
+        every { mockMetadataCursor.getColumnIndex(COLUMN_LAST_MODIFIED) } returns 1
+        every { mockMetadataCursor.getString(0) } returns CASE_ID
+        every { mockMetadataCursor.getString(1) } returns LAST_MODIFIED
+        indexCases(indexedCase(LAST_MODIFIED), indexedCase(LAST_MODIFIED).copy(caseId = "removedCaseId"))
+
+        dataSource.count(SubjectQuery())
+
+        assertEquals(listOf(CASE_ID), indexedCatalog.map { it.caseId })
+    }
+
+    @Test
+    fun `count and all the ranges of an identification read CommCare once`() = runTest {
+        mockTwoIndexedCases(walks = 1)
+
+        val count = dataSource.count(SubjectQuery())
+        val first = dataSource.loadFingerprintIdentities(SubjectQuery(), 0..1, project = project) {}
+        val second = dataSource.loadFingerprintIdentities(SubjectQuery(), 1..2, project = project) {}
+
+        assertEquals(2, count)
+        assertEquals(listOf("subjectId1"), first.map { it.subjectId })
+        assertEquals(listOf("subjectId2"), second.map { it.subjectId })
+        verify(exactly = 1) { mockContentResolver.query(mockMetadataUri, any(), any(), any(), any()) }
+    }
+
+    @Test
+    fun `count only reads the catalog and ranges only read the cases of their subjects`() = runTest {
+        mockTwoIndexedCases(walks = 1)
+
+        dataSource.count(SubjectQuery())
+        verify(exactly = 0) { index.loadCase(any(), any()) }
+
+        val second = dataSource.loadFingerprintIdentities(SubjectQuery(), 1..2, project = project) {}
+
+        assertEquals(listOf("subjectId2"), second.map { it.subjectId })
+        verify(exactly = 0) { index.loadCase(any(), "caseId1") }
+        verify(exactly = 1) { index.loadCase(any(), "caseId2") }
+    }
+
+    @Test
+    fun `cases missing from the index are read from CommCare`() = runTest {
+        val subjectId = expectedFingerprintIdentities[0].subjectId
+        indexCases(indexedCase(LAST_MODIFIED).let { case -> case.copy(subjects = case.subjects.map { it.copy(subjectId = subjectId) }) })
+        indexedCases.clear()
+        every { mockDataCursor.moveToNext() } returns true
+        every { mockDataCursor.getColumnIndexOrThrow(COLUMN_DATUM_ID) } returns 0
+        every { mockDataCursor.getColumnIndexOrThrow(COLUMN_VALUE) } returns 1
+        every { mockDataCursor.getString(0) } returns "subjectActions"
+        every { mockDataCursor.getString(1) } returns SUBJECT_ACTIONS_FINGERPRINT_1
+
+        val identities = dataSource.loadFingerprintIdentities(SubjectQuery(), 0..1, project = project) {}
+
+        assertEquals(listOf(subjectId), identities.map { it.subjectId })
+        coVerify(exactly = 1) { mockContentResolver.query(mockDataCaseIdUri, any(), any(), any(), any()) }
+    }
+
+    private fun mockTwoIndexedCases(walks: Int) {
+        every { mockMetadataCursor.moveToNext() } returnsMany List(walks) { listOf(true, true, false) }.flatten()
+        every { mockMetadataCursor.getColumnIndexOrThrow(COLUMN_CASE_ID) } returns 0
+        every { mockMetadataCursor.getColumnIndex(COLUMN_LAST_MODIFIED) } returns 1
+        every { mockMetadataCursor.getString(0) } returnsMany List(walks) { listOf("caseId1", "caseId2") }.flatten()
+        every { mockMetadataCursor.getString(1) } returns LAST_MODIFIED
+        indexCases(
+            *listOf("1", "2")
+                .map { suffix ->
+                    val case = indexedCase(LAST_MODIFIED)
+                    case.copy(
+                        caseId = "caseId$suffix",
+                        subjects = case.subjects.map { it.copy(subjectId = "subjectId$suffix") },
+                    )
+                }.toTypedArray(),
+        )
+    }
+
+    private fun indexCases(vararg cases: CommCareIndexedCase) {
+        indexedCatalog += cases.map { it.toSummary() }
+        cases.forEach { indexedCases[it.caseId] = it.subjects }
+    }
+
+    @Test
+    fun `query ids are tokenized once and compared with the indexed ids`() = runTest {
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, false, true, false)
+        every { mockMetadataCursor.getColumnIndexOrThrow(COLUMN_CASE_ID) } returns 0
+        every { mockMetadataCursor.getColumnIndex(COLUMN_LAST_MODIFIED) } returns 1
+        every { mockMetadataCursor.getString(0) } returns CASE_ID
+        every { mockMetadataCursor.getString(1) } returns LAST_MODIFIED
+        indexCases(indexedCase(LAST_MODIFIED))
+        every { useCase.ensureTokenized(TokenizableString.Raw("moduleId"), any(), any()) } returns
+            TokenizableString.Tokenized("tokenizedModuleId")
+
+        val matching = dataSource.loadFingerprintIdentities(
+            SubjectQuery(moduleId = TokenizableString.Raw("moduleId")),
+            0..1,
+            project = project,
+        ) {}
+        val notMatching = dataSource.loadFingerprintIdentities(
+            SubjectQuery(moduleId = TokenizableString.Tokenized("otherModuleId")),
+            0..1,
+            project = project,
+        ) {}
+
+        assertEquals(1, matching.size)
+        assertTrue(notMatching.isEmpty())
+        verify(exactly = 2) { useCase.ensureTokenized(any(), any(), any()) }
+    }
+
+    @Test
+    fun `cases read in parallel are kept in CommCare order`() = runTest {
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, false)
+        every { mockMetadataCursor.getColumnIndexOrThrow(COLUMN_CASE_ID) } returns 0
+        every { mockMetadataCursor.getColumnIndex(COLUMN_LAST_MODIFIED) } returns 1
+        every { mockMetadataCursor.getString(0) } returnsMany listOf("caseId1", "caseId2")
+        every { mockMetadataCursor.getString(1) } returns LAST_MODIFIED
+        val caseUri1 = mockk<Uri>()
+        val caseUri2 = mockk<Uri>()
+        every { mockDataUri.buildUpon().appendPath("caseId1").build() } returns caseUri1
+        every { mockDataUri.buildUpon().appendPath("caseId2").build() } returns caseUri2
+        // First case is the slowest to read
+        every { mockContentResolver.query(caseUri1, any(), any(), any(), any()) } returns
+            caseDataCursor(SUBJECT_ACTIONS_FINGERPRINT_1, readDelayMillis = 100)
+        every { mockContentResolver.query(caseUri2, any(), any(), any(), any()) } returns
+            caseDataCursor(SUBJECT_ACTIONS_FINGERPRINT_2)
+        val parallelDataSource = CommCareIdentityDataSource(
+            CoSyncSubjectActionsParser(encoder),
+            useCase,
+            configRepository,
+            index,
+            context,
+            Dispatchers.IO,
+        )
+
+        val actualIdentities = parallelDataSource.loadFingerprintIdentities(SubjectQuery(), 0..2, project = project) {}
+
+        assertEquals(expectedFingerprintIdentities.map { it.subjectId }, actualIdentities.map { it.subjectId })
+    }
+
+    private fun caseDataCursor(
+        subjectActions: String,
+        readDelayMillis: Long = 0,
+    ) = mockk<Cursor>(relaxed = true) {
+        every { moveToNext() } returns true
+        every { getColumnIndexOrThrow(COLUMN_DATUM_ID) } returns 0
+        every { getColumnIndexOrThrow(COLUMN_VALUE) } returns 1
+        every { getString(0) } returns "subjectActions"
+        every { getString(1) } answers {
+            Thread.sleep(readDelayMillis)
+            subjectActions
+        }
+    }
+
+    private fun indexedCase(lastModified: String?) = CommCareIndexedCase(
+        caseId = CASE_ID,
+        lastModified = lastModified,
+        subjects = listOf(
+            CommCareIndexedSubject(
+                subjectId = INDEXED_SUBJECT_ID,
+                attendantId = TokenizableString.Tokenized("tokenizedAttendantId"),
+                moduleId = TokenizableString.Tokenized("tokenizedModuleId"),
+                fingerprintSamples = expectedFingerprintIdentities[0].fingerprints,
+                faceSamples = emptyList(),
+            ),
+        ),
+    )
+
+    @Test
+    fun `empty caseId results in empty result`() = runTest {
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, false)
         every { mockDataCursor.moveToNext() } returns true
         every { mockMetadataCursor.getString(any()) } returns null
 
@@ -642,9 +884,7 @@ class CommCareIdentityDataSourceTest {
 
     @Test
     fun `data cursor is null`() = runTest {
-        every { mockMetadataCursor.count } returns 2
-        every { mockMetadataCursor.moveToPosition(0) } returns true
-        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, false)
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, false)
         every {
             mockContentResolver.query(
                 mockDataCaseIdUri,
@@ -666,9 +906,7 @@ class CommCareIdentityDataSourceTest {
 
     @Test
     fun `subjectActions not found in cursor data`() = runTest {
-        every { mockMetadataCursor.count } returns 2
-        every { mockMetadataCursor.moveToPosition(0) } returns true
-        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, false)
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, false)
         every { mockDataCursor.moveToNext() } returnsMany listOf(true, true, true, false)
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_DATUM_ID) } returns 0
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_VALUE) } returns 1
@@ -686,9 +924,7 @@ class CommCareIdentityDataSourceTest {
 
     @Test
     fun `subjectActions contains invalid JSON`() = runTest {
-        every { mockMetadataCursor.count } returns 2
-        every { mockMetadataCursor.moveToPosition(0) } returns true
-        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, false)
+        every { mockMetadataCursor.moveToNext() } returnsMany listOf(true, true, false)
         every { mockDataCursor.moveToNext() } returns true
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_DATUM_ID) } returns 0
         every { mockDataCursor.getColumnIndexOrThrow(COLUMN_VALUE) } returns 1
@@ -0,0 +1,198 @@
+package com.simprints.infra.enrolment.records.repository.commcare
+
+import android.content.Context
+import com.google.common.truth.Truth.assertThat
+import com.simprints.core.domain.face.FaceSample
+import com.simprints.core.domain.fingerprint.FingerprintSample
+import com.simprints.core.domain.fingerprint.IFingerIdentifier
+import com.simprints.core.domain.tokenization.TokenizableString
+import com.simprints.infra.security.SecurityManager
+import io.mockk.every
+import io.mockk.mockk
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+
+class CommCareIdentityIndexTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private val context = mockk<Context>()
+    private val securityManager = mockk<SecurityManager>()
+
+    private lateinit var directory: File
+
+    @Before
+    fun setUp() {
+        directory = tempFolder.newFolder()
+        every { securityManager.getEncryptedFileBuilder(any(), any()) } answers {
+            val file = firstArg<File>()
+            mockk {
+                every { openFileInput() } answers { FileInputStream(file) }
+                every { openFileOutput() } answers { FileOutputStream(file) }
+            }
+        }
+    }
+
+    @Test
+    fun `saved cases are read back from their files`() {
+        createIndex().saveCase(CALLER_PACKAGE, CASE)
+
+        val subject = createIndex().loadCase(CALLER_PACKAGE, CASE_ID)!!.single()
+
+        assertThat(subject.subjectId).isEqualTo(SUBJECT.subjectId)
+        assertThat(subject.attendantId).isInstanceOf(TokenizableString.Tokenized::class.java)
+        assertThat(subject.moduleId).isInstanceOf(TokenizableString.Raw::class.java)
+        assertThat(subject.fingerprintSamples.single().template).isEqualTo(SUBJECT.fingerprintSamples.single().template)
+        assertThat(subject.fingerprintSamples.single().fingerIdentifier).isEqualTo(IFingerIdentifier.LEFT_THUMB)
+        assertThat(subject.fingerprintSamples.single().templateQualityScore).isEqualTo(42)
+        assertThat(subject.fingerprintSamples.single().format).isEqualTo("ISO_19794_2")
+        assertThat(subject.faceSamples.single().template).isEqualTo(SUBJECT.faceSamples.single().template)
+        assertThat(subject.faceSamples.single().referenceId).isEqualTo("faceReferenceId")
+    }
+
+    @Test
+    fun `saved catalog is read back without templates`() {
+        createIndex().saveCatalog(CALLER_PACKAGE, DIGEST, listOf(CASE.toSummary()))
+
+        val catalog = createIndex().loadCatalog(CALLER_PACKAGE, DIGEST)
+
+        assertThat(catalog).containsExactly(CASE.toSummary())
+        assertThat(catalog.single().lastModified).isEqualTo(LAST_MODIFIED)
+        assertThat(catalog.single().subjects.single().fingerprintFormats).containsExactly("ISO_19794_2")
+        assertThat(catalog.single().subjects.single().faceFormats).containsExactly("ROC_3")
+    }
+
+    @Test
+    fun `cases without last modified marker are read back`() {
+        createIndex().saveCatalog(CALLER_PACKAGE, DIGEST, listOf(CASE.copy(lastModified = null).toSummary()))
+
+        val catalog = createIndex().loadCatalog(CALLER_PACKAGE, DIGEST)
+
+        assertThat(catalog.single().lastModified).isNull()
+    }
+
+    @Test
+    fun `saving a case only writes the file of that case`() {
+        val index = createIndex()
+        index.saveCase(CALLER_PACKAGE, CASE)
+        index.saveCase(CALLER_PACKAGE, CASE.copy(caseId = "otherCaseId"))
+        val before = caseFiles().associate { it.name to it.readBytes().toList() }
+
+        index.saveCase(CALLER_PACKAGE, CASE.copy(subjects = emptyList()))
+
+        val after = caseFiles().associate { it.name to it.readBytes().toList() }
+        assertThat(after.keys).isEqualTo(before.keys)
+        assertThat(after.filter { (name, bytes) -> before[name] != bytes }).hasSize(1)
+        assertThat(index.loadCase(CALLER_PACKAGE, CASE_ID)).isEmpty()
+        assertThat(index.loadCase(CALLER_PACKAGE, "otherCaseId")).hasSize(1)
+    }
+
+    @Test
+    fun `files of the cases no longer in the catalog are deleted`() {
+        val index = createIndex()
+        index.saveCase(CALLER_PACKAGE, CASE)
+        index.saveCase(CALLER_PACKAGE, CASE.copy(caseId = "removedCaseId"))
+
+        index.saveCatalog(CALLER_PACKAGE, DIGEST, listOf(CASE.toSummary()))
+
+        assertThat(caseFiles()).hasLength(1)
+        assertThat(index.loadCase(CALLER_PACKAGE, CASE_ID)).isNotNull()
+        assertThat(index.loadCase(CALLER_PACKAGE, "removedCaseId")).isNull()
+    }
+
+    @Test
+    fun `cases indexed with other tokenization keys are not loaded`() {
+        val index = createIndex()
+        index.saveCase(CALLER_PACKAGE, CASE)
+        index.saveCatalog(CALLER_PACKAGE, DIGEST, listOf(CASE.toSummary()))
+
+        val catalog = createIndex().loadCatalog(CALLER_PACKAGE, "otherDigest")
+
+        assertThat(catalog).isEmpty()
+        assertThat(directory.listFiles()).isEmpty()
+    }
+
+    @Test
+    fun `cases of other caller packages are not loaded`() {
+        val index = createIndex()
+        index.saveCase(CALLER_PACKAGE, CASE)
+        index.saveCatalog(CALLER_PACKAGE, DIGEST, listOf(CASE.toSummary()))
+
+        assertThat(index.loadCatalog("org.other.package", DIGEST)).isEmpty()
+        assertThat(index.loadCase("org.other.package", CASE_ID)).isNull()
+        assertThat(index.loadCatalog(CALLER_PACKAGE, DIGEST)).isNotEmpty()
+    }
+
+    @Test
+    fun `unreadable index is deleted`() {
+        val packageDirectory = directory.resolve(CALLER_PACKAGE).apply { mkdirs() }
+        packageDirectory.resolve("catalog").writeBytes(byteArrayOf(1, 2, 3))
+
+        val catalog = createIndex().loadCatalog(CALLER_PACKAGE, DIGEST)
+
+        assertThat(catalog).isEmpty()
+        assertThat(directory.listFiles()).isEmpty()
+    }
+
+    @Test
+    fun `single file index of a previous version is deleted`() {
+        directory.resolve(CALLER_PACKAGE).writeBytes(byteArrayOf(1, 2, 3))
+
+        val catalog = createIndex().loadCatalog(CALLER_PACKAGE, DIGEST)
+
+        assertThat(catalog).isEmpty()
+        assertThat(directory.listFiles()).isEmpty()
+    }
+
+    @Test
+    fun `invalidating the index deletes all cases`() {
+        val index = createIndex()
+        index.saveCase(CALLER_PACKAGE, CASE)
+        index.saveCatalog(CALLER_PACKAGE, DIGEST, listOf(CASE.toSummary()))
+
+        index.invalidateAll()
+
+        assertThat(index.loadCatalog(CALLER_PACKAGE, DIGEST)).isEmpty()
+        assertThat(index.loadCase(CALLER_PACKAGE, CASE_ID)).isNull()
+        assertThat(directory.exists()).isFalse()
+    }
+
+    private fun caseFiles() = directory.resolve(CALLER_PACKAGE).resolve("cases").listFiles().orEmpty()
+
+    private fun createIndex() = CommCareIdentityIndex(context, securityManager, directory)
+
+    companion object {
+        private const val CALLER_PACKAGE = "org.commcare.dalvik"
+        private const val DIGEST = "digest"
+        private const val CASE_ID = "caseId"
+        private const val LAST_MODIFIED = "2024-01-01 10:00:00"
+
+        private val SUBJECT = CommCareIndexedSubject(
+            subjectId = "subjectId",
+            attendantId = TokenizableString.Tokenized("attendantId"),
+            moduleId = TokenizableString.Raw("moduleId"),
+            fingerprintSamples = listOf(
+                FingerprintSample(
+                    fingerIdentifier = IFingerIdentifier.LEFT_THUMB,
+                    template = byteArrayOf(1, 2, 3),
+                    templateQualityScore = 42,
+                    format = "ISO_19794_2",
+                    referenceId = "fingerprintReferenceId",
+                ),
+            ),
+            faceSamples = listOf(
+                FaceSample(
+                    template = byteArrayOf(4, 5, 6),
+                    format = "ROC_3",
+                    referenceId = "faceReferenceId",
+                ),
+            ),
+        )
+        private val CASE = CommCareIndexedCase(CASE_ID, LAST_MODIFIED, listOf(SUBJECT))
+    }
+}
@@ -4,9 +4,11 @@ import com.google.common.truth.Truth.assertThat
 import com.simprints.core.domain.face.FaceSample
 import com.simprints.core.domain.fingerprint.FingerprintSample
 import com.simprints.core.domain.fingerprint.IFingerIdentifier
+import com.simprints.core.domain.tokenization.TokenizableString
 import com.simprints.core.domain.tokenization.asTokenizableEncrypted
 import com.simprints.core.domain.tokenization.asTokenizableRaw
 import com.simprints.infra.config.store.models.Project
+import com.simprints.infra.config.store.models.TokenKeyType
 import com.simprints.infra.config.store.tokenization.TokenizationProcessor
 import com.simprints.infra.enrolment.records.realm.store.RealmWrapper
 import com.simprints.infra.enrolment.records.realm.store.models.DbFaceSample
@@ -19,11 +21,15 @@ import com.simprints.infra.enrolment.records.repository.domain.models.SubjectQue
 import com.simprints.infra.enrolment.records.repository.local.EnrolmentRecordLocalDataSourceImpl.Companion.FACE_SAMPLES_FIELD
 import com.simprints.infra.enrolment.records.repository.local.EnrolmentRecordLocalDataSourceImpl.Companion.FINGERPRINT_SAMPLES_FIELD
 import com.simprints.infra.enrolment.records.repository.local.EnrolmentRecordLocalDataSourceImpl.Companion.FORMAT_FIELD
+import com.simprints.infra.enrolment.records.repository.local.EnrolmentRecordLocalDataSourceImpl.Companion.IS_ATTENDANT_ID_TOKENIZED_FIELD
+import com.simprints.infra.enrolment.records.repository.local.EnrolmentRecordLocalDataSourceImpl.Companion.IS_MODULE_ID_TOKENIZED_FIELD
+import com.simprints.infra.enrolment.records.repository.local.EnrolmentRecordLocalDataSourceImpl.Companion.SUBJECT_ID_FIELD
 import com.simprints.infra.enrolment.records.repository.local.models.fromDbToDomain
 import com.simprints.infra.enrolment.records.repository.local.models.fromDomainToDb
 import io.mockk.CapturingSlot
 import io.mockk.MockKAnnotations
 import io.mockk.coEvery
+import io.mockk.coVerify
 import io.mockk.every
 import io.mockk.impl.annotations.MockK
 import io.mockk.mockk
@@ -33,6 +39,8 @@ import io.realm.kotlin.MutableRealm
 import io.realm.kotlin.Realm
 import io.realm.kotlin.query.RealmQuery
 import io.realm.kotlin.query.RealmSingleQuery
+import io.realm.kotlin.query.Sort
+import io.realm.kotlin.types.RealmUUID
 import kotlinx.coroutines.test.runTest
 import org.junit.Before
 import org.junit.Test
@@ -97,6 +105,7 @@ class EnrolmentRecordLocalDataSourceImplTest {
         every { mutableRealm.query(DbSubject::class) } returns realmQuery
 
         every { realmQuery.query(any(), any()) } returns realmQuery
+        every { realmQuery.query(any<String>()) } returns realmQuery
         every { realmQuery.first() } returns realmSingleQuery
 
         enrolmentRecordLocalDataSource = EnrolmentRecordLocalDataSourceImpl(
@@ -209,6 +218,144 @@ class EnrolmentRecordLocalDataSourceImplTest {
         }
     }
 
+    @Test
+    fun `first fingerprint identity page is sorted by subject id and limited to the page size`() = runTest {
+        every { realmQuery.sort(any<String>(), any()) } returns realmQuery
+        every { realmQuery.limit(any()) } returns realmQuery
+
+        enrolmentRecordLocalDataSource.loadFingerprintIdentityPage(
+            SubjectQuery(),
+            afterSubjectId = null,
+            pageSize = 10,
+            onCandidateLoaded = onCandidateLoaded,
+        )
+
+        verify(exactly = 0) { realmQuery.query("$SUBJECT_ID_FIELD > $0", any()) }
+        verify { realmQuery.sort(SUBJECT_ID_FIELD, Sort.ASCENDING) }
+        verify { realmQuery.limit(10) }
+    }
+
+    @Test
+    fun `next face identity page continues after the last loaded subject id`() = runTest {
+        every { realmQuery.sort(any<String>(), any()) } returns realmQuery
+        every { realmQuery.limit(any()) } returns realmQuery
+        val lastSubjectId = UUID.randomUUID().toString()
+
+        enrolmentRecordLocalDataSource.loadFaceIdentityPage(
+            SubjectQuery(),
+            afterSubjectId = lastSubjectId,
+            pageSize = 10,
+            onCandidateLoaded = onCandidateLoaded,
+        )
+
+        verify { realmQuery.query("$SUBJECT_ID_FIELD > $0", RealmUUID.from(lastSubjectId)) }
+        verify { realmQuery.sort(SUBJECT_ID_FIELD, Sort.ASCENDING) }
+        verify { realmQuery.limit(10) }
+    }
+
+    @Test
+    fun `next subject page continues after the last loaded subject id`() = runTest {
+        every { realmQuery.sort(any<String>(), any()) } returns realmQuery
+        every { realmQuery.limit(any()) } returns realmQuery
+        val lastSubjectId = UUID.randomUUID().toString()
+
+        enrolmentRecordLocalDataSource.loadPage(
+            SubjectQuery(),
+            afterSubjectId = lastSubjectId,
+            pageSize = 80,
+        )
+
+        verify { realmQuery.query("$SUBJECT_ID_FIELD > $0", RealmUUID.from(lastSubjectId)) }
+        verify { realmQuery.sort(SUBJECT_ID_FIELD, Sort.ASCENDING) }
+        verify { realmQuery.limit(80) }
+    }
+
+    @Test
+    fun `tokenizing a page of ids updates the untokenized ids in place and returns the last subject id`() = runTest {
+        mockTokenizationKeys(TokenKeyType.AttendantId, TokenKeyType.ModuleId)
+        every { realmQuery.sort(any<String>(), any()) } returns realmQuery
+        every { realmQuery.limit(any()) } returns realmQuery
+        val subjects = listOf(getFakePerson(), getFakePerson().apply { isModuleIdTokenized = true })
+        val tokenizedModuleId = subjects[1].moduleId
+        every { realmQuery.find() } returns mockk {
+            every { iterator() } answers { subjects.iterator() }
+            every { size } returns subjects.size
+            every { isEmpty() } returns false
+            every { get(any()) } answers { subjects[firstArg()] }
+        }
+        every { tokenizationProcessor.encryptAll(any(), any(), project) } answers {
+            firstArg<List<TokenizableString.Raw>>().map { "tokenized-${it.value}".asTokenizableEncrypted() }
+        }
+        val moduleId = subjects[0].moduleId
+        val attendantIds = subjects.map { it.attendantId }
+
+        val lastSubjectId = enrolmentRecordLocalDataSource.tokenizeIdsPage(project, afterSubjectId = null, pageSize = 2)
+
+        assertThat(lastSubjectId).isEqualTo(subjects[1].subjectId.toString())
+        assertThat(subjects.map { it.moduleId }).containsExactly("tokenized-$moduleId", tokenizedModuleId).inOrder()
+        assertThat(subjects.map { it.attendantId }).isEqualTo(attendantIds.map { "tokenized-$it" })
+        assertThat(subjects.all { it.isModuleIdTokenized && it.isAttendantIdTokenized }).isTrue()
+        verify { realmQuery.query("$IS_ATTENDANT_ID_TOKENIZED_FIELD == false OR $IS_MODULE_ID_TOKENIZED_FIELD == false") }
+        verify { realmQuery.limit(2) }
+    }
+
+    @Test
+    fun `tokenizing a page of ids only updates the ids of the key types the project has`() = runTest {
+        mockTokenizationKeys(TokenKeyType.ModuleId)
+        every { realmQuery.sort(any<String>(), any()) } returns realmQuery
+        every { realmQuery.limit(any()) } returns realmQuery
+        val subjects = listOf(getFakePerson(), getFakePerson().apply { isModuleIdTokenized = true })
+        every { realmQuery.find() } returns mockk {
+            every { iterator() } answers { subjects.iterator() }
+            every { size } returns subjects.size
+            every { isEmpty() } returns false
+            every { get(any()) } answers { subjects[firstArg()] }
+        }
+        every { tokenizationProcessor.encryptAll(any(), any(), project) } answers {
+            firstArg<List<TokenizableString.Raw>>().map { "tokenized-${it.value}".asTokenizableEncrypted() }
+        }
+        val attendantIds = subjects.map { it.attendantId }
+
+        enrolmentRecordLocalDataSource.tokenizeIdsPage(project, afterSubjectId = null, pageSize = 2)
+
+        assertThat(subjects.all { it.isModuleIdTokenized }).isTrue()
+        assertThat(subjects.map { it.attendantId }).isEqualTo(attendantIds)
+        assertThat(subjects.none { it.isAttendantIdTokenized }).isTrue()
+        verify { realmQuery.query("$IS_MODULE_ID_TOKENIZED_FIELD == false") }
+        verify(exactly = 0) { tokenizationProcessor.encryptAll(any(), TokenKeyType.AttendantId, any()) }
+    }
+
+    @Test
+    fun `tokenizing a page of ids without tokenization keys does not write`() = runTest {
+        mockTokenizationKeys()
+
+        val lastSubjectId = enrolmentRecordLocalDataSource.tokenizeIdsPage(project, afterSubjectId = null, pageSize = 2)
+
+        assertThat(lastSubjectId).isNull()
+        coVerify(exactly = 0) { realmWrapperMock.writeRealm(any()) }
+    }
+
+    @Test
+    fun `tokenizing an empty page of ids returns no subject id`() = runTest {
+        mockTokenizationKeys(TokenKeyType.AttendantId, TokenKeyType.ModuleId)
+        every { realmQuery.sort(any<String>(), any()) } returns realmQuery
+        every { realmQuery.limit(any()) } returns realmQuery
+        every { realmQuery.find() } returns mockk {
+            every { iterator() } answers { emptyList<DbSubject>().iterator() }
+            every { size } returns 0
+            every { isEmpty() } returns true
+        }
+        every { tokenizationProcessor.encryptAll(any(), any(), project) } returns emptyList()
+
+        val lastSubjectId = enrolmentRecordLocalDataSource.tokenizeIdsPage(project, afterSubjectId = null, pageSize = 2)
+
+        assertThat(lastSubjectId).isNull()
+    }
+
+    private fun mockTokenizationKeys(vararg keyTypes: TokenKeyType) {
+        every { project.tokenizationKeys } returns keyTypes.associateWith { "${it.name}Key" }
+    }
+
     @Test
     fun givenManyPeopleSaved_loadShouldReturnThem() = runTest {
         val fakePerson = getFakePerson()
@@ -325,6 +472,33 @@ class EnrolmentRecordLocalDataSourceImplTest {
         }
     }
 
+    @Test
+    fun performActions_writesEachSubjectOnce() = runTest {
+        every { realmSingleQuery.find() } returns null
+        val subject = getRandomSubject()
+        val addedSample = getRandomFaceSample(referenceId = "addedReferenceId")
+
+        enrolmentRecordLocalDataSource.performActions(
+            listOf(
+                SubjectAction.Creation(subject),
+                SubjectAction.Update(
+                    subject.subjectId,
+                    faceSamplesToAdd = listOf(addedSample),
+                    fingerprintSamplesToAdd = emptyList(),
+                    referenceIdsToRemove = emptyList(),
+                ),
+            ),
+            project,
+        )
+
+        verify(exactly = 1) {
+            mutableRealm.copyToRealm(
+                withArg<DbSubject> { assertThat(it.faceSamples.map { sample -> sample.id }).contains(addedSample.id) },
+                any(),
+            )
+        }
+    }
+
     @Test
     fun performSubjectDeletionAction() = runTest {
         val subject = getFakePerson()
@@ -0,0 +1,109 @@
+package com.simprints.infra.enrolment.records.repository.local
+
+import com.google.common.truth.Truth.assertThat
+import com.simprints.core.domain.face.FaceSample
+import com.simprints.core.domain.fingerprint.FingerprintSample
+import com.simprints.core.domain.fingerprint.IFingerIdentifier
+import com.simprints.core.domain.tokenization.asTokenizableRaw
+import com.simprints.infra.enrolment.records.repository.domain.models.Subject
+import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAction.Creation
+import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAction.Deletion
+import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAction.Update
+import org.junit.Test
+
+class SubjectActionCoalescingTest {
+    @Test
+    fun `actions on different subjects are kept in order`() {
+        val actions = listOf(Creation(subject(SUBJECT_ID)), Deletion(OTHER_SUBJECT_ID), update(SUBJECT_ID_2))
+
+        assertThat(actions.coalesceBySubject()).isEqualTo(actions)
+    }
+
+    @Test
+    fun `subjects keep the position of their first action`() {
+        val actions = listOf(Deletion(SUBJECT_ID), Deletion(OTHER_SUBJECT_ID), Creation(subject(SUBJECT_ID)))
+
+        assertThat(actions.coalesceBySubject()).containsExactly(Creation(subject(SUBJECT_ID)), Deletion(OTHER_SUBJECT_ID)).inOrder()
+    }
+
+    @Test
+    fun `creation followed by deletion is coalesced to the deletion`() {
+        val actions = listOf(Creation(subject(SUBJECT_ID)), update(SUBJECT_ID), Deletion(SUBJECT_ID))
+
+        assertThat(actions.coalesceBySubject()).containsExactly(Deletion(SUBJECT_ID))
+    }
+
+    @Test
+    fun `updates of a deleted subject are dropped`() {
+        val actions = listOf(Deletion(SUBJECT_ID), update(SUBJECT_ID))
+
+        assertThat(actions.coalesceBySubject()).containsExactly(Deletion(SUBJECT_ID))
+    }
+
+    @Test
+    fun `creation replaces previous updates`() {
+        val actions = listOf(update(SUBJECT_ID), Deletion(SUBJECT_ID), Creation(subject(SUBJECT_ID)))
+
+        assertThat(actions.coalesceBySubject()).containsExactly(Creation(subject(SUBJECT_ID)))
+    }
+
+    @Test
+    fun `updates are applied to the created subject`() {
+        val actions = listOf(
+            Creation(subject(SUBJECT_ID)),
+            update(SUBJECT_ID, faces = listOf(FACE_2), referencesToRemove = listOf(FACE_1.referenceId)),
+            update(SUBJECT_ID, fingerprints = listOf(FINGERPRINT_2)),
+        )
+
+        val creation = actions.coalesceBySubject().single() as Creation
+
+        assertThat(creation.subject.faceSamples).containsExactly(FACE_2)
+        assertThat(creation.subject.fingerprintSamples).containsExactly(FINGERPRINT_1, FINGERPRINT_2).inOrder()
+    }
+
+    @Test
+    fun `consecutive updates are merged`() {
+        val actions = listOf(
+            update(SUBJECT_ID, faces = listOf(FACE_1), fingerprints = listOf(FINGERPRINT_1), referencesToRemove = listOf("old")),
+            update(SUBJECT_ID, faces = listOf(FACE_2), referencesToRemove = listOf(FINGERPRINT_1.referenceId, "old")),
+        )
+
+        assertThat(actions.coalesceBySubject()).containsExactly(
+            update(
+                SUBJECT_ID,
+                faces = listOf(FACE_1, FACE_2),
+                fingerprints = emptyList(),
+                referencesToRemove = listOf("old", FINGERPRINT_1.referenceId),
+            ),
+        )
+    }
+
+    private fun subject(subjectId: String) = Subject(
+        subjectId = subjectId,
+        projectId = "projectId",
+        attendantId = "attendantId".asTokenizableRaw(),
+        moduleId = "moduleId".asTokenizableRaw(),
+        faceSamples = listOf(FACE_1),
+        fingerprintSamples = listOf(FINGERPRINT_1),
+    )
+
+    private fun update(
+        subjectId: String,
+        faces: List<FaceSample> = emptyList(),
+        fingerprints: List<FingerprintSample> = emptyList(),
+        referencesToRemove: List<String> = emptyList(),
+    ) = Update(subjectId, faces, fingerprints, referencesToRemove)
+
+    companion object {
+        private const val SUBJECT_ID = "subjectId"
+        private const val SUBJECT_ID_2 = "subjectId2"
+        private const val OTHER_SUBJECT_ID = "otherSubjectId"
+
+        private val FACE_1 = FaceSample(byteArrayOf(1), "format", "faceReference1", "face1")
+        private val FACE_2 = FaceSample(byteArrayOf(2), "format", "faceReference2", "face2")
+        private val FINGERPRINT_1 =
+            FingerprintSample(IFingerIdentifier.LEFT_THUMB, byteArrayOf(3), 50, "format", "fingerReference1", "finger1")
+        private val FINGERPRINT_2 =
+            FingerprintSample(IFingerIdentifier.RIGHT_THUMB, byteArrayOf(4), 60, "format", "fingerReference2", "finger2")
+    }
+}
@@ -0,0 +1,27 @@
+package com.simprints.infra.eventsync.sync.down.tasks
+
+import com.simprints.infra.config.store.models.Project
+import com.simprints.infra.enrolment.records.repository.EnrolmentRecordRepository
+import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAction
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Single writer shared by the down-sync streams running in parallel. Batches are written one at a time,
+ * in the order they are submitted, so that streams don't compete for the local DB.
+ */
+@Singleton
+internal class DownSyncRecordWriter @Inject constructor(
+    private val enrolmentRecordRepository: EnrolmentRecordRepository,
+) {
+    private val mutex = Mutex()
+
+    suspend fun write(
+        actions: List<SubjectAction>,
+        project: Project,
+    ) = mutex.withLock {
+        enrolmentRecordRepository.performActions(actions, project)
+    }
+}
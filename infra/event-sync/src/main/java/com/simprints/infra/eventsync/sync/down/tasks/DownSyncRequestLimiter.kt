@@ -0,0 +1,120 @@
+package com.simprints.infra.eventsync.sync.down.tasks
+
+import com.simprints.infra.eventsync.event.remote.exceptions.TooManyRequestsException
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.update
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Shared by all the down-sync streams, so that syncing several modules in parallel does not multiply the load on the backend.
+ *
+ * Only the configured number of streams are open at once, new requests are started at a bounded rate and,
+ * once the backend answers with too many requests, every stream waits for the same exponentially growing backoff.
+ */
+@Singleton
+internal class DownSyncRequestLimiter(
+    private val clockMs: () -> Long,
+) {
+    @Inject
+    constructor() : this({ System.nanoTime() / NANOS_IN_MS })
+
+    // Single count of the running streams, so that a changed limit also applies to the streams already running
+    private val runningStreams = MutableStateFlow(0)
+
+    private var tokens = BURST_SIZE.toDouble()
+    private var lastRefillMs = clockMs()
+    private var backoffMs = INITIAL_BACKOFF_MS
+    private var backoffUntilMs = 0L
+
+    /**
+     * Runs [block] once fewer than [maxConcurrentStreams] other streams are running.
+     */
+    suspend fun <T> withStream(
+        maxConcurrentStreams: Int,
+        block: suspend () -> T,
+    ): T {
+        startStream(maxConcurrentStreams.coerceAtLeast(1))
+        try {
+            return block()
+        } finally {
+            runningStreams.update { it - 1 }
+        }
+    }
+
+    /**
+     * Runs the request once allowed by the rate limit. Requests rejected with too many requests are retried
+     * after the shared backoff, up to [MAX_ATTEMPTS] times, after which the exception is rethrown.
+     */
+    suspend fun <T> request(block: suspend () -> T): T {
+        var attempt = 1
+        while (true) {
+            awaitToken()
+            try {
+                return block().also { onRequestAccepted() }
+            } catch (e: TooManyRequestsException) {
+                onTooManyRequests()
+                if (attempt++ >= MAX_ATTEMPTS) throw e
+            }
+        }
+    }
+
+    private suspend fun startStream(limit: Int) {
+        while (true) {
+            val running = runningStreams.first { it < limit }
+            if (runningStreams.compareAndSet(running, running + 1)) return
+        }
+    }
+
+    private suspend fun awaitToken() {
+        var waitMs = tryTakeToken()
+        while (waitMs > 0) {
+            delay(waitMs)
+            waitMs = tryTakeToken()
+        }
+    }
+
+    /**
+     * Takes a token if available and returns 0, otherwise returns how long to wait before trying again.
+     */
+    @Synchronized
+    private fun tryTakeToken(): Long {
+        val now = clockMs()
+        tokens = (tokens + (now - lastRefillMs).toDouble() / TOKEN_INTERVAL_MS).coerceAtMost(BURST_SIZE.toDouble())
+        lastRefillMs = now
+
+        return when {
+            now < backoffUntilMs -> backoffUntilMs - now
+            tokens >= 1 -> {
+                tokens -= 1
+                0
+            }
+            else -> ((1 - tokens) * TOKEN_INTERVAL_MS).toLong().coerceAtLeast(1)
+        }
+    }
+
+    @Synchronized
+    private fun onRequestAccepted() {
+        backoffMs = INITIAL_BACKOFF_MS
+    }
+
+    @Synchronized
+    private fun onTooManyRequests() {
+        backoffUntilMs = maxOf(backoffUntilMs, clockMs() + backoffMs)
+        backoffMs = (backoffMs * 2).coerceAtMost(MAX_BACKOFF_MS)
+        tokens = 0.0
+    }
+
+    companion object {
+        const val BURST_SIZE = 4
+        const val TOKEN_INTERVAL_MS = 500L
+
+        const val INITIAL_BACKOFF_MS = 2_000L
+        const val MAX_BACKOFF_MS = 60_000L
+        const val MAX_ATTEMPTS = 3
+
+        private const val NANOS_IN_MS = 1_000_000L
+    }
+}
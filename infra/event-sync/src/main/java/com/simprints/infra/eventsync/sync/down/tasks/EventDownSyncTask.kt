@@ -1,13 +1,14 @@
 package com.simprints.infra.eventsync.sync.down.tasks
 
 import androidx.annotation.VisibleForTesting
+import com.simprints.core.DispatcherBG
 import com.simprints.core.domain.tokenization.values
 import com.simprints.core.tools.time.TimeHelper
 import com.simprints.core.tools.time.Timestamp
 import com.simprints.infra.authstore.exceptions.RemoteDbNotSignedInException
 import com.simprints.infra.config.store.models.Project
+import com.simprints.infra.config.store.models.experimental
 import com.simprints.infra.config.sync.ConfigManager
-import com.simprints.infra.enrolment.records.repository.EnrolmentRecordRepository
 import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAction
 import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAction.Creation
 import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAction.Deletion
@@ -30,7 +31,12 @@ import com.simprints.infra.eventsync.status.down.domain.EventDownSyncOperation.D
 import com.simprints.infra.eventsync.status.down.domain.EventDownSyncResult
 import com.simprints.infra.logging.LoggingConstants.CrashReportTag.SYNC
 import com.simprints.infra.logging.Simber
+import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.produce
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.FlowCollector
 import kotlinx.coroutines.flow.catch
@@ -40,14 +46,28 @@ import java.util.UUID
 import javax.inject.Inject
 
 internal class EventDownSyncTask @Inject constructor(
-    private val enrolmentRecordRepository: EnrolmentRecordRepository,
+    private val recordWriter: DownSyncRecordWriter,
+    private val requestLimiter: DownSyncRequestLimiter,
     private val eventDownSyncScopeRepository: EventDownSyncScopeRepository,
     private val subjectFactory: SubjectFactory,
     private val configManager: ConfigManager,
     private val timeHelper: TimeHelper,
     private val eventRemoteDataSource: EventRemoteDataSource,
     private val eventRepository: EventRepository,
+    @DispatcherBG private val dispatcher: CoroutineDispatcher,
 ) {
+    /**
+     * Events are processed in a pipeline so that downloading is not held back by the local DB:
+     * the stream is read and cut into batches, batches are mapped to subject actions in parallel on
+     * the background dispatcher, and a single writer applies them in stream order, one transaction per batch.
+     * Only a limited number of batches can be waiting for the writer, after which reading the stream is suspended.
+     *
+     * The last event id is only saved once the batch it belongs to is written, so an interrupted
+     * sync resumes after the last written event.
+     *
+     * Several operations can be synced in parallel, up to the configured number of concurrent streams.
+     * Their requests go through the shared [DownSyncRequestLimiter] and their batches through the shared [DownSyncRecordWriter].
+     */
     fun downSync(
         scope: CoroutineScope,
         operation: EventDownSyncOperation,
@@ -56,7 +76,7 @@ internal class EventDownSyncTask @Inject constructor(
     ): Flow<EventDownSyncProgress> = flow {
         var lastOperation = operation.copy()
         var count = 0
-        val batchOfEventsToProcess = mutableListOf<EnrolmentRecordEvent>()
+        var writtenCount = 0
         val requestStartTime = timeHelper.now()
 
         var firstEventTimestamp: Timestamp? = null
@@ -65,40 +85,74 @@ internal class EventDownSyncTask @Inject constructor(
         var errorType: String? = null
 
         try {
-            result = eventRemoteDataSource.getEvents(
-                requestId,
-                operation.queryEvent.fromDomainToApi(),
-                scope,
-            )
+            // Read within the try, so that failing to read the configuration is reported as a failed sync
+            val maxConcurrentStreams = configManager.getProjectConfiguration().experimental().downSyncMaxConcurrentStreams
+            requestLimiter.withStream(maxConcurrentStreams) {
+                val downSyncResult = requestLimiter.request {
+                    eventRemoteDataSource.getEvents(
+                        requestId,
+                        operation.queryEvent.fromDomainToApi(),
+                        scope,
+                    )
+                }
+                result = downSyncResult
 
-            result.eventStream
-                .consumeAsFlow()
-                .catch {
-                    // Track a case when event stream is closed due to a parser error,
-                    // but the exception is handled gracefully and channel is closed correctly.
-                    errorType = it.javaClass.simpleName
-                }.collect {
-                    batchOfEventsToProcess.add(it)
-                    count++
-                    // We immediately process the first event to initialise a progress
-                    if (batchOfEventsToProcess.size > EVENTS_BATCH_SIZE || count == 1) {
-                        if (count == 1) {
-                            // Track the moment when the first event is received
-                            firstEventTimestamp = timeHelper.now()
+                coroutineScope {
+                    val batches = produce(capacity = MAPPED_BATCHES_CAPACITY) {
+                        var batchOfEventsToProcess = mutableListOf<EnrolmentRecordEvent>()
+                        var batchStartTime = requestStartTime
+
+                        suspend fun sendBatch() {
+                            val events: List<EnrolmentRecordEvent> = batchOfEventsToProcess
+                            batchOfEventsToProcess = mutableListOf()
+                            send(EventBatch(events, count, async(dispatcher) { mapToActions(operation, events) }))
                         }
 
-                        lastOperation =
-                            processBatchedEvents(operation, batchOfEventsToProcess, lastOperation, project)
-                        emitProgress(lastOperation, count, result.totalCount)
-                        batchOfEventsToProcess.clear()
+                        downSyncResult.eventStream
+                            .consumeAsFlow()
+                            .catch {
+                                // Track a case when event stream is closed due to a parser error,
+                                // but the exception is handled gracefully and channel is closed correctly.
+                                errorType = it.javaClass.simpleName
+                            }.collect {
+                                if (batchOfEventsToProcess.isEmpty()) {
+                                    batchStartTime = timeHelper.now()
+                                }
+                                batchOfEventsToProcess.add(it)
+                                count++
+                                if (count == 1) {
+                                    // Track the moment when the first event is received
+                                    firstEventTimestamp = batchStartTime
+                                }
+                                // We immediately process the first event to initialise a progress,
+                                // events received slowly are written at least every BATCH_MAX_DELAY_MS
+                                if (count == 1 ||
+                                    batchOfEventsToProcess.size > EVENTS_BATCH_SIZE ||
+                                    timeHelper.msBetweenNowAndTime(batchStartTime) >= BATCH_MAX_DELAY_MS
+                                ) {
+                                    sendBatch()
+                                }
+                            }
+                        if (batchOfEventsToProcess.isNotEmpty()) {
+                            sendBatch()
+                        }
                     }
-                }
 
-            lastOperation = processBatchedEvents(operation, batchOfEventsToProcess, lastOperation, project)
-            emitProgress(lastOperation, count, result.totalCount)
+                    for (batch in batches) {
+                        recordWriter.write(batch.actions.await(), project)
+                        lastOperation = lastOperation.copy(
+                            state = RUNNING,
+                            lastEventId = batch.events.last().id,
+                            lastSyncTime = timeHelper.now().ms,
+                        )
+                        writtenCount = batch.count
+                        emitProgress(lastOperation, writtenCount, downSyncResult.totalCount)
+                    }
+                }
 
-            lastOperation = lastOperation.copy(state = COMPLETE, lastSyncTime = timeHelper.now().ms)
-            emitProgress(lastOperation, count, result.totalCount)
+                lastOperation = lastOperation.copy(state = COMPLETE, lastSyncTime = timeHelper.now().ms)
+                emitProgress(lastOperation, count, downSyncResult.totalCount)
+            }
         } catch (t: Throwable) {
             if (t is RemoteDbNotSignedInException) {
                 throw t
@@ -107,11 +161,12 @@ internal class EventDownSyncTask @Inject constructor(
             Simber.i("Down sync error", t, tag = SYNC)
             errorType = t.javaClass.simpleName
 
-            lastOperation = processBatchedEvents(operation, batchOfEventsToProcess, lastOperation, project)
-            emitProgress(lastOperation, count, count)
+            // Events read after the last written batch are not saved, they are downloaded again on the next sync
+            lastOperation = lastOperation.copy(state = RUNNING, lastSyncTime = timeHelper.now().ms)
+            emitProgress(lastOperation, writtenCount, writtenCount)
 
             lastOperation = lastOperation.copy(state = FAILED, lastSyncTime = timeHelper.now().ms)
-            emitProgress(lastOperation, count, count)
+            emitProgress(lastOperation, writtenCount, writtenCount)
         }
 
         if (count > 0 || errorType != null) {
@@ -149,43 +204,26 @@ internal class EventDownSyncTask @Inject constructor(
         this.emit(EventDownSyncProgress(lastOperation, count, max))
     }
 
-    private suspend fun processBatchedEvents(
+    private suspend fun mapToActions(
         operation: EventDownSyncOperation,
-        batchOfEventsToProcess: MutableList<EnrolmentRecordEvent>,
-        lastOperation: EventDownSyncOperation,
-        project: Project,
-    ): EventDownSyncOperation {
-        val actions = batchOfEventsToProcess
-            .map { event ->
-                return@map when (event.type) {
-                    EnrolmentRecordEventType.EnrolmentRecordCreation -> {
-                        handleSubjectCreationEvent(event as EnrolmentRecordCreationEvent)
-                    }
-
-                    EnrolmentRecordEventType.EnrolmentRecordDeletion -> {
-                        handleSubjectDeletionEvent(event as EnrolmentRecordDeletionEvent)
-                    }
-
-                    EnrolmentRecordEventType.EnrolmentRecordMove -> {
-                        handleSubjectMoveEvent(operation, event as EnrolmentRecordMoveEvent)
-                    }
+        events: List<EnrolmentRecordEvent>,
+    ): List<SubjectAction> = events.flatMap { event ->
+        when (event.type) {
+            EnrolmentRecordEventType.EnrolmentRecordCreation -> {
+                handleSubjectCreationEvent(event as EnrolmentRecordCreationEvent)
+            }
 
-                    EnrolmentRecordEventType.EnrolmentRecordUpdate -> {
-                        handleSubjectUpdateEvent(event as EnrolmentRecordUpdateEvent)
-                    }
-                }
-            }.flatten()
+            EnrolmentRecordEventType.EnrolmentRecordDeletion -> {
+                handleSubjectDeletionEvent(event as EnrolmentRecordDeletionEvent)
+            }
 
-        enrolmentRecordRepository.performActions(actions, project)
+            EnrolmentRecordEventType.EnrolmentRecordMove -> {
+                handleSubjectMoveEvent(operation, event as EnrolmentRecordMoveEvent)
+            }
 
-        return if (batchOfEventsToProcess.isNotEmpty()) {
-            lastOperation.copy(
-                state = RUNNING,
-                lastEventId = batchOfEventsToProcess.last().id,
-                lastSyncTime = timeHelper.now().ms,
-            )
-        } else {
-            lastOperation.copy(state = RUNNING, lastSyncTime = timeHelper.now().ms)
+            EnrolmentRecordEventType.EnrolmentRecordUpdate -> {
+                handleSubjectUpdateEvent(event as EnrolmentRecordUpdateEvent)
+            }
         }
     }
 
@@ -270,7 +308,26 @@ internal class EventDownSyncTask @Inject constructor(
         )
     }
 
+    /**
+     * Events read from the stream, with the number of events read so far and their actions being mapped.
+     */
+    private class EventBatch(
+        val events: List<EnrolmentRecordEvent>,
+        val count: Int,
+        val actions: Deferred<List<SubjectAction>>,
+    )
+
     companion object {
         const val EVENTS_BATCH_SIZE = 200
+
+        /**
+         * Maximum time a partial batch waits for more events before being written, while events keep arriving.
+         */
+        const val BATCH_MAX_DELAY_MS = 1000L
+
+        /**
+         * Number of batches that can be mapped ahead of the writer.
+         */
+        private const val MAPPED_BATCHES_CAPACITY = 2
     }
 }
@@ -39,13 +39,16 @@ import com.simprints.infra.eventsync.sync.up.EventUpSyncProgress
 import com.simprints.infra.logging.LoggingConstants.CrashReportTag.SYNC
 import com.simprints.infra.logging.Simber
 import com.simprints.infra.network.exceptions.NetworkConnectionException
-import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.channels.produce
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.FlowCollector
+import kotlinx.coroutines.flow.channelFlow
 import kotlinx.coroutines.flow.flow
-import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
 import retrofit2.HttpException
 import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 
 internal class EventUpSyncTask @Inject constructor(
@@ -164,6 +167,13 @@ internal class EventUpSyncTask @Inject constructor(
         this.emit(EventUpSyncProgress(lastOperation, count))
     }
 
+    /**
+     * Closed scopes are uploaded in a pipeline: the next batch is read from the DB and mapped while the previous
+     * ones are being uploaded, with at most [MAX_IN_FLIGHT_UPLOADS] requests in flight at once.
+     * Scopes are only deleted once the request they were sent in succeeds.
+     *
+     * Each closed scope is read at most once per call, so scopes that fail to upload are left for the next sync.
+     */
     private fun uploadEventScopeType(
         eventScope: EventScope,
         project: Project,
@@ -171,49 +181,114 @@ internal class EventUpSyncTask @Inject constructor(
         batchSize: Int,
         eventFilter: (Map<EventScope, List<Event>?>) -> Map<EventScope, List<Event>?> = { it },
         createUpSyncContentContent: (Int) -> EventUpSyncRequestEvent.UpSyncContent,
-    ) = flow {
+    ) = channelFlow<Int> {
         Simber.d("Uploading event scope - $eventScopeTypeToUpload in batches of $batchSize", tag = SYNC)
 
-        while (eventRepository.getClosedEventScopesCount(eventScopeTypeToUpload) > 0 && currentCoroutineContext().isActive) {
-            val sessionScopes = getClosedScopesForType(eventScopeTypeToUpload, batchSize)
+        if (eventRepository.getClosedEventScopesCount(eventScopeTypeToUpload) == 0) return@channelFlow
 
-            // Re-emitting the number of uploaded corrupted events
-            attemptInvalidEventUpload(
-                project.id,
-                sessionScopes.getCorruptedScopes(),
-            ).collect { emit(it) }
+        // Scopes read in this call that might still be in the DB, they are removed by the uploads deleting them
+        val undeletedScopeIds: MutableSet<String> = ConcurrentHashMap.newKeySet()
 
-            val scopesToUpload = sessionScopes
-                .filterValues { it != null }
-                .let(eventFilter)
-                .map { (scope, events) -> mapDomainEventScopeToApiUseCase(scope, events.orEmpty(), project) }
-            val uploadedScopes = mutableListOf<String>()
+        val batches = produce(capacity = PREFETCHED_BATCHES) {
+            val readScopeIds = mutableSetOf<String>()
+            while (true) {
+                // Scopes being uploaded are still in the DB, so enough scopes are loaded to skip them and fill a batch
+                val limit = batchSize + undeletedScopeIds.size
+                val closedScopes = eventRepository.getClosedEventScopes(eventScopeTypeToUpload, limit)
+                val newScopes = closedScopes.filter { it.id !in readScopeIds }
+                if (newScopes.isEmpty()) break
+
+                newScopes.forEach {
+                    readScopeIds.add(it.id)
+                    undeletedScopeIds.add(it.id)
+                }
+                newScopes.chunked(batchSize).forEach { send(readBatch(it, project, eventFilter)) }
+
+                // Fewer scopes than requested means that all closed scopes have been read
+                if (closedScopes.size < limit) break
+            }
+        }
 
-            scopesToUpload.takeIf { it.isNotEmpty() }?.apply {
-                val requestId = UUID.randomUUID().toString()
+        val uploads = Semaphore(MAX_IN_FLIGHT_UPLOADS)
+        for (batch in batches) {
+            batch.eventCounts.forEach { send(it) }
 
-                val requestStartTime = timeHelper.now()
+            uploads.acquire()
+            launch {
                 try {
-                    val result = eventRemoteDataSource.post(
-                        requestId,
-                        project.id,
-                        this.asApiUploadEventsBody(eventScopeTypeToUpload),
-                    )
-                    addRequestEvent(
-                        requestId = requestId,
+                    // Re-emitting the number of uploaded corrupted events
+                    attemptInvalidEventUpload(project.id, batch.corruptedScopes).collect { send(it) }
+
+                    val uploadedScopeIds = uploadBatch(
                         eventScope = eventScope,
-                        startTime = requestStartTime,
-                        result = result,
-                        content = createUpSyncContentContent(this.size),
+                        project = project,
+                        eventScopeTypeToUpload = eventScopeTypeToUpload,
+                        scopesToUpload = batch.scopesToUpload,
+                        createUpSyncContentContent = createUpSyncContentContent,
                     )
-                    uploadedScopes.addAll(this.map { it.id })
-                } catch (ex: Exception) {
-                    handleFailedRequest(requestId, ex, eventScope, requestStartTime)
+
+                    Simber.d("Deleting ${uploadedScopeIds.size} session scopes", tag = SYNC)
+                    if (uploadedScopeIds.isNotEmpty()) {
+                        eventRepository.deleteEventScopes(uploadedScopeIds)
+                        undeletedScopeIds.removeAll(uploadedScopeIds.toSet())
+                    }
+                } finally {
+                    uploads.release()
                 }
             }
+        }
+    }
+
+    /**
+     * Loads the events of the scopes and maps the ones that can be un-marshalled to their API model.
+     */
+    private suspend fun readBatch(
+        scopes: List<EventScope>,
+        project: Project,
+        eventFilter: (Map<EventScope, List<Event>?>) -> Map<EventScope, List<Event>?>,
+    ): ScopeBatch {
+        val scopesWithEvents = getEventsForScopes(scopes)
+        return ScopeBatch(
+            eventCounts = scopesWithEvents.values.mapNotNull { it?.size },
+            corruptedScopes = scopesWithEvents.getCorruptedScopes(),
+            scopesToUpload = scopesWithEvents
+                .filterValues { it != null }
+                .let(eventFilter)
+                .map { (scope, events) -> mapDomainEventScopeToApiUseCase(scope, events.orEmpty(), project) },
+        )
+    }
+
+    /**
+     * Returns the ids of the uploaded scopes, empty if the request failed.
+     */
+    private suspend fun uploadBatch(
+        eventScope: EventScope,
+        project: Project,
+        eventScopeTypeToUpload: EventScopeType,
+        scopesToUpload: List<ApiEventScope>,
+        createUpSyncContentContent: (Int) -> EventUpSyncRequestEvent.UpSyncContent,
+    ): List<String> {
+        if (scopesToUpload.isEmpty()) return emptyList()
 
-            Simber.d("Deleting ${uploadedScopes.size} session scopes", tag = SYNC)
-            eventRepository.deleteEventScopes(uploadedScopes)
+        val requestId = UUID.randomUUID().toString()
+        val requestStartTime = timeHelper.now()
+        return try {
+            val result = eventRemoteDataSource.post(
+                requestId,
+                project.id,
+                scopesToUpload.asApiUploadEventsBody(eventScopeTypeToUpload),
+            )
+            addRequestEvent(
+                requestId = requestId,
+                eventScope = eventScope,
+                startTime = requestStartTime,
+                result = result,
+                content = createUpSyncContentContent(scopesToUpload.size),
+            )
+            scopesToUpload.map { it.id }
+        } catch (ex: Exception) {
+            handleFailedRequest(requestId, ex, eventScope, requestStartTime)
+            emptyList()
         }
     }
 
@@ -226,20 +301,13 @@ internal class EventUpSyncTask @Inject constructor(
     private fun Map<EventScope, List<Event>?>.getCorruptedScopes() = filterValues { it == null }.keys
 
     /**
-     * Returns a map of closed event scopes with associated events.
+     * Returns a map of the scopes with associated events.
      * If scope events are not un-marshal-able, the value will be null. Such scopes should be
      * uploaded as raw invalid events for further investigation.
-     *
-     * Additionally emits the number of events in each scope to be used for progress tracking.
      */
-    private suspend fun FlowCollector<Int>.getClosedScopesForType(
-        type: EventScopeType,
-        limit: Int,
-    ) = eventRepository.getClosedEventScopes(type, limit).associateWith {
+    private suspend fun getEventsForScopes(scopes: List<EventScope>) = scopes.associateWith {
         try {
-            eventRepository
-                .getEventsFromScope(it.id)
-                .also { listOfEvents -> emit(listOfEvents.size) }
+            eventRepository.getEventsFromScope(it.id)
         } catch (ex: Exception) {
             if (ex is JsonParseException || ex is JsonMappingException) {
                 Simber.i("Failed to un-marshal events", ex, tag = SYNC)
@@ -353,4 +421,22 @@ internal class EventUpSyncTask @Inject constructor(
             }
         }
     }
+
+    /**
+     * Scopes read from the DB, ready to be uploaded.
+     */
+    private class ScopeBatch(
+        val eventCounts: List<Int>,
+        val corruptedScopes: Set<EventScope>,
+        val scopesToUpload: List<ApiEventScope>,
+    )
+
+    companion object {
+        /**
+         * Number of batches that can be read and mapped ahead of the uploads.
+         */
+        private const val PREFETCHED_BATCHES = 1
+
+        private const val MAX_IN_FLIGHT_UPLOADS = 2
+    }
 }
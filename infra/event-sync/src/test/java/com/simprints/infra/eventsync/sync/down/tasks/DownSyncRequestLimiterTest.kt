@@ -0,0 +1,147 @@
+package com.simprints.infra.eventsync.sync.down.tasks
+
+import com.google.common.truth.Truth.assertThat
+import com.simprints.infra.eventsync.event.remote.exceptions.TooManyRequestsException
+import com.simprints.infra.eventsync.sync.down.tasks.DownSyncRequestLimiter.Companion.BURST_SIZE
+import com.simprints.infra.eventsync.sync.down.tasks.DownSyncRequestLimiter.Companion.INITIAL_BACKOFF_MS
+import com.simprints.infra.eventsync.sync.down.tasks.DownSyncRequestLimiter.Companion.MAX_ATTEMPTS
+import com.simprints.infra.eventsync.sync.down.tasks.DownSyncRequestLimiter.Companion.TOKEN_INTERVAL_MS
+import com.simprints.testtools.common.syntax.assertThrows
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Test
+
+class DownSyncRequestLimiterTest {
+    @Test
+    fun `requests within the burst are not delayed`() = runTest {
+        val limiter = limiter()
+
+        repeat(BURST_SIZE) { limiter.request { } }
+
+        assertThat(testScheduler.currentTime).isEqualTo(0)
+    }
+
+    @Test
+    fun `requests beyond the burst are delayed by the token interval`() = runTest {
+        val limiter = limiter()
+
+        repeat(BURST_SIZE + 2) { limiter.request { } }
+
+        assertThat(testScheduler.currentTime).isEqualTo(2 * TOKEN_INTERVAL_MS)
+    }
+
+    @Test
+    fun `too many requests are retried after the backoff`() = runTest {
+        val limiter = limiter()
+        var attempts = 0
+
+        val result = limiter.request {
+            if (++attempts == 1) throw TooManyRequestsException()
+            "result"
+        }
+
+        assertThat(result).isEqualTo("result")
+        assertThat(attempts).isEqualTo(2)
+        assertThat(testScheduler.currentTime).isEqualTo(INITIAL_BACKOFF_MS)
+    }
+
+    @Test
+    fun `too many requests are rethrown after the last attempt`() = runTest {
+        val limiter = limiter()
+        var attempts = 0
+
+        assertThrows<TooManyRequestsException> {
+            limiter.request {
+                attempts++
+                throw TooManyRequestsException()
+            }
+        }
+        assertThat(attempts).isEqualTo(MAX_ATTEMPTS)
+        // Backoff doubles on every rejected attempt
+        assertThat(testScheduler.currentTime).isEqualTo(INITIAL_BACKOFF_MS + 2 * INITIAL_BACKOFF_MS)
+    }
+
+    @Test
+    fun `backoff is shared between streams`() = runTest {
+        val limiter = limiter()
+        var otherRequestTime = -1L
+
+        launch {
+            var attempts = 0
+            limiter.request { if (++attempts == 1) throw TooManyRequestsException() }
+        }
+        runCurrent()
+        launch { limiter.request { otherRequestTime = testScheduler.currentTime } }
+        advanceUntilIdle()
+
+        assertThat(otherRequestTime).isAtLeast(INITIAL_BACKOFF_MS)
+    }
+
+    @Test
+    fun `streams beyond the limit wait for a running stream to finish`() = runTest {
+        val limiter = limiter()
+        val firstStream = CompletableDeferred<Unit>()
+        var secondStreamStarted = false
+
+        launch { limiter.withStream(1) { firstStream.await() } }
+        launch { limiter.withStream(1) { secondStreamStarted = true } }
+        runCurrent()
+        assertThat(secondStreamStarted).isFalse()
+
+        firstStream.complete(Unit)
+        runCurrent()
+        assertThat(secondStreamStarted).isTrue()
+    }
+
+    @Test
+    fun `streams within the limit run concurrently`() = runTest {
+        val limiter = limiter()
+        val firstStream = CompletableDeferred<Unit>()
+        var secondStreamStarted = false
+
+        launch { limiter.withStream(2) { firstStream.await() } }
+        launch { limiter.withStream(2) { secondStreamStarted = true } }
+        runCurrent()
+
+        assertThat(secondStreamStarted).isTrue()
+        firstStream.complete(Unit)
+    }
+
+    @Test
+    fun `lowered limit counts the streams already running`() = runTest {
+        val limiter = limiter()
+        val firstStream = CompletableDeferred<Unit>()
+        val secondStream = CompletableDeferred<Unit>()
+        var thirdStreamStarted = false
+
+        launch { limiter.withStream(2) { firstStream.await() } }
+        launch { limiter.withStream(2) { secondStream.await() } }
+        launch { limiter.withStream(1) { thirdStreamStarted = true } }
+        runCurrent()
+
+        firstStream.complete(Unit)
+        runCurrent()
+        assertThat(thirdStreamStarted).isFalse()
+
+        secondStream.complete(Unit)
+        runCurrent()
+        assertThat(thirdStreamStarted).isTrue()
+    }
+
+    @Test
+    fun `failed streams release their slot`() = runTest {
+        val limiter = limiter()
+
+        assertThrows<IllegalStateException> { limiter.withStream(1) { error("failed") } }
+        var nextStreamStarted = false
+        limiter.withStream(1) { nextStreamStarted = true }
+
+        assertThat(nextStreamStarted).isTrue()
+    }
+
+    private fun TestScope.limiter() = DownSyncRequestLimiter { testScheduler.currentTime }
+}
@@ -10,6 +10,7 @@ import com.simprints.infra.config.store.models.Project
 import com.simprints.infra.config.sync.ConfigManager
 import com.simprints.infra.enrolment.records.repository.EnrolmentRecordRepository
 import com.simprints.infra.enrolment.records.repository.domain.models.Subject
+import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAction
 import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAction.Creation
 import com.simprints.infra.enrolment.records.repository.domain.models.SubjectAction.Deletion
 import com.simprints.infra.events.EventRepository
@@ -33,12 +34,14 @@ import com.simprints.infra.eventsync.status.down.domain.EventDownSyncOperation.D
 import com.simprints.infra.eventsync.status.down.domain.EventDownSyncOperation.DownSyncState.FAILED
 import com.simprints.infra.eventsync.status.down.domain.EventDownSyncOperation.DownSyncState.RUNNING
 import com.simprints.infra.eventsync.status.down.domain.EventDownSyncResult
+import com.simprints.infra.eventsync.sync.down.tasks.EventDownSyncTask.Companion.BATCH_MAX_DELAY_MS
 import com.simprints.infra.eventsync.sync.down.tasks.EventDownSyncTask.Companion.EVENTS_BATCH_SIZE
 import com.simprints.testtools.common.coroutines.TestCoroutineRule
 import com.simprints.testtools.unit.EncodingUtilsImplForTests
 import io.mockk.MockKAnnotations
 import io.mockk.coEvery
 import io.mockk.coVerify
+import io.mockk.every
 import io.mockk.impl.annotations.MockK
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.channels.Channel
@@ -162,13 +165,15 @@ class EventDownSyncTaskTest {
             timeHelper = timeHelper,
         )
         eventDownSyncTask = EventDownSyncTask(
-            enrolmentRecordRepository,
+            DownSyncRecordWriter(enrolmentRecordRepository),
+            DownSyncRequestLimiter { testCoroutineRule.testCoroutineDispatcher.scheduler.currentTime },
             eventDownSyncScopeRepository,
             subjectFactory,
             configManager,
             timeHelper,
             eventRemoteDataSource,
             eventRepository,
+            testCoroutineRule.testCoroutineDispatcher,
         )
     }
 
@@ -191,6 +196,43 @@ class EventDownSyncTaskTest {
         coVerify(exactly = 4) { eventDownSyncScopeRepository.insertOrUpdate(any()) }
     }
 
+    @Test
+    fun downSync_shouldWriteActionsInStreamOrder() = runTest {
+        val eventsToDownload = List(2 * EVENTS_BATCH_SIZE, ::deletionEvent)
+        mockProgressEmission(eventsToDownload)
+        val writtenActions = mutableListOf<SubjectAction>()
+        coEvery { enrolmentRecordRepository.performActions(any(), any()) } answers { writtenActions += firstArg<List<SubjectAction>>() }
+
+        val progress = eventDownSyncTask.downSync(this, projectOp, eventScope, project).toList()
+
+        assertThat(writtenActions).containsExactlyElementsIn(eventsToDownload.map { Deletion(it.payload.subjectId) }).inOrder()
+        assertThat(progress.last().operation.lastEventId).isEqualTo(eventsToDownload.last().id)
+    }
+
+    @Test
+    fun downSync_shouldWriteSlowlyReceivedEventsWithoutWaitingForAFullBatch() = runTest {
+        every { timeHelper.msBetweenNowAndTime(any()) } returns BATCH_MAX_DELAY_MS
+        mockProgressEmission(List(3) { ENROLMENT_RECORD_DELETION })
+
+        val progress = eventDownSyncTask.downSync(this, projectOp, eventScope, project).toList()
+
+        assertThat(progress.map { it.progress }).containsExactly(1, 2, 3, 3).inOrder()
+        coVerify(exactly = 3) { enrolmentRecordRepository.performActions(any(), any()) }
+    }
+
+    @Test
+    fun downSync_shouldOnlySaveLastEventIdOfWrittenBatches() = runTest {
+        val eventsToDownload = List(3, ::deletionEvent)
+        mockProgressEmission(eventsToDownload)
+        coEvery { enrolmentRecordRepository.performActions(any(), any()) } answers {} andThenThrows Exception("Write failed")
+
+        val progress = eventDownSyncTask.downSync(this, projectOp, eventScope, project).toList()
+
+        assertThat(progress.last().operation.state).isEqualTo(FAILED)
+        assertThat(progress.last().operation.lastEventId).isEqualTo(eventsToDownload.first().id)
+        assertThat(progress.last().progress).isEqualTo(1)
+    }
+
     @Test
     fun downSync_shouldAddEventToProvidedScope() = runTest {
         val eventsToDownload = mutableListOf<EnrolmentRecordEvent>()
@@ -233,6 +275,19 @@ class EventDownSyncTaskTest {
         coVerify(exactly = 2) { eventDownSyncScopeRepository.insertOrUpdate(any()) }
     }
 
+    @Test
+    fun downSync_shouldEmitAFailureIfConfigurationCannotBeRead() = runTest {
+        coEvery { configManager.getProjectConfiguration() } throws Exception("Config error")
+
+        val progress = eventDownSyncTask.downSync(this, projectOp, eventScope, project).toList()
+
+        assertThat(progress.last().operation.state).isEqualTo(FAILED)
+        coVerify(exactly = 0) { eventRemoteDataSource.getEvents(any(), any(), any()) }
+        coVerify(exactly = 1) {
+            eventRepository.addOrUpdateEvent(eventScope, match { it is EventDownSyncRequestEvent && it.payload.errorType != null })
+        }
+    }
+
     @Test(expected = RemoteDbNotSignedInException::class)
     fun downSync_shouldThrowUpIfRemoteDbNotSignedInExceptionOccurs() = runTest {
         coEvery { eventRemoteDataSource.getEvents(any(), any(), any()) } throws RemoteDbNotSignedInException()
@@ -562,6 +617,8 @@ class EventDownSyncTaskTest {
         }
     }
 
+    private fun deletionEvent(index: Int) = EnrolmentRecordDeletionEvent("subject$index", "projectId", "moduleId", "attendantId")
+
     private suspend fun mockProgressEmission(progressEvents: List<EnrolmentRecordEvent>) {
         downloadEventsChannel = Channel(capacity = Channel.UNLIMITED)
         coEvery { eventRemoteDataSource.getEvents(any(), any(), any()) } returns EventDownSyncResult(
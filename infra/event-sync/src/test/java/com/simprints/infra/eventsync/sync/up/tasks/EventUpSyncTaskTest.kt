@@ -40,11 +40,15 @@ import com.simprints.infra.eventsync.exceptions.TryToUploadEventsForNotSignedPro
 import com.simprints.infra.eventsync.status.up.EventUpSyncScopeRepository
 import com.simprints.infra.eventsync.status.up.domain.EventUpSyncOperation
 import com.simprints.infra.eventsync.status.up.domain.EventUpSyncOperation.UpSyncState
+import com.simprints.infra.eventsync.status.up.domain.EventUpSyncResult
 import com.simprints.infra.network.exceptions.NetworkConnectionException
 import com.simprints.testtools.common.syntax.assertThrows
 import io.mockk.*
 import io.mockk.impl.annotations.MockK
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.runCurrent
 import kotlinx.coroutines.test.runTest
 import okhttp3.ResponseBody
 import okhttp3.ResponseBody.Companion.toResponseBody
@@ -639,6 +643,62 @@ internal class EventUpSyncTaskTest {
         coVerify(exactly = 0) { eventRepo.addOrUpdateEvent(any(), any()) }
     }
 
+    @Test
+    fun `next batches are read while a bounded number of uploads are in flight`() = runTest {
+        setUpSyncKind(UpSynchronizationConfiguration.UpSynchronizationKind.ALL)
+        every { synchronizationConfiguration.up.simprints.batchSizes } returns UpSynchronizationConfiguration.UpSyncBatchSizes(1, 1, 1)
+
+        coEvery { eventRepo.getClosedEventScopes(any(), any()) } returns emptyList()
+        coEvery { eventRepo.getClosedEventScopesCount(EventScopeType.SESSION) } returns 3
+        coEvery { eventRepo.getClosedEventScopes(EventScopeType.SESSION, any()) } returns listOf(
+            createSessionScope(GUID1),
+            createSessionScope(GUID2),
+            createSessionScope(GUID3),
+        )
+        coEvery { eventRepo.getEventsFromScope(any()) } returns listOf(createEventWithSessionId(GUID1, GUID1))
+        val uploadResult = CompletableDeferred<EventUpSyncResult>()
+        coEvery { eventRemoteDataSource.post(any(), any(), any()) } coAnswers { uploadResult.await() }
+
+        val upSync = launch { eventUpSyncTask.upSync(operation, eventScope).toList() }
+        runCurrent()
+
+        coVerify { eventRepo.getEventsFromScope(GUID3) }
+        coVerify(exactly = 2) { eventRemoteDataSource.post(any(), any(), any()) }
+        coVerify(exactly = 0) { eventRepo.deleteEventScopes(any()) }
+
+        uploadResult.complete(EventUpSyncResult(200))
+        upSync.join()
+
+        coVerify(exactly = 3) { eventRemoteDataSource.post(any(), any(), any()) }
+        coVerify(exactly = 3) { eventRepo.deleteEventScopes(any()) }
+    }
+
+    @Test
+    fun `scopes that fail to upload are not deleted nor uploaded again`() = runTest {
+        setUpSyncKind(UpSynchronizationConfiguration.UpSynchronizationKind.ALL)
+        every { synchronizationConfiguration.up.simprints.batchSizes } returns UpSynchronizationConfiguration.UpSyncBatchSizes(1, 1, 1)
+
+        coEvery { eventRepo.getClosedEventScopes(any(), any()) } returns emptyList()
+        coEvery { eventRepo.getClosedEventScopesCount(EventScopeType.SESSION) } returns 2
+        coEvery { eventRepo.getClosedEventScopes(EventScopeType.SESSION, any()) } returns listOf(
+            createSessionScope(GUID1),
+            createSessionScope(GUID2),
+        )
+        coEvery { eventRepo.getEventsFromScope(any()) } returns listOf(createEventWithSessionId(GUID1, GUID1))
+        every { mapDomainEventScopeToApiUseCase(any(), any(), any()) } answers {
+            mockk { every { id } returns firstArg<EventScope>().id }
+        }
+        coEvery {
+            eventRemoteDataSource.post(any(), any(), match { it.sessions.single().id == GUID1 })
+        } throws NetworkConnectionException(cause = Exception())
+
+        eventUpSyncTask.upSync(operation, eventScope).toList()
+
+        coVerify(exactly = 2) { eventRemoteDataSource.post(any(), any(), any()) }
+        coVerify(exactly = 1) { eventRepo.deleteEventScopes(listOf(GUID2)) }
+        coVerify(exactly = 0) { eventRepo.deleteEventScopes(listOf(GUID1)) }
+    }
+
     @Test(expected = RemoteDbNotSignedInException::class)
     fun `upSync should throw up if RemoteDbNotSignedInException occurs`() = runTest {
         coEvery { eventRepo.getClosedEventScopesCount(any()) } throws RemoteDbNotSignedInException()
@@ -59,6 +59,8 @@ interface EventRepository {
 
     suspend fun observeEventCountInClosedScopes(): Flow<Int>
 
+    suspend fun observeEventSizeInClosedScopes(): Flow<Long>
+
     suspend fun addOrUpdateEvent(
         scope: EventScope,
         event: Event,
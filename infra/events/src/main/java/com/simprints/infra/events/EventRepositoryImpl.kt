@@ -16,12 +16,14 @@ import com.simprints.infra.events.event.domain.models.scope.EventScope
 import com.simprints.infra.events.event.domain.models.scope.EventScopeEndCause
 import com.simprints.infra.events.event.domain.models.scope.EventScopePayload
 import com.simprints.infra.events.event.domain.models.scope.EventScopeType
+import com.simprints.infra.events.event.domain.validators.EventScopeSummary
 import com.simprints.infra.events.event.domain.validators.SessionEventValidatorsFactory
 import com.simprints.infra.events.event.local.EventLocalDataSource
 import com.simprints.infra.events.exceptions.validator.DuplicateGuidSelectEventValidatorException
 import com.simprints.infra.logging.Simber
 import kotlinx.coroutines.flow.Flow
 import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 import javax.inject.Singleton
 import kotlin.time.measureTime
@@ -43,6 +45,12 @@ internal open class EventRepositoryImpl @Inject constructor(
 
     private val validators = validatorsFactory.build()
 
+    /**
+     * Summaries of the events saved in each scope, kept up to date as events are added
+     * so that validating a new event doesn't require loading the events of its scope.
+     */
+    private val scopeSummaries = ConcurrentHashMap<String, EventScopeSummary>()
+
     private val currentProject: String
         get() = authStore.signedInProjectId.ifEmpty {
             PROJECT_ID_FOR_NOT_SIGNED_IN
@@ -91,22 +99,19 @@ internal open class EventRepositoryImpl @Inject constructor(
         eventScope: EventScope,
         reason: EventScopeEndCause?,
     ) {
+        scopeSummaries.remove(eventScope.id)
         if (eventScope.projectId == PROJECT_ID_FOR_NOT_SIGNED_IN) {
             eventLocalDataSource.deleteEventScope(scopeId = eventScope.id)
             eventLocalDataSource.deleteEventsInScope(scopeId = eventScope.id)
             return
         }
 
-        val events = eventLocalDataSource.loadEventsInScope(eventScope.id)
-        if (events.isEmpty()) {
+        val maxTimestamp = eventLocalDataSource.loadLatestEventTimestampInScope(eventScope.id)
+        if (maxTimestamp == null) {
             eventLocalDataSource.deleteEventScope(scopeId = eventScope.id)
             return
         }
 
-        val maxTimestamp = eventLocalDataSource
-            .loadEventsInScope(eventScope.id)
-            .maxOf { event -> event.payload.let { it.endedAt ?: it.createdAt } }
-
         val updatedSessionScope = eventScope.copy(
             endedAt = maxTimestamp,
             payload = eventScope.payload.copy(
@@ -148,11 +153,13 @@ internal open class EventRepositoryImpl @Inject constructor(
     override suspend fun getClosedEventScopesCount(type: EventScopeType): Int = eventLocalDataSource.countClosedEventScopes(type)
 
     override suspend fun deleteEventScope(scopeId: String) = reportException {
+        scopeSummaries.remove(scopeId)
         eventLocalDataSource.deleteEventScope(scopeId = scopeId)
         eventLocalDataSource.deleteEventsInScope(scopeId = scopeId)
     }
 
     override suspend fun deleteEventScopes(scopeIds: List<String>) = reportException {
+        scopeIds.forEach(scopeSummaries::remove)
         eventLocalDataSource.deleteEventScopes(scopeIds = scopeIds)
         eventLocalDataSource.deleteEventsInScopes(scopeIds = scopeIds)
     }
@@ -171,6 +178,8 @@ internal open class EventRepositoryImpl @Inject constructor(
 
     override suspend fun observeEventCountInClosedScopes(): Flow<Int> = eventLocalDataSource.observeEventCountInClosedScopes()
 
+    override suspend fun observeEventSizeInClosedScopes(): Flow<Long> = eventLocalDataSource.observeEventSizeInClosedScopes()
+
     override suspend fun addOrUpdateEvent(
         scope: EventScope,
         event: Event,
@@ -178,22 +187,39 @@ internal open class EventRepositoryImpl @Inject constructor(
     ): Event {
         val duration = measureTime {
             reportException {
-                val currentEvents = scopeEvents ?: getEventsFromScope(scope.id)
+                val scopeSummary = getScopeSummary(scope.id, scopeEvents)
                 validators.forEach {
-                    it.validate(currentEvents, event)
+                    it.validate(scopeSummary, event)
                 }
 
                 event.scopeId = event.scopeId ?: scope.id
                 event.projectId = scope.projectId
 
                 eventLocalDataSource.saveEvent(event)
+                if (event.scopeId == scope.id) {
+                    scopeSummaries.compute(scope.id) { _, current -> (current ?: scopeSummary) + event }
+                }
             }
         }
         Simber.d("Save session event: ${event.type} = ${duration.inWholeMilliseconds}ms")
         return event
     }
 
-    override suspend fun deleteAll() = eventLocalDataSource.deleteAll()
+    /**
+     * Scopes that are not in memory yet are summarised from the provided events or,
+     * if none are provided, from the types of the events saved in the scope.
+     */
+    private suspend fun getScopeSummary(
+        scopeId: String,
+        scopeEvents: List<Event>?,
+    ): EventScopeSummary = scopeSummaries[scopeId]
+        ?: scopeEvents?.let(EventScopeSummary::of)
+        ?: EventScopeSummary(eventLocalDataSource.loadEventTypesInScope(scopeId).toSet())
+
+    override suspend fun deleteAll() {
+        scopeSummaries.clear()
+        eventLocalDataSource.deleteAll()
+    }
 
     private suspend fun <T> reportException(block: suspend () -> T): T = try {
         block()
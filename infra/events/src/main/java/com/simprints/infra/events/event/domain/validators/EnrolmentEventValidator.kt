@@ -1,10 +1,10 @@
 package com.simprints.infra.events.event.domain.validators
 
-import com.simprints.infra.events.event.domain.models.BiometricReferenceCreationEvent
 import com.simprints.infra.events.event.domain.models.EnrolmentEventV4
 import com.simprints.infra.events.event.domain.models.Event
-import com.simprints.infra.events.event.domain.models.face.FaceCaptureEvent
-import com.simprints.infra.events.event.domain.models.fingerprint.FingerprintCaptureEvent
+import com.simprints.infra.events.event.domain.models.EventType.BIOMETRIC_REFERENCE_CREATION
+import com.simprints.infra.events.event.domain.models.EventType.FACE_CAPTURE
+import com.simprints.infra.events.event.domain.models.EventType.FINGERPRINT_CAPTURE
 import com.simprints.infra.events.exceptions.validator.EnrolmentEventValidatorException
 
 internal class EnrolmentEventValidator : EventValidator {
@@ -13,13 +13,13 @@ internal class EnrolmentEventValidator : EventValidator {
      * and a person creation event. Without these the backend can not create a subject.
      */
     override fun validate(
-        currentEvents: List<Event>,
+        scopeSummary: EventScopeSummary,
         eventToAdd: Event,
     ) {
         if (eventToAdd is EnrolmentEventV4) {
-            val hasFingerprint = currentEvents.any { it is FingerprintCaptureEvent }
-            val hasFace = currentEvents.any { it is FaceCaptureEvent }
-            val hasBiometricReference = currentEvents.any { it is BiometricReferenceCreationEvent }
+            val hasFingerprint = scopeSummary.contains(FINGERPRINT_CAPTURE)
+            val hasFace = scopeSummary.contains(FACE_CAPTURE)
+            val hasBiometricReference = scopeSummary.contains(BIOMETRIC_REFERENCE_CREATION)
 
             if (!hasFingerprint && !hasFace) {
                 throw EnrolmentEventValidatorException("Missing fingerprint or face capture event")
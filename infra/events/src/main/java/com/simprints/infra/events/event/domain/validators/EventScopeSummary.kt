@@ -0,0 +1,22 @@
+package com.simprints.infra.events.event.domain.validators
+
+import com.simprints.infra.events.event.domain.models.Event
+import com.simprints.infra.events.event.domain.models.EventType
+
+/**
+ * What validators need to know about the events already in a scope, small enough to be kept in memory
+ * and updated with each added event instead of loading all events of the scope.
+ *
+ * Only the types of the events are kept, so updating an event that is already in the scope doesn't change the summary.
+ */
+internal data class EventScopeSummary(
+    val eventTypes: Set<EventType> = emptySet(),
+) {
+    fun contains(type: EventType) = type in eventTypes
+
+    operator fun plus(event: Event) = if (contains(event.type)) this else EventScopeSummary(eventTypes + event.type)
+
+    companion object {
+        fun of(events: List<Event>) = EventScopeSummary(events.mapTo(mutableSetOf()) { it.type })
+    }
+}
@@ -4,7 +4,7 @@ import com.simprints.infra.events.event.domain.models.Event
 
 internal interface EventValidator {
     fun validate(
-        currentEvents: List<Event>,
+        scopeSummary: EventScopeSummary,
         eventToAdd: Event,
     )
 }
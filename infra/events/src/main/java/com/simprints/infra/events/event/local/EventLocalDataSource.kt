@@ -5,19 +5,22 @@ import android.database.sqlite.SQLiteException
 import com.simprints.core.DispatcherIO
 import com.simprints.core.NonCancellableIO
 import com.simprints.core.tools.json.JsonHelper
+import com.simprints.core.tools.time.Timestamp
 import com.simprints.infra.events.event.domain.models.Event
 import com.simprints.infra.events.event.domain.models.EventType
 import com.simprints.infra.events.event.domain.models.scope.EventScope
 import com.simprints.infra.events.event.domain.models.scope.EventScopeType
+import com.simprints.infra.events.event.local.models.DbEvent
 import com.simprints.infra.events.event.local.models.fromDbToDomain
 import com.simprints.infra.events.event.local.models.fromDomainToDb
 import com.simprints.infra.logging.LoggingConstants.CrashReportTag.DB_CORRUPTION
 import com.simprints.infra.logging.Simber
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.flow.Flow
-import kotlinx.coroutines.flow.asFlow
 import kotlinx.coroutines.flow.catch
 import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
@@ -151,8 +154,27 @@ internal open class EventLocalDataSource @Inject constructor(
         eventDao.observeCountInClosedScopes()
     }
 
-    suspend fun loadAllEvents(): Flow<Event> = useRoom(readingDispatcher) {
-        eventDao.loadAll().map { it.fromDbToDomain() }.asFlow()
+    suspend fun observeEventSizeInClosedScopes(): Flow<Long> = useRoomFlow(readingDispatcher) {
+        eventDao.observeSizeInClosedScopes()
+    }
+
+    /**
+     * Streams all events, newest first, reading them a page at a time and decoding each one only when it is emitted,
+     * so that memory usage does not depend on the size of the table.
+     */
+    suspend fun loadAllEvents(): Flow<Event> = useRoomFlow(readingDispatcher) {
+        flow {
+            var lastEvent: DbEvent? = null
+            do {
+                val page = eventDao.loadPageBefore(
+                    createdBefore = lastEvent?.createdAt?.unixMs ?: Long.MAX_VALUE,
+                    idBefore = lastEvent?.id.orEmpty(),
+                    limit = ALL_EVENTS_PAGE_SIZE,
+                )
+                page.forEach { emit(it.fromDbToDomain()) }
+                lastEvent = page.lastOrNull()
+            } while (page.size == ALL_EVENTS_PAGE_SIZE)
+        }.flowOn(readingDispatcher)
     }
 
     suspend fun loadEventJsonInScope(scopeId: String): List<String> = useRoom(readingDispatcher) {
@@ -163,6 +185,14 @@ internal open class EventLocalDataSource @Inject constructor(
         eventDao.loadFromScope(scopeId = scopeId).map { it.fromDbToDomain() }
     }
 
+    suspend fun loadEventTypesInScope(scopeId: String): List<EventType> = useRoom(readingDispatcher) {
+        eventDao.loadEventTypesFromScope(scopeId)
+    }
+
+    suspend fun loadLatestEventTimestampInScope(scopeId: String): Timestamp? = useRoom(readingDispatcher) {
+        eventDao.loadLatestTimestampFromScope(scopeId)?.fromDbToDomain()
+    }
+
     suspend fun deleteEventsInScope(scopeId: String) = useRoom(writingContext) {
         eventDao.deleteAllFromScope(scopeId = scopeId)
     }
@@ -181,5 +211,7 @@ internal open class EventLocalDataSource @Inject constructor(
     companion object {
         // Actual limit is 999, but it is better to leave some wiggle room
         private const val SQLITE_VARIABLE_LIMIT = 900
+
+        internal const val ALL_EVENTS_PAGE_SIZE = 100
     }
 }
@@ -4,14 +4,32 @@ import androidx.room.Dao
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import androidx.room.Transaction
 import com.simprints.infra.events.event.domain.models.EventType
 import com.simprints.infra.events.event.local.models.DbEvent
+import com.simprints.infra.events.event.local.models.DbEventScopeSummary
+import com.simprints.infra.events.event.local.models.DbTimestamp
 import kotlinx.coroutines.flow.Flow
 
 @Dao
 internal interface EventRoomDao {
-    @Query("select * from DbEvent order by createdAt_unixMs desc")
-    suspend fun loadAll(): List<DbEvent>
+    /**
+     * Loads the next page of all events, newest first, starting after the event with the given creation time and id.
+     * The id breaks ties between events created at the same time, so that no event is skipped between pages.
+     */
+    @Query(
+        """
+        select * from DbEvent
+        where createdAt_unixMs < :createdBefore or (createdAt_unixMs = :createdBefore and id < :idBefore)
+        order by createdAt_unixMs desc, id desc
+        limit :limit
+        """,
+    )
+    suspend fun loadPageBefore(
+        createdBefore: Long,
+        idBefore: String,
+        limit: Int,
+    ): List<DbEvent>
 
     @Query("select * from DbEvent where scopeId = :scopeId order by createdAt_unixMs desc")
     suspend fun loadFromScope(scopeId: String): List<DbEvent>
@@ -19,6 +37,26 @@ internal interface EventRoomDao {
     @Query("select eventJson from DbEvent where scopeId = :scopeId order by createdAt_unixMs desc")
     suspend fun loadEventJsonFromScope(scopeId: String): List<String>
 
+    /**
+     * Returns the latest end, or creation if not ended, of the events in the scope, null if the scope has no events.
+     */
+    @Query(
+        """
+        select
+            coalesce(endedAt_unixMs, createdAt_unixMs) as unixMs,
+            case when endedAt_unixMs is null then createdAt_isTrustworthy else endedAt_isTrustworthy end as isTrustworthy,
+            case when endedAt_unixMs is null then createdAt_msSinceBoot else endedAt_msSinceBoot end as msSinceBoot
+        from DbEvent
+        where scopeId = :scopeId
+        order by unixMs desc
+        limit 1
+        """,
+    )
+    suspend fun loadLatestTimestampFromScope(scopeId: String): DbTimestamp?
+
+    @Query("select distinct type from DbEvent where scopeId = :scopeId")
+    suspend fun loadEventTypesFromScope(scopeId: String): List<EventType>
+
     @Query("select count(*) from DbEvent")
     fun observeCount(): Flow<Int>
 
@@ -27,22 +65,126 @@ internal interface EventRoomDao {
 
     @Query(
         """
-        select count(*) from DbEvent 
-        left join DbEventScope on DbEvent.scopeId = DbEventScope.id 
+        select coalesce(sum(eventCount), 0) from DbEventScopeSummary
+        join DbEventScope on DbEventScopeSummary.scopeId = DbEventScope.id
         where DbEventScope.end_unixMs is not null
         """,
     )
     fun observeCountInClosedScopes(): Flow<Int>
 
-    @Query("delete from DbEvent where scopeId = :scopeId")
-    suspend fun deleteAllFromScope(scopeId: String)
+    @Query(
+        """
+        select coalesce(sum(eventBytes), 0) from DbEventScopeSummary
+        join DbEventScope on DbEventScopeSummary.scopeId = DbEventScope.id
+        where DbEventScope.end_unixMs is not null
+        """,
+    )
+    fun observeSizeInClosedScopes(): Flow<Long>
+
+    @Query("select * from DbEventScopeSummary where scopeId = :scopeId")
+    suspend fun loadScopeSummary(scopeId: String): DbEventScopeSummary?
+
+    @Transaction
+    suspend fun deleteAllFromScope(scopeId: String) {
+        deleteEventsFromScopes(listOf(scopeId))
+        deleteScopeSummaries(listOf(scopeId))
+    }
+
+    @Transaction
+    suspend fun deleteAllFromScopes(scopeIds: List<String>) {
+        deleteEventsFromScopes(scopeIds)
+        deleteScopeSummaries(scopeIds)
+    }
+
+    @Transaction
+    suspend fun deleteAll() {
+        deleteAllEvents()
+        deleteAllScopeSummaries()
+    }
+
+    /**
+     * Saves the event and moves it from the summary of the scope it was previously saved in, if any,
+     * to the summary of its current scope.
+     */
+    @Transaction
+    suspend fun insertOrUpdate(dbEvent: DbEvent) {
+        removeFromScopeSummary(dbEvent.id)
+        deleteScopeSummaryIfEmpty(dbEvent.id)
+        insertOrReplace(dbEvent)
+        dbEvent.scopeId?.let { scopeId ->
+            insertEmptyScopeSummary(scopeId, dbEvent.createdAt.unixMs)
+            addToScopeSummary(scopeId, dbEvent.id)
+        }
+    }
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun insertOrReplace(dbEvent: DbEvent)
 
     @Query("delete from DbEvent where scopeId in (:scopeIds)")
-    suspend fun deleteAllFromScopes(scopeIds: List<String>)
+    suspend fun deleteEventsFromScopes(scopeIds: List<String>)
 
     @Query("delete from DbEvent")
-    suspend fun deleteAll()
+    suspend fun deleteAllEvents()
 
-    @Insert(onConflict = OnConflictStrategy.REPLACE)
-    suspend fun insertOrUpdate(dbEvent: DbEvent)
+    /**
+     * Timestamps are only recomputed from the other events of the scope when the removed event is at either end.
+     */
+    @Query(
+        """
+        update DbEventScopeSummary set
+            eventCount = eventCount - 1,
+            eventBytes = eventBytes - (select length(cast(eventJson as blob)) from DbEvent where id = :eventId),
+            minCreatedAtMs = case
+                when (select createdAt_unixMs from DbEvent where id = :eventId) > minCreatedAtMs then minCreatedAtMs
+                else coalesce(
+                    (select min(createdAt_unixMs) from DbEvent where scopeId = DbEventScopeSummary.scopeId and id != :eventId),
+                    minCreatedAtMs
+                )
+            end,
+            maxCreatedAtMs = case
+                when (select createdAt_unixMs from DbEvent where id = :eventId) < maxCreatedAtMs then maxCreatedAtMs
+                else coalesce(
+                    (select max(createdAt_unixMs) from DbEvent where scopeId = DbEventScopeSummary.scopeId and id != :eventId),
+                    maxCreatedAtMs
+                )
+            end
+        where scopeId = (select scopeId from DbEvent where id = :eventId)
+        """,
+    )
+    suspend fun removeFromScopeSummary(eventId: String)
+
+    @Query(
+        """
+        insert or ignore into DbEventScopeSummary (scopeId, eventCount, eventBytes, minCreatedAtMs, maxCreatedAtMs)
+        values (:scopeId, 0, 0, :createdAt, :createdAt)
+        """,
+    )
+    suspend fun insertEmptyScopeSummary(
+        scopeId: String,
+        createdAt: Long,
+    )
+
+    @Query(
+        """
+        update DbEventScopeSummary set
+            eventCount = eventCount + 1,
+            eventBytes = eventBytes + (select length(cast(eventJson as blob)) from DbEvent where id = :eventId),
+            minCreatedAtMs = min(minCreatedAtMs, (select createdAt_unixMs from DbEvent where id = :eventId)),
+            maxCreatedAtMs = max(maxCreatedAtMs, (select createdAt_unixMs from DbEvent where id = :eventId))
+        where scopeId = :scopeId
+        """,
+    )
+    suspend fun addToScopeSummary(
+        scopeId: String,
+        eventId: String,
+    )
+
+    @Query("delete from DbEventScopeSummary where scopeId = (select scopeId from DbEvent where id = :eventId) and eventCount <= 0")
+    suspend fun deleteScopeSummaryIfEmpty(eventId: String)
+
+    @Query("delete from DbEventScopeSummary where scopeId in (:scopeIds)")
+    suspend fun deleteScopeSummaries(scopeIds: List<String>)
+
+    @Query("delete from DbEventScopeSummary")
+    suspend fun deleteAllScopeSummaries()
 }
@@ -13,6 +13,8 @@ import com.simprints.infra.events.event.local.migrations.EventMigration12to13
 import com.simprints.infra.events.event.local.migrations.EventMigration13to14
 import com.simprints.infra.events.event.local.migrations.EventMigration14to15
 import com.simprints.infra.events.event.local.migrations.EventMigration15to16
+import com.simprints.infra.events.event.local.migrations.EventMigration16to17
+import com.simprints.infra.events.event.local.migrations.EventMigration17to18
 import com.simprints.infra.events.event.local.migrations.EventMigration1to2
 import com.simprints.infra.events.event.local.migrations.EventMigration2to3
 import com.simprints.infra.events.event.local.migrations.EventMigration3to4
@@ -24,14 +26,16 @@ import com.simprints.infra.events.event.local.migrations.EventMigration8to9
 import com.simprints.infra.events.event.local.migrations.EventMigration9to10
 import com.simprints.infra.events.event.local.models.DbEvent
 import com.simprints.infra.events.event.local.models.DbEventScope
+import com.simprints.infra.events.event.local.models.DbEventScopeSummary
 import net.sqlcipher.database.SupportFactory
 
 @Database(
     entities = [
         DbEvent::class,
         DbEventScope::class,
+        DbEventScopeSummary::class,
     ],
-    version = 16,
+    version = 18,
     exportSchema = true,
 )
 @TypeConverters(Converters::class)
@@ -64,6 +68,8 @@ internal abstract class EventRoomDatabase : RoomDatabase() {
                 .addMigrations(EventMigration13to14())
                 .addMigrations(EventMigration14to15())
                 .addMigrations(EventMigration15to16())
+                .addMigrations(EventMigration16to17())
+                .addMigrations(EventMigration17to18())
 
             if (BuildConfig.DB_ENCRYPTION) {
                 builder.openHelperFactory(factory)
@@ -0,0 +1,64 @@
+package com.simprints.infra.events.event.local.migrations
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+import com.simprints.core.tools.extentions.getStringWithColumnName
+import com.simprints.infra.logging.LoggingConstants.CrashReportTag.MIGRATION
+import com.simprints.infra.logging.Simber
+import org.json.JSONObject
+
+/**
+ * Moves the end timestamp of the events out of the json, so that closing a scope is a single
+ * indexed query instead of decoding every event in it.
+ */
+internal class EventMigration16to17 : Migration(16, 17) {
+    override fun migrate(db: SupportSQLiteDatabase) {
+        Simber.i("Migrating room db from schema 16 to schema 17.", tag = MIGRATION)
+        addEndedAtColumns(db)
+        backfillEndedAt(db)
+        db.execSQL("CREATE INDEX IF NOT EXISTS `$INDEX_NAME` ON `$TABLE_NAME` (`scopeId`, `$ENDED_AT_UNIX_MS`)")
+        Simber.i("Migration from schema 16 to schema 17 done.", tag = MIGRATION)
+    }
+
+    private fun addEndedAtColumns(db: SupportSQLiteDatabase) {
+        db.execSQL("ALTER TABLE $TABLE_NAME ADD COLUMN $ENDED_AT_UNIX_MS INTEGER")
+        db.execSQL("ALTER TABLE $TABLE_NAME ADD COLUMN $ENDED_AT_IS_TRUSTWORTHY INTEGER")
+        db.execSQL("ALTER TABLE $TABLE_NAME ADD COLUMN $ENDED_AT_MS_SINCE_BOOT INTEGER")
+    }
+
+    private fun backfillEndedAt(db: SupportSQLiteDatabase) {
+        // Only events with a non-null end timestamp need to be updated
+        val cursor = db.query(
+            "SELECT id, $DB_EVENT_JSON_FIELD FROM $TABLE_NAME WHERE $DB_EVENT_JSON_FIELD LIKE ?",
+            arrayOf("%\"endedAt\":{%"),
+        )
+        cursor.use {
+            while (it.moveToNext()) {
+                val id = it.getStringWithColumnName("id") ?: continue
+                val jsonData = it.getStringWithColumnName(DB_EVENT_JSON_FIELD) ?: continue
+                val endedAt = runCatching {
+                    JSONObject(jsonData).getJSONObject("payload").optJSONObject("endedAt")?.takeIf { json -> json.has("ms") }
+                }.getOrNull() ?: continue
+
+                db.execSQL(
+                    "UPDATE $TABLE_NAME SET $ENDED_AT_UNIX_MS = ?, $ENDED_AT_IS_TRUSTWORTHY = ?, $ENDED_AT_MS_SINCE_BOOT = ? WHERE id = ?",
+                    arrayOf(
+                        endedAt.getLong("ms"),
+                        if (endedAt.optBoolean("isTrustworthy")) 1 else 0,
+                        endedAt.optLong("msSinceBoot").takeUnless { endedAt.isNull("msSinceBoot") },
+                        id,
+                    ),
+                )
+            }
+        }
+    }
+
+    companion object {
+        const val TABLE_NAME = "DbEvent"
+        const val DB_EVENT_JSON_FIELD = "eventJson"
+        const val ENDED_AT_UNIX_MS = "endedAt_unixMs"
+        const val ENDED_AT_IS_TRUSTWORTHY = "endedAt_isTrustworthy"
+        const val ENDED_AT_MS_SINCE_BOOT = "endedAt_msSinceBoot"
+        const val INDEX_NAME = "index_DbEvent_scopeId_endedAt_unixMs"
+    }
+}
@@ -0,0 +1,48 @@
+package com.simprints.infra.events.event.local.migrations
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+import com.simprints.infra.logging.LoggingConstants.CrashReportTag.MIGRATION
+import com.simprints.infra.logging.Simber
+
+/**
+ * Adds the indices used by the count queries and the per-scope summary table,
+ * which is filled in from the events that are already stored.
+ */
+internal class EventMigration17to18 : Migration(17, 18) {
+    override fun migrate(db: SupportSQLiteDatabase) {
+        Simber.i("Migrating room db from schema 17 to schema 18.", tag = MIGRATION)
+        createIndices(db)
+        createScopeSummaries(db)
+        Simber.i("Migration from schema 17 to schema 18 done.", tag = MIGRATION)
+    }
+
+    private fun createIndices(db: SupportSQLiteDatabase) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS `index_DbEvent_type` ON `$EVENT_TABLE_NAME` (`type`)")
+        db.execSQL("CREATE INDEX IF NOT EXISTS `index_DbEvent_createdAt_unixMs` ON `$EVENT_TABLE_NAME` (`createdAt_unixMs`)")
+        db.execSQL("CREATE INDEX IF NOT EXISTS `index_DbEventScope_type_end_unixMs` ON `$SCOPE_TABLE_NAME` (`type`, `end_unixMs`)")
+    }
+
+    private fun createScopeSummaries(db: SupportSQLiteDatabase) {
+        db.execSQL(
+            "CREATE TABLE IF NOT EXISTS `$SUMMARY_TABLE_NAME` (" +
+                "`scopeId` TEXT NOT NULL, " +
+                "`eventCount` INTEGER NOT NULL, " +
+                "`eventBytes` INTEGER NOT NULL, " +
+                "`minCreatedAtMs` INTEGER NOT NULL, " +
+                "`maxCreatedAtMs` INTEGER NOT NULL, " +
+                "PRIMARY KEY(`scopeId`))",
+        )
+        db.execSQL(
+            "INSERT INTO $SUMMARY_TABLE_NAME (scopeId, eventCount, eventBytes, minCreatedAtMs, maxCreatedAtMs) " +
+                "SELECT scopeId, count(*), sum(length(cast(eventJson AS BLOB))), min(createdAt_unixMs), max(createdAt_unixMs) " +
+                "FROM $EVENT_TABLE_NAME WHERE scopeId IS NOT NULL GROUP BY scopeId",
+        )
+    }
+
+    companion object {
+        const val EVENT_TABLE_NAME = "DbEvent"
+        const val SCOPE_TABLE_NAME = "DbEventScope"
+        const val SUMMARY_TABLE_NAME = "DbEventScopeSummary"
+    }
+}
@@ -2,6 +2,7 @@ package com.simprints.infra.events.event.local.models
 
 import androidx.room.Embedded
 import androidx.room.Entity
+import androidx.room.Index
 import androidx.room.PrimaryKey
 import com.fasterxml.jackson.core.type.TypeReference
 import com.fasterxml.jackson.databind.module.SimpleModule
@@ -13,7 +14,13 @@ import com.simprints.infra.events.event.domain.models.Event
 import com.simprints.infra.events.event.domain.models.EventType
 import com.simprints.infra.events.event.local.models.DbEvent.Companion.dbSerializationModule
 
-@Entity
+@Entity(
+    indices = [
+        Index("scopeId", "endedAt_unixMs"),
+        Index("type"),
+        Index("createdAt_unixMs"),
+    ],
+)
 internal data class DbEvent(
     @PrimaryKey var id: String,
     @Embedded("createdAt_") val createdAt: DbTimestamp,
@@ -21,6 +28,8 @@ internal data class DbEvent(
     val projectId: String? = null,
     val scopeId: String? = null,
     var eventJson: String,
+    // Kept out of the json so that scopes can be closed without reading their events
+    @Embedded("endedAt_") val endedAt: DbTimestamp? = null,
 ) {
     companion object {
         val dbSerializationModule = SimpleModule().apply {
@@ -37,6 +46,7 @@ internal fun Event.fromDomainToDb(): DbEvent = DbEvent(
     type = payload.type,
     eventJson = JsonHelper.toJson(this, module = dbSerializationModule),
     createdAt = payload.createdAt.fromDomainToDb(),
+    endedAt = payload.endedAt?.fromDomainToDb(),
 )
 
 internal fun DbEvent.fromDbToDomain(): Event = JsonHelper.fromJson(
@@ -3,6 +3,7 @@ package com.simprints.infra.events.event.local.models
 import androidx.annotation.Keep
 import androidx.room.Embedded
 import androidx.room.Entity
+import androidx.room.Index
 import androidx.room.PrimaryKey
 import com.fasterxml.jackson.core.type.TypeReference
 import com.simprints.core.tools.json.JsonHelper
@@ -11,7 +12,7 @@ import com.simprints.infra.events.event.domain.models.scope.EventScopePayload
 import com.simprints.infra.events.event.domain.models.scope.EventScopeType
 
 @Keep
-@Entity
+@Entity(indices = [Index("type", "end_unixMs")])
 internal data class DbEventScope(
     @PrimaryKey val id: String,
     val projectId: String,
@@ -0,0 +1,22 @@
+package com.simprints.infra.events.event.local.models
+
+import androidx.annotation.Keep
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+/**
+ * Aggregates of the events stored in a scope, kept up to date by [com.simprints.infra.events.event.local.EventRoomDao]
+ * in the same transaction as the events, so that counts and sizes do not need to scan the event table.
+ *
+ * Timestamps are widened when an event is added and recomputed when an event at either end is moved out of the scope.
+ */
+@Keep
+@Entity
+internal data class DbEventScopeSummary(
+    @PrimaryKey val scopeId: String,
+    val eventCount: Int,
+    // Size of the event json encoded as UTF-8
+    val eventBytes: Long,
+    val minCreatedAtMs: Long,
+    val maxCreatedAtMs: Long,
+)
@@ -13,6 +13,7 @@ import com.simprints.infra.events.event.domain.models.scope.DatabaseInfo
 import com.simprints.infra.events.event.domain.models.scope.Device
 import com.simprints.infra.events.event.domain.models.scope.EventScope
 import com.simprints.infra.events.event.domain.models.scope.EventScopeType
+import com.simprints.infra.events.event.domain.validators.EventScopeSummary
 import com.simprints.infra.events.event.domain.validators.EventValidator
 import com.simprints.infra.events.event.domain.validators.SessionEventValidatorsFactory
 import com.simprints.infra.events.event.local.EventLocalDataSource
@@ -21,6 +22,7 @@ import com.simprints.infra.events.sampledata.SampleDefaults.DEFAULT_PROJECT_ID
 import com.simprints.infra.events.sampledata.SampleDefaults.GUID1
 import com.simprints.infra.events.sampledata.SampleDefaults.GUID2
 import com.simprints.infra.events.sampledata.createAlertScreenEvent
+import com.simprints.infra.events.sampledata.createEnrolmentEventV4
 import com.simprints.infra.events.sampledata.createSessionScope
 import io.mockk.MockKAnnotations
 import io.mockk.coEvery
@@ -137,15 +139,12 @@ internal class EventRepositoryImplTest {
     @Test
     fun `should close event scope correctly`() = runTest {
         val scope = createSessionScope("scopeId", isClosed = false)
-        val event = createAlertScreenEvent()
 
-        coEvery { eventLocalDataSource.loadEventsInScope(any()) } returns listOf(
-            event.copy(payload = event.payload.copy(endedAt = Timestamp(5))),
-            event.copy(payload = event.payload.copy(endedAt = Timestamp(3))),
-            event.copy(payload = event.payload.copy(endedAt = Timestamp(1))),
-        )
+        coEvery { eventLocalDataSource.loadLatestEventTimestampInScope(any()) } returns Timestamp(5)
         eventRepo.closeEventScope(scope, null)
 
+        coVerify(exactly = 0) { eventLocalDataSource.loadEventsInScope(any()) }
+
         coVerify {
             eventLocalDataSource.saveEventScope(
                 match {
@@ -160,7 +159,7 @@ internal class EventRepositoryImplTest {
     fun `should delete scope on closing if there are no events`() = runTest {
         val scope = createSessionScope("scopeId", isClosed = false)
 
-        coEvery { eventLocalDataSource.loadEventsInScope(any()) } returns emptyList()
+        coEvery { eventLocalDataSource.loadLatestEventTimestampInScope(any()) } returns null
         eventRepo.closeEventScope(scope, null)
 
         coVerify {
@@ -183,12 +182,9 @@ internal class EventRepositoryImplTest {
     @Test
     fun `add event to current session should add event related to current session into DB`() = runTest {
         val scope = createSessionScope("scopeId", isClosed = false)
-        val event = createAlertScreenEvent()
 
         coEvery { eventLocalDataSource.loadEventScope(any()) } returns scope
-        coEvery { eventLocalDataSource.loadEventsInScope(any()) } returns listOf(
-            event.copy(payload = event.payload.copy(endedAt = Timestamp(5))),
-        )
+        coEvery { eventLocalDataSource.loadLatestEventTimestampInScope(any()) } returns Timestamp(5)
         eventRepo.closeEventScope("scopeId", null)
 
         coVerify {
@@ -222,10 +218,7 @@ internal class EventRepositoryImplTest {
             eventLocalDataSource.loadOpenedScopes(any())
         } returns listOf(createSessionScope("scopeId"), createSessionScope("scopeId2"))
 
-        val event = createAlertScreenEvent()
-        coEvery { eventLocalDataSource.loadEventsInScope(any()) } returns listOf(
-            event.copy(payload = event.payload.copy(endedAt = Timestamp(5))),
-        )
+        coEvery { eventLocalDataSource.loadLatestEventTimestampInScope(any()) } returns Timestamp(5)
 
         eventRepo.closeAllOpenScopes(EventScopeType.SESSION, null)
 
@@ -347,6 +340,15 @@ internal class EventRepositoryImplTest {
         coVerify { eventLocalDataSource.observeEventCountInClosedScopes() }
     }
 
+    @Test
+    fun `should delegate observeEventSizeInClosedScopes calls`() = runTest {
+        coEvery { eventLocalDataSource.observeEventSizeInClosedScopes() } returns flowOf(1024L)
+
+        assertThat(eventRepo.observeEventSizeInClosedScopes().firstOrNull()).isEqualTo(1024L)
+
+        coVerify { eventLocalDataSource.observeEventSizeInClosedScopes() }
+    }
+
     @Test
     fun `insert event into event scope should update event fields`() = runTest {
         val scope = createSessionScope(GUID1)
@@ -377,13 +379,15 @@ internal class EventRepositoryImplTest {
 
     @Test
     fun `insert event should should check local db if no event list provided`() = runTest {
-        coEvery { eventLocalDataSource.loadEventsInScope(any()) } returns emptyList()
+        coEvery { eventLocalDataSource.loadEventTypesInScope(any()) } returns listOf(EventType.ALERT_SCREEN)
 
         val scope = createSessionScope(GUID1)
         val event = createAlertScreenEvent()
         val updatedEvent = eventRepo.addOrUpdateEvent(scope, event, null)
 
         coVerify { eventLocalDataSource.saveEvent(any()) }
+        coVerify(exactly = 0) { eventLocalDataSource.loadEventsInScope(any()) }
+        verify { eventValidator.validate(EventScopeSummary(setOf(EventType.ALERT_SCREEN)), event) }
         assertThat(updatedEvent.scopeId).isEqualTo(scope.id)
         assertThat(updatedEvent.projectId).isEqualTo(DEFAULT_PROJECT_ID)
     }
@@ -396,7 +400,34 @@ internal class EventRepositoryImplTest {
 
         eventRepo.addOrUpdateEvent(scope, newEvent, listOf(eventInScope))
 
-        verify { eventValidator.validate(listOf(eventInScope), newEvent) }
+        verify { eventValidator.validate(EventScopeSummary.of(listOf(eventInScope)), newEvent) }
+    }
+
+    @Test
+    fun `insert event should validate following events against the updated scope summary`() = runTest {
+        coEvery { eventLocalDataSource.loadEventTypesInScope(any()) } returns emptyList()
+        val scope = createSessionScope(GUID1)
+        val firstEvent = createAlertScreenEvent()
+        val secondEvent = createEnrolmentEventV4()
+
+        eventRepo.addOrUpdateEvent(scope, firstEvent, null)
+        eventRepo.addOrUpdateEvent(scope, secondEvent, null)
+
+        coVerify(exactly = 1) { eventLocalDataSource.loadEventTypesInScope(GUID1) }
+        verify { eventValidator.validate(EventScopeSummary(setOf(EventType.ALERT_SCREEN)), secondEvent) }
+    }
+
+    @Test
+    fun `closing a scope should drop its summary`() = runTest {
+        coEvery { eventLocalDataSource.loadEventTypesInScope(any()) } returns emptyList()
+        coEvery { eventLocalDataSource.loadLatestEventTimestampInScope(any()) } returns null
+        val scope = createSessionScope(GUID1)
+
+        eventRepo.addOrUpdateEvent(scope, createAlertScreenEvent(), null)
+        eventRepo.closeEventScope(scope, null)
+        eventRepo.addOrUpdateEvent(scope, createAlertScreenEvent(), null)
+
+        coVerify(exactly = 2) { eventLocalDataSource.loadEventTypesInScope(GUID1) }
     }
 
     @Test
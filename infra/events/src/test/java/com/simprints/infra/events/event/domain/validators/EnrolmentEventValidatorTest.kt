@@ -23,14 +23,20 @@ internal class EnrolmentEventValidatorTest {
     @Test
     fun validate_shouldValidateIfBiometricCaptureAndBiometricCreationIsPresent() {
         val currentEvents = listOf(createFaceCaptureEvent(), createPersonCreationEvent())
-        validator.run { validate(currentEvents, createBiometricReferenceCreationEvent()) }
+        validator.run { validate(EventScopeSummary.of(currentEvents), createBiometricReferenceCreationEvent()) }
+    }
+
+    @Test
+    fun validate_shouldValidateEnrolmentIfBiometricCaptureAndBiometricCreationArePresent() {
+        val currentEvents = listOf(createFingerprintCaptureEvent(), createBiometricReferenceCreationEvent())
+        validator.validate(EventScopeSummary.of(currentEvents), createEnrolmentEventV4())
     }
 
     @Test
     fun validate_shouldThrowIfBiometricCaptureIsNotPresent() {
         assertThrows<EnrolmentEventValidatorException> {
             val currentEvents = listOf(createEventWithSessionId(GUID1, GUID1), createBiometricReferenceCreationEvent())
-            validator.validate(currentEvents, createEnrolmentEventV4())
+            validator.validate(EventScopeSummary.of(currentEvents), createEnrolmentEventV4())
         }
     }
 
@@ -38,7 +44,7 @@ internal class EnrolmentEventValidatorTest {
     fun validate_shouldThrowIfBiometricCreationEventIsNotPresent() {
         assertThrows<EnrolmentEventValidatorException> {
             val currentEvents = listOf(createFingerprintCaptureEvent())
-            validator.validate(currentEvents, createEnrolmentEventV4())
+            validator.validate(EventScopeSummary.of(currentEvents), createEnrolmentEventV4())
         }
     }
 }
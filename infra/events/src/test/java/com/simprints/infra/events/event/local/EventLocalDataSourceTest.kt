@@ -8,19 +8,24 @@ import androidx.test.core.app.ApplicationProvider
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import com.google.common.truth.Truth.assertThat
 import com.simprints.core.tools.json.JsonHelper
+import com.simprints.core.tools.time.Timestamp
 import com.simprints.infra.events.event.domain.models.Event
 import com.simprints.infra.events.event.domain.models.EventType.CALLBACK_ENROLMENT
 import com.simprints.infra.events.event.domain.models.scope.EventScopeType
+import com.simprints.infra.events.event.local.EventLocalDataSource.Companion.ALL_EVENTS_PAGE_SIZE
 import com.simprints.infra.events.event.local.models.DbEvent
 import com.simprints.infra.events.event.local.models.DbEventScope
+import com.simprints.infra.events.event.local.models.DbTimestamp
 import com.simprints.infra.events.event.local.models.fromDbToDomain
 import com.simprints.infra.events.event.local.models.fromDomainToDb
 import com.simprints.infra.events.sampledata.SampleDefaults.GUID1
+import com.simprints.infra.events.sampledata.createAlertScreenEvent
 import com.simprints.testtools.common.syntax.assertThrows
 import com.simprints.testtools.unit.robolectric.ShadowAndroidXMultiDex
 import dagger.hilt.android.testing.HiltTestApplication
 import io.mockk.*
 import io.mockk.impl.annotations.RelaxedMockK
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.flow.toList
@@ -71,61 +76,61 @@ internal class EventLocalDataSourceTest {
     @Test
     fun `test handleDatabaseCorruption gets called on SQLiteDatabaseCorruptExceptions`() = runTest {
         // Given
-        coEvery { eventDao.loadAll() }
+        coEvery { eventDao.loadPageBefore(any(), any(), any()) }
             .throws(SQLiteDatabaseCorruptException())
             .andThen(emptyList())
         //
-        eventLocalDataSource.loadAllEvents()
+        eventLocalDataSource.loadAllEvents().toList()
         // Then
         verify {
             eventDatabaseFactory.deleteDatabase()
             eventDatabaseFactory.recreateDatabaseKey()
             eventDatabaseFactory.build()
         }
-        coVerify(exactly = 2) { eventDao.loadAll() }
+        coVerify(exactly = 2) { eventDao.loadPageBefore(any(), any(), any()) }
     }
 
     @Test
     fun `test handleDatabaseCorruption gets called on SQLiteExceptions that contains 'file is not a database'`() = runTest {
         // Given
-        coEvery { eventDao.loadAll() }
+        coEvery { eventDao.loadPageBefore(any(), any(), any()) }
             .throws(SQLiteException("file is not a database"))
             .andThen(emptyList())
         // When
-        eventLocalDataSource.loadAllEvents()
+        eventLocalDataSource.loadAllEvents().toList()
         // Then
         verify {
             eventDatabaseFactory.deleteDatabase()
             eventDatabaseFactory.recreateDatabaseKey()
             eventDatabaseFactory.build()
         }
-        coVerify(exactly = 2) { eventDao.loadAll() }
+        coVerify(exactly = 2) { eventDao.loadPageBefore(any(), any(), any()) }
     }
 
     @Test
     fun `test handleDatabaseCorruption not called on SQLiteExceptions that don't  contain 'file is not a database'`() = runTest {
         // Given
-        coEvery { eventDao.loadAll() } throws SQLiteException()
+        coEvery { eventDao.loadPageBefore(any(), any(), any()) } throws SQLiteException()
         // When
-        assertThrows<SQLiteException> { eventLocalDataSource.loadAllEvents() }
+        assertThrows<SQLiteException> { eventLocalDataSource.loadAllEvents().toList() }
         // Then
         verify(exactly = 0) {
             eventDatabaseFactory.deleteDatabase()
         }
-        coVerify(exactly = 1) { eventDao.loadAll() }
+        coVerify(exactly = 1) { eventDao.loadPageBefore(any(), any(), any()) }
     }
 
     @Test
     fun `test handleDatabaseCorruption not called on other Exceptions`() = runTest {
         // Given
-        coEvery { eventDao.loadAll() } throws Exception()
+        coEvery { eventDao.loadPageBefore(any(), any(), any()) } throws Exception()
         // When
-        assertThrows<Exception> { eventLocalDataSource.loadAllEvents() }
+        assertThrows<Exception> { eventLocalDataSource.loadAllEvents().toList() }
         // Then
         verify(exactly = 0) {
             eventDatabaseFactory.deleteDatabase()
         }
-        coVerify(exactly = 1) { eventDao.loadAll() }
+        coVerify(exactly = 1) { eventDao.loadPageBefore(any(), any(), any()) }
     }
 
     @Test
@@ -310,9 +315,35 @@ internal class EventLocalDataSourceTest {
 
     @Test
     fun loadAll() = runTest {
-        eventLocalDataSource.loadAllEvents()
+        eventLocalDataSource.loadAllEvents().toList()
 
-        coVerify { eventDao.loadAll() }
+        coVerify { eventDao.loadPageBefore(Long.MAX_VALUE, "", ALL_EVENTS_PAGE_SIZE) }
+    }
+
+    @Test
+    fun loadAllReadsPagesAfterTheLastLoadedEvent() = runTest {
+        val firstPage = List(ALL_EVENTS_PAGE_SIZE) { createDbEvent("event$it", createdAt = 1000L - it) }
+        val lastOfFirstPage = firstPage.last()
+        val secondPage = listOf(createDbEvent("lastEvent", createdAt = 1))
+        coEvery { eventDao.loadPageBefore(Long.MAX_VALUE, "", ALL_EVENTS_PAGE_SIZE) } returns firstPage
+        coEvery {
+            eventDao.loadPageBefore(lastOfFirstPage.createdAt.unixMs, lastOfFirstPage.id, ALL_EVENTS_PAGE_SIZE)
+        } returns secondPage
+
+        val events = eventLocalDataSource.loadAllEvents().toList()
+
+        assertThat(events.map { it.id }).isEqualTo((firstPage + secondPage).map { it.id })
+        coVerify(exactly = 2) { eventDao.loadPageBefore(any(), any(), any()) }
+    }
+
+    @Test
+    fun loadAllDoesNotReadFurtherPagesWhenNotCollected() = runTest {
+        coEvery { eventDao.loadPageBefore(Long.MAX_VALUE, "", ALL_EVENTS_PAGE_SIZE) } returns
+            List(ALL_EVENTS_PAGE_SIZE) { createDbEvent("event$it", createdAt = 1000L - it) }
+
+        eventLocalDataSource.loadAllEvents().first()
+
+        coVerify(exactly = 1) { eventDao.loadPageBefore(any(), any(), any()) }
     }
 
     @Test
@@ -331,6 +362,30 @@ internal class EventLocalDataSourceTest {
         coVerify { eventDao.loadFromScope(sessionId) }
     }
 
+    @Test
+    fun loadEventTypesFromEventScope() = runTest {
+        val sessionId = GUID1
+        eventLocalDataSource.loadEventTypesInScope(sessionId)
+
+        coVerify { eventDao.loadEventTypesFromScope(sessionId) }
+    }
+
+    @Test
+    fun loadLatestEventTimestampFromEventScope() = runTest {
+        coEvery { eventDao.loadLatestTimestampFromScope(GUID1) } returns DbTimestamp(5, isTrustworthy = true)
+
+        val result = eventLocalDataSource.loadLatestEventTimestampInScope(GUID1)
+
+        assertThat(result).isEqualTo(Timestamp(5, isTrustworthy = true))
+    }
+
+    @Test
+    fun loadLatestEventTimestampFromEmptyEventScope() = runTest {
+        coEvery { eventDao.loadLatestTimestampFromScope(GUID1) } returns null
+
+        assertThat(eventLocalDataSource.loadLatestEventTimestampInScope(GUID1)).isNull()
+    }
+
     @Test
     fun countEventScopes() = runTest {
         eventLocalDataSource.countEventScopes(EventScopeType.SESSION)
@@ -429,6 +484,13 @@ internal class EventLocalDataSourceTest {
         coVerify { eventDao.observeCountInClosedScopes() }
     }
 
+    @Test
+    fun observeEventSizeInClosedScopes() = runTest {
+        eventLocalDataSource.observeEventSizeInClosedScopes().toList()
+
+        coVerify { eventDao.observeSizeInClosedScopes() }
+    }
+
     @Test
     fun observeCountWithAProjectIdAndTypeQuery() = runTest {
         eventLocalDataSource
@@ -472,12 +534,17 @@ internal class EventLocalDataSourceTest {
         }
     }
 
+    private fun createDbEvent(
+        id: String,
+        createdAt: Long,
+    ) = createAlertScreenEvent().copy(id = id).fromDomainToDb().copy(createdAt = DbTimestamp(createdAt))
+
     private fun mockDaoLoadToMakeNothing() {
         db = mockk(relaxed = true)
         eventDao = mockk(relaxed = true)
         scopeDao = mockk(relaxed = true)
         eventDatabaseFactory = mockk(relaxed = true)
-        coEvery { eventDao.loadAll() } returns emptyList()
+        coEvery { eventDao.loadPageBefore(any(), any(), any()) } returns emptyList()
         coEvery { eventDao.loadFromScope(any()) } returns emptyList()
         coEvery { scopeDao.loadOpen(any()) } returns emptyList()
         coEvery { scopeDao.loadClosed(any(), any()) } returns emptyList()
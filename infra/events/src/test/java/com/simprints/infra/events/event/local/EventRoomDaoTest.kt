@@ -7,13 +7,18 @@ import androidx.test.ext.junit.runners.AndroidJUnit4
 import com.google.common.truth.Truth.assertThat
 import com.simprints.core.tools.utils.randomUUID
 import com.simprints.infra.events.event.domain.models.EventType
+import com.simprints.infra.events.event.domain.models.scope.EventScopeType
 import com.simprints.infra.events.event.local.models.DbEvent
+import com.simprints.infra.events.event.local.models.DbEventScope
+import com.simprints.infra.events.event.local.models.DbEventScopeSummary
+import com.simprints.infra.events.event.local.models.DbTimestamp
 import com.simprints.infra.events.event.local.models.fromDomainToDb
 import com.simprints.infra.events.sampledata.SampleDefaults.CREATED_AT
 import com.simprints.infra.events.sampledata.SampleDefaults.DEFAULT_PROJECT_ID
 import com.simprints.infra.events.sampledata.SampleDefaults.GUID1
 import com.simprints.infra.events.sampledata.SampleDefaults.GUID2
 import io.mockk.MockKAnnotations
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.test.runTest
 import org.junit.After
 import org.junit.Before
@@ -71,12 +76,173 @@ internal class EventRoomDaoTest {
         }
     }
 
+    @Test
+    fun loadEventTypesFromSession() {
+        runTest {
+            val sameTypeEvent = event.copy(id = randomUUID())
+            val otherTypeEvent = event.copy(id = randomUUID(), type = EventType.CALLOUT_ENROLMENT)
+            val otherSessionEvent = event.copy(id = randomUUID(), scopeId = GUID2, type = EventType.ALERT_SCREEN)
+            addIntoDb(event, sameTypeEvent, otherTypeEvent, otherSessionEvent)
+
+            val results = eventDao.loadEventTypesFromScope(GUID1)
+            assertThat(results).containsExactly(EventType.INTENT_PARSING, EventType.CALLOUT_ENROLMENT)
+        }
+    }
+
+    @Test
+    fun loadLatestTimestampFromSession() {
+        runTest {
+            val endedEvent = event.copy(
+                id = randomUUID(),
+                createdAt = DbTimestamp(1),
+                endedAt = DbTimestamp(5, isTrustworthy = true, msSinceBoot = 3),
+            )
+            val earlierEndedEvent = event.copy(id = randomUUID(), createdAt = DbTimestamp(2), endedAt = DbTimestamp(4))
+            val notEndedEvent = event.copy(id = randomUUID(), createdAt = DbTimestamp(3))
+            val otherSessionEvent = event.copy(id = randomUUID(), scopeId = GUID2, createdAt = DbTimestamp(10))
+            addIntoDb(endedEvent, earlierEndedEvent, notEndedEvent, otherSessionEvent)
+
+            val result = eventDao.loadLatestTimestampFromScope(GUID1)
+            assertThat(result).isEqualTo(DbTimestamp(5, isTrustworthy = true, msSinceBoot = 3))
+        }
+    }
+
+    @Test
+    fun loadLatestTimestampFromSessionUsesCreationOfNotEndedEvents() {
+        runTest {
+            val endedEvent = event.copy(id = randomUUID(), createdAt = DbTimestamp(1), endedAt = DbTimestamp(2))
+            val notEndedEvent = event.copy(id = randomUUID(), createdAt = DbTimestamp(3, isTrustworthy = true))
+            addIntoDb(endedEvent, notEndedEvent)
+
+            val result = eventDao.loadLatestTimestampFromScope(GUID1)
+            assertThat(result).isEqualTo(DbTimestamp(3, isTrustworthy = true))
+        }
+    }
+
+    @Test
+    fun loadLatestTimestampFromEmptySession() {
+        runTest {
+            assertThat(eventDao.loadLatestTimestampFromScope(GUID1)).isNull()
+        }
+    }
+
     @Test
     fun loadAll() {
         runTest {
             val secondEvent = event.copy(id = randomUUID())
             addIntoDb(event, secondEvent)
-            verifyEvents(listOf(event, secondEvent), eventDao.loadAll())
+            verifyEvents(listOf(event, secondEvent), loadAll())
+        }
+    }
+
+    @Test
+    fun loadPageBefore() {
+        runTest {
+            val newestEvent = event.copy(id = "c", createdAt = DbTimestamp(3))
+            val sameTimeEvents = listOf("b", "a").map { event.copy(id = it, createdAt = DbTimestamp(2)) }
+            val oldestEvent = event.copy(id = "d", createdAt = DbTimestamp(1))
+            addIntoDb(oldestEvent, *sameTimeEvents.toTypedArray(), newestEvent)
+
+            val firstPage = eventDao.loadPageBefore(Long.MAX_VALUE, "", limit = 2)
+            assertThat(firstPage).containsExactly(newestEvent, sameTimeEvents[0]).inOrder()
+
+            // Events created at the same time as the last loaded one must not be skipped
+            val secondPage = eventDao.loadPageBefore(firstPage.last().createdAt.unixMs, firstPage.last().id, limit = 2)
+            assertThat(secondPage).containsExactly(sameTimeEvents[1], oldestEvent).inOrder()
+
+            assertThat(eventDao.loadPageBefore(oldestEvent.createdAt.unixMs, oldestEvent.id, limit = 2)).isEmpty()
+        }
+    }
+
+    @Test
+    fun insertionUpdatesTheSessionSummary() {
+        runTest {
+            val laterEvent = event.copy(id = randomUUID(), createdAt = DbTimestamp(CREATED_AT.ms + 10))
+            addIntoDb(event, laterEvent)
+
+            assertThat(eventDao.loadScopeSummary(GUID1)).isEqualTo(
+                DbEventScopeSummary(
+                    scopeId = GUID1,
+                    eventCount = 2,
+                    eventBytes = 2L * eventJson.length,
+                    minCreatedAtMs = CREATED_AT.ms,
+                    maxCreatedAtMs = CREATED_AT.ms + 10,
+                ),
+            )
+        }
+    }
+
+    @Test
+    fun updatingAnEventReplacesItInTheSessionSummary() {
+        runTest {
+            addIntoDb(event, event.copy(eventJson = "{}"))
+
+            val summary = eventDao.loadScopeSummary(GUID1)
+            assertThat(summary?.eventCount).isEqualTo(1)
+            assertThat(summary?.eventBytes).isEqualTo(2)
+        }
+    }
+
+    @Test
+    fun movingAnEventToAnotherSessionMovesItBetweenSummaries() {
+        runTest {
+            addIntoDb(event, event.copy(scopeId = GUID2))
+
+            assertThat(eventDao.loadScopeSummary(GUID1)).isNull()
+            assertThat(eventDao.loadScopeSummary(GUID2)?.eventCount).isEqualTo(1)
+        }
+    }
+
+    @Test
+    fun movingTheEventsAtEitherEndRecomputesTheSessionSummaryTimestamps() {
+        runTest {
+            val earliestEvent = event.copy(id = randomUUID(), createdAt = DbTimestamp(CREATED_AT.ms - 10))
+            val latestEvent = event.copy(id = randomUUID(), createdAt = DbTimestamp(CREATED_AT.ms + 10))
+            addIntoDb(event, earliestEvent, latestEvent)
+
+            addIntoDb(earliestEvent.copy(scopeId = GUID2), latestEvent.copy(scopeId = GUID2))
+
+            val summary = eventDao.loadScopeSummary(GUID1)
+            assertThat(summary?.eventCount).isEqualTo(1)
+            assertThat(summary?.minCreatedAtMs).isEqualTo(CREATED_AT.ms)
+            assertThat(summary?.maxCreatedAtMs).isEqualTo(CREATED_AT.ms)
+        }
+    }
+
+    @Test
+    fun updatingTheCreationTimeOfAnEventRecomputesTheSessionSummaryTimestamps() {
+        runTest {
+            val laterEvent = event.copy(id = randomUUID(), createdAt = DbTimestamp(CREATED_AT.ms + 10))
+            addIntoDb(event, laterEvent)
+
+            addIntoDb(laterEvent.copy(createdAt = DbTimestamp(CREATED_AT.ms + 5)))
+
+            val summary = eventDao.loadScopeSummary(GUID1)
+            assertThat(summary?.minCreatedAtMs).isEqualTo(CREATED_AT.ms)
+            assertThat(summary?.maxCreatedAtMs).isEqualTo(CREATED_AT.ms + 5)
+        }
+    }
+
+    @Test
+    fun deletionBySessionIdDeletesTheSessionSummary() {
+        runTest {
+            addIntoDb(event, event.copy(id = randomUUID(), scopeId = GUID2))
+            eventDao.deleteAllFromScope(GUID1)
+
+            assertThat(eventDao.loadScopeSummary(GUID1)).isNull()
+            assertThat(eventDao.loadScopeSummary(GUID2)).isNotNull()
+        }
+    }
+
+    @Test
+    fun observeCountAndSizeInClosedSessions() {
+        runTest {
+            db.scopeDao.insertOrUpdate(createScope(GUID1, endedAt = DbTimestamp(CREATED_AT.ms + 10)))
+            db.scopeDao.insertOrUpdate(createScope(GUID2, endedAt = null))
+            addIntoDb(event, event.copy(id = randomUUID()), event.copy(id = randomUUID(), scopeId = GUID2))
+
+            assertThat(eventDao.observeCountInClosedScopes().first()).isEqualTo(2)
+            assertThat(eventDao.observeSizeInClosedScopes().first()).isEqualTo(2L * eventJson.length)
         }
     }
 
@@ -89,7 +255,7 @@ internal class EventRoomDaoTest {
                 event.copy(id = randomUUID(), scopeId = GUID2)
             addIntoDb(event, eventSameSession, eventDifferentSession)
             db.eventDao.deleteAllFromScope(scopeId = GUID1)
-            verifyEvents(listOf(eventDifferentSession), eventDao.loadAll())
+            verifyEvents(listOf(eventDifferentSession), loadAll())
         }
     }
 
@@ -99,6 +265,20 @@ internal class EventRoomDaoTest {
         }
     }
 
+    private suspend fun loadAll() = eventDao.loadPageBefore(Long.MAX_VALUE, "", Int.MAX_VALUE)
+
+    private fun createScope(
+        id: String,
+        endedAt: DbTimestamp?,
+    ) = DbEventScope(
+        id = id,
+        projectId = DEFAULT_PROJECT_ID,
+        type = EventScopeType.SESSION,
+        createdAt = CREATED_AT.fromDomainToDb(),
+        endedAt = endedAt,
+        payloadJson = "{}",
+    )
+
     private fun verifyEvents(
         expectedEvents: List<DbEvent>,
         queryResult: List<DbEvent>,
@@ -0,0 +1,97 @@
+package com.simprints.infra.events.event.local.migrations
+
+import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
+import androidx.room.testing.MigrationTestHelper
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.google.common.truth.Truth.assertThat
+import com.simprints.core.tools.extentions.getIntWithColumnName
+import com.simprints.core.tools.extentions.getLongWithColumnName
+import com.simprints.infra.events.event.local.EventRoomDatabase
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class EventMigration16to17Test {
+    @get:Rule
+    val helper = MigrationTestHelper(
+        InstrumentationRegistry.getInstrumentation(),
+        EventRoomDatabase::class.java,
+    )
+
+    @Test
+    fun `should copy the end timestamp of the events to the new columns`() {
+        helper.createDatabase(EventMigration16to17.TABLE_NAME, 16).apply {
+            insert(
+                EventMigration16to17.TABLE_NAME,
+                SQLiteDatabase.CONFLICT_NONE,
+                createEvent(ENDED_EVENT_ID, """"endedAt":{"ms":4567,"isTrustworthy":true,"msSinceBoot":89}"""),
+            )
+            close()
+        }
+        val db = helper.runMigrationsAndValidate(
+            EventMigration16to17.TABLE_NAME,
+            17,
+            true,
+            EventMigration16to17(),
+        )
+        MigrationTestingTools.retrieveCursorWithEventById(db, ENDED_EVENT_ID).use { event ->
+            assertThat(event.getLongWithColumnName("endedAt_unixMs")).isEqualTo(4567)
+            assertThat(event.getIntWithColumnName("endedAt_isTrustworthy")).isEqualTo(1)
+            assertThat(event.getLongWithColumnName("endedAt_msSinceBoot")).isEqualTo(89)
+        }
+        helper.closeWhenFinished(db)
+    }
+
+    @Test
+    fun `should leave the end timestamp empty for events that did not end`() {
+        helper.createDatabase(EventMigration16to17.TABLE_NAME, 16).apply {
+            insert(
+                EventMigration16to17.TABLE_NAME,
+                SQLiteDatabase.CONFLICT_NONE,
+                createEvent(NOT_ENDED_EVENT_ID, """"endedAt":null"""),
+            )
+            insert(
+                EventMigration16to17.TABLE_NAME,
+                SQLiteDatabase.CONFLICT_NONE,
+                createEvent(ENDED_EVENT_ID, """"endedAt":{"ms":4567,"isTrustworthy":false,"msSinceBoot":null}"""),
+            )
+            close()
+        }
+        val db = helper.runMigrationsAndValidate(
+            EventMigration16to17.TABLE_NAME,
+            17,
+            true,
+            EventMigration16to17(),
+        )
+        MigrationTestingTools.retrieveCursorWithEventById(db, NOT_ENDED_EVENT_ID).use { event ->
+            assertThat(event.getLongWithColumnName("endedAt_unixMs")).isNull()
+            assertThat(event.getIntWithColumnName("endedAt_isTrustworthy")).isNull()
+        }
+        MigrationTestingTools.retrieveCursorWithEventById(db, ENDED_EVENT_ID).use { event ->
+            assertThat(event.getLongWithColumnName("endedAt_unixMs")).isEqualTo(4567)
+            assertThat(event.getIntWithColumnName("endedAt_isTrustworthy")).isEqualTo(0)
+            assertThat(event.getLongWithColumnName("endedAt_msSinceBoot")).isNull()
+        }
+        helper.closeWhenFinished(db)
+    }
+
+    private fun createEvent(
+        id: String,
+        endedAtJson: String,
+    ): ContentValues = ContentValues().apply {
+        put("id", id)
+        put("createdAt_unixMs", 1234)
+        put("createdAt_isTrustworthy", 0)
+        put("type", "CALLOUT")
+        put("scopeId", "scopeId")
+        put("eventJson", """{"id":"$id","payload":{"createdAt":{"ms":1234},$endedAtJson}}""")
+    }
+
+    companion object {
+        private const val ENDED_EVENT_ID = "ended-event-id"
+        private const val NOT_ENDED_EVENT_ID = "not-ended-event-id"
+    }
+}
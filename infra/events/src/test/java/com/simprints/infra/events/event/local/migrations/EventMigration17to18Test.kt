@@ -0,0 +1,70 @@
+package com.simprints.infra.events.event.local.migrations
+
+import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
+import androidx.room.testing.MigrationTestHelper
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.google.common.truth.Truth.assertThat
+import com.simprints.core.tools.extentions.getIntWithColumnName
+import com.simprints.core.tools.extentions.getLongWithColumnName
+import com.simprints.infra.events.event.local.EventRoomDatabase
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class EventMigration17to18Test {
+    @get:Rule
+    val helper = MigrationTestHelper(
+        InstrumentationRegistry.getInstrumentation(),
+        EventRoomDatabase::class.java,
+    )
+
+    @Test
+    fun `should create the summaries of the stored scopes`() {
+        helper.createDatabase(TEST_DB, 17).apply {
+            listOf(
+                createEvent("event1", SCOPE_ID, createdAt = 20),
+                createEvent("event2", SCOPE_ID, createdAt = 10),
+                createEvent("event3", OTHER_SCOPE_ID, createdAt = 30),
+                createEvent("event4", scopeId = null, createdAt = 40),
+            ).forEach { insert(EventMigration17to18.EVENT_TABLE_NAME, SQLiteDatabase.CONFLICT_NONE, it) }
+            close()
+        }
+        val db = helper.runMigrationsAndValidate(TEST_DB, 18, true, EventMigration17to18())
+
+        db.query("SELECT * FROM ${EventMigration17to18.SUMMARY_TABLE_NAME} WHERE scopeId = ?", arrayOf(SCOPE_ID)).use { summary ->
+            assertThat(summary.moveToNext()).isTrue()
+            assertThat(summary.getIntWithColumnName("eventCount")).isEqualTo(2)
+            assertThat(summary.getLongWithColumnName("eventBytes")).isEqualTo(2L * EVENT_JSON.length)
+            assertThat(summary.getLongWithColumnName("minCreatedAtMs")).isEqualTo(10)
+            assertThat(summary.getLongWithColumnName("maxCreatedAtMs")).isEqualTo(20)
+        }
+        db.query("SELECT count(*) FROM ${EventMigration17to18.SUMMARY_TABLE_NAME}").use { count ->
+            count.moveToNext()
+            assertThat(count.getInt(0)).isEqualTo(2)
+        }
+        helper.closeWhenFinished(db)
+    }
+
+    private fun createEvent(
+        id: String,
+        scopeId: String?,
+        createdAt: Long,
+    ): ContentValues = ContentValues().apply {
+        put("id", id)
+        put("createdAt_unixMs", createdAt)
+        put("createdAt_isTrustworthy", 0)
+        put("type", "CALLOUT")
+        put("scopeId", scopeId)
+        put("eventJson", EVENT_JSON)
+    }
+
+    companion object {
+        private const val TEST_DB = "test"
+        private const val SCOPE_ID = "scopeId"
+        private const val OTHER_SCOPE_ID = "otherScopeId"
+        private const val EVENT_JSON = """{"id":"eventId","payload":{}}"""
+    }
+}